@@ -24,6 +24,8 @@ public interface Constants {
 
     String FEATURE_PACKS = "featurepacks";
     String PM_INSTALL_DIR = "pm.target.dir";
+    /** Separates the installation directories provisioned from a single resolution */
+    String PM_INSTALL_DIR_SEPARATOR = ",";
     String PM_INSTALL_WORK_DIR = "pm.install.workdir";
     String PM_TOOL_HOME_DIR = "pm.tool.home";
 
@@ -32,6 +34,7 @@ public interface Constants {
     String FEATURE_GROUPS = "feature_groups";
     String FEATURES = "features";
     String FEATURE_PACK_XML = "feature-pack.xml";
+    String FEATURE_SPEC_INDEX = "spec.idx";
     String MODULES_XML = "module.xml";
     String PACKAGE_XML = "package.xml";
     String PACKAGES = "packages";
@@ -43,6 +46,7 @@ public interface Constants {
 
     String PROVISIONED_STATE_DIR = ".pm";
     String PROVISIONED_STATE_XML = "provisioned.xml";
+    String CONTENT_MANIFEST = "content.manifest";
 
     String PM_UNDEFINED = "PM_UNDEFINED";
 
@@ -22,17 +22,26 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.stream.XMLStreamException;
 
 import org.jboss.provisioning.config.FeaturePackConfig;
 import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.diff.ReferenceContent;
+import org.jboss.provisioning.runtime.ProvisioningPlan;
 import org.jboss.provisioning.runtime.ProvisioningRuntime;
 import org.jboss.provisioning.runtime.ProvisioningRuntimeBuilder;
+import org.jboss.provisioning.runtime.ResolutionCache;
 import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.HashAlgorithm;
 import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathFilter;
 import org.jboss.provisioning.util.PathsUtils;
 import org.jboss.provisioning.xml.XmlParsers;
 
@@ -42,12 +51,20 @@ import org.jboss.provisioning.xml.XmlParsers;
  */
 public class ProvisioningManager {
 
+    public static final long DEFAULT_LAYOUT_CACHE_MAX_SIZE = 1024L * 1024 * 1024;
+
     public static class Builder {
 
         private String encoding = "UTF-8";
         private Path installationHome;
         private ArtifactRepositoryManager artifactResolver;
         private MessageWriter messageWriter;
+        private boolean incremental;
+        private Path layoutCacheDir;
+        private long layoutCacheMaxSize = DEFAULT_LAYOUT_CACHE_MAX_SIZE;
+        private ResolutionCache resolutionCache;
+        private PathFilter linkFilter;
+        private HashAlgorithm contentHashAlgorithm;
 
         private Builder() {
         }
@@ -72,6 +89,90 @@ public class ProvisioningManager {
             return this;
         }
 
+        /**
+         * Whether re-provisioning of an existing installation should only
+         * touch the files that were added, removed or changed compared to
+         * the currently provisioned state instead of replacing the whole
+         * installation directory.
+         *
+         * @param incremental  whether to re-provision incrementally
+         * @return  this builder
+         */
+        public Builder setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * Directory where the unpacked feature-pack layouts are cached
+         * between the provisioning runs. If not set, the feature-packs
+         * are unpacked from scratch by each run.
+         *
+         * @param layoutCacheDir  feature-pack layout cache directory
+         * @return  this builder
+         */
+        public Builder setLayoutCacheDir(Path layoutCacheDir) {
+            this.layoutCacheDir = layoutCacheDir;
+            return this;
+        }
+
+        /**
+         * The size in bytes of the feature-pack layout cache beyond which
+         * the least recently used layouts are evicted.
+         *
+         * @param layoutCacheMaxSize  max size of the layout cache in bytes
+         * @return  this builder
+         */
+        public Builder setLayoutCacheMaxSize(long layoutCacheMaxSize) {
+            this.layoutCacheMaxSize = layoutCacheMaxSize;
+            return this;
+        }
+
+        /**
+         * Cache of the resolved provisioning configs that can be shared
+         * by the provisioning managers in the same JVM. If not set,
+         * the provisioning config is resolved by each run.
+         *
+         * @param resolutionCache  resolution cache
+         * @return  this builder
+         */
+        public Builder setResolutionCache(ResolutionCache resolutionCache) {
+            this.resolutionCache = resolutionCache;
+            return this;
+        }
+
+        /**
+         * Package content files that should be hard-linked from the feature-pack
+         * layouts instead of being copied into the installation. This saves
+         * time and disk space, in particular when combined with the layout
+         * cache, as the installations on the same file system then share
+         * the content of the linked files with the cache. The linked files
+         * must never be modified in place, so the filter should only accept
+         * immutable content, such as module JARs or documentation.
+         * If not set, all the content is copied.
+         *
+         * @param linkFilter  accepts the paths, relative to the installation home,
+         * of the files to hard-link
+         * @return  this builder
+         */
+        public Builder setLinkFilter(PathFilter linkFilter) {
+            this.linkFilter = linkFilter;
+            return this;
+        }
+
+        /**
+         * Algorithm the installed content is hashed with for the content
+         * manifest recorded in the installation. If not set,
+         * {@link ContentManifest#DEFAULT_HASH_ALGORITHM} is used.
+         *
+         * @param contentHashAlgorithm  content hash algorithm
+         * @return  this builder
+         */
+        public Builder setContentHashAlgorithm(HashAlgorithm contentHashAlgorithm) {
+            this.contentHashAlgorithm = contentHashAlgorithm;
+            return this;
+        }
+
         public ProvisioningManager build() {
             return new ProvisioningManager(this);
         }
@@ -85,6 +186,12 @@ public class ProvisioningManager {
     private final Path installationHome;
     private final ArtifactRepositoryManager artifactResolver;
     private final MessageWriter messageWriter;
+    private final boolean incremental;
+    private final Path layoutCacheDir;
+    private final long layoutCacheMaxSize;
+    private final ResolutionCache resolutionCache;
+    private final PathFilter linkFilter;
+    private final HashAlgorithm contentHashAlgorithm;
 
     private ProvisioningConfig provisioningConfig;
 
@@ -93,6 +200,12 @@ public class ProvisioningManager {
         this.installationHome = builder.installationHome;
         this.artifactResolver = builder.artifactResolver;
         this.messageWriter = builder.messageWriter == null ? DefaultMessageWriter.getDefaultInstance() : builder.messageWriter;
+        this.incremental = builder.incremental;
+        this.layoutCacheDir = builder.layoutCacheDir;
+        this.layoutCacheMaxSize = builder.layoutCacheMaxSize;
+        this.resolutionCache = builder.resolutionCache;
+        this.linkFilter = builder.linkFilter;
+        this.contentHashAlgorithm = builder.contentHashAlgorithm;
     }
 
     /**
@@ -113,6 +226,7 @@ public class ProvisioningManager {
      */
     public ProvisioningConfig getProvisioningConfig() throws ProvisioningException {
         if (provisioningConfig == null) {
+            ProvisioningRuntime.recoverInstallation(installationHome, messageWriter);
             provisioningConfig = readProvisioningConfig(PathsUtils.getProvisioningXml(installationHome));
         }
         return provisioningConfig;
@@ -125,6 +239,7 @@ public class ProvisioningManager {
      * @throws ProvisioningException  in case there was an error reading the description from the disk
      */
     public ProvisionedState getProvisionedState() throws ProvisioningException {
+        ProvisioningRuntime.recoverInstallation(installationHome, messageWriter);
         final Path xml = PathsUtils.getProvisionedStateXml(installationHome);
         if (!Files.exists(xml)) {
             return null;
@@ -195,39 +310,10 @@ public class ProvisioningManager {
      */
     public void provision(ProvisioningConfig provisioningConfig) throws ProvisioningException {
 
-        if(Files.exists(installationHome)) {
-            if(!Files.isDirectory(installationHome)) {
-                throw new ProvisioningException(Errors.notADir(installationHome));
-            }
-            try(DirectoryStream<Path> stream = Files.newDirectoryStream(installationHome)) {
-                boolean usableDir = true;
-                final Iterator<Path> i = stream.iterator();
-                while(i.hasNext() ) {
-                    if(i.next().getFileName().toString().equals(Constants.PROVISIONED_STATE_DIR)) {
-                        usableDir = true;
-                        break;
-                    } else {
-                        usableDir = false;
-                    }
-                }
-                if(!usableDir) {
-                    throw new ProvisioningException("The installation home directory has to be empty or contain a provisioned installation to be used by the tool.");
-                }
-            } catch (IOException e) {
-                throw new ProvisioningException(Errors.readDirectory(installationHome));
-            }
-        }
+        assertUsableInstallationHome(installationHome);
 
         if(!provisioningConfig.hasFeaturePacks()) {
-            if(Files.exists(installationHome)) {
-                try(DirectoryStream<Path> stream = Files.newDirectoryStream(installationHome)) {
-                    for(Path p : stream) {
-                        IoUtils.recursiveDelete(p);
-                    }
-                } catch (IOException e) {
-                    throw new ProvisioningException(Errors.readDirectory(installationHome));
-                }
-            }
+            clearInstallationHome(installationHome);
             return;
         }
 
@@ -239,7 +325,12 @@ public class ProvisioningManager {
                 .setArtifactResolver(artifactResolver)
                 .setConfig(provisioningConfig)
                 .setEncoding(encoding)
+                .setLayoutCache(layoutCacheDir, layoutCacheMaxSize)
+                .setResolutionCache(resolutionCache)
                 .setInstallDir(installationHome)
+                .setIncremental(incremental)
+                .setLinkFilter(linkFilter)
+                .setContentHashAlgorithm(contentHashAlgorithm)
                 .build()) {
             // install the software
             ProvisioningRuntime.install(runtime);
@@ -249,6 +340,97 @@ public class ProvisioningManager {
         this.provisioningConfig = null;
     }
 
+    /**
+     * Provisions the same state into each of the specified installation directories.
+     * The provisioning config is resolved, the content is installed and the plug-ins
+     * are executed only once, the result is then copied into the installation
+     * directories in parallel. The installation home of this manager is not
+     * affected unless it is included in the specified directories.
+     *
+     * @param provisioningConfig  the desired installation specification
+     * @param installationHomes  the installation directories to provision
+     * @throws ProvisioningException  in case the provisioning of any of the directories fails
+     */
+    public void provision(ProvisioningConfig provisioningConfig, Collection<Path> installationHomes) throws ProvisioningException {
+        if(installationHomes.isEmpty()) {
+            return;
+        }
+        // the same directory must not be provisioned concurrently
+        final Set<Path> homes = new LinkedHashSet<>(installationHomes.size());
+        for(Path home : installationHomes) {
+            homes.add(home.toAbsolutePath().normalize());
+        }
+        for(Path home : homes) {
+            assertUsableInstallationHome(home);
+        }
+
+        if(!provisioningConfig.hasFeaturePacks()) {
+            for(Path home : homes) {
+                clearInstallationHome(home);
+            }
+            return;
+        }
+
+        if(artifactResolver == null) {
+            throw new ProvisioningException("Artifact resolver has not been provided.");
+        }
+
+        try(ProvisioningRuntime runtime = ProvisioningRuntimeBuilder.newInstance(messageWriter)
+                .setArtifactResolver(artifactResolver)
+                .setConfig(provisioningConfig)
+                .setEncoding(encoding)
+                .setLayoutCache(layoutCacheDir, layoutCacheMaxSize)
+                .setResolutionCache(resolutionCache)
+                .setInstallDir(homes.iterator().next())
+                .setIncremental(incremental)
+                .setLinkFilter(linkFilter)
+                .setContentHashAlgorithm(contentHashAlgorithm)
+                .build()) {
+            ProvisioningRuntime.install(runtime, homes);
+        } catch (IOException e) {
+            messageWriter.error(e, e.getMessage());
+        }
+    }
+
+    private static void assertUsableInstallationHome(Path installationHome) throws ProvisioningException {
+        if(!Files.exists(installationHome)) {
+            return;
+        }
+        if(!Files.isDirectory(installationHome)) {
+            throw new ProvisioningException(Errors.notADir(installationHome));
+        }
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(installationHome)) {
+            boolean usableDir = true;
+            final Iterator<Path> i = stream.iterator();
+            while(i.hasNext() ) {
+                if(i.next().getFileName().toString().equals(Constants.PROVISIONED_STATE_DIR)) {
+                    usableDir = true;
+                    break;
+                } else {
+                    usableDir = false;
+                }
+            }
+            if(!usableDir) {
+                throw new ProvisioningException("The installation home directory has to be empty or contain a provisioned installation to be used by the tool.");
+            }
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.readDirectory(installationHome));
+        }
+    }
+
+    private static void clearInstallationHome(Path installationHome) throws ProvisioningException {
+        if(!Files.exists(installationHome)) {
+            return;
+        }
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(installationHome)) {
+            for(Path p : stream) {
+                IoUtils.recursiveDelete(p);
+            }
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.readDirectory(installationHome));
+        }
+    }
+
     /**
      * Provision the state described in the specified XML file.
      *
@@ -259,6 +441,52 @@ public class ProvisioningManager {
         provision(readProvisioningConfig(provisioningXml));
     }
 
+    /**
+     * Provision the state described in the specified XML file into each
+     * of the specified installation directories.
+     *
+     * @param provisioningXml  file describing the desired provisioned state
+     * @param installationHomes  the installation directories to provision
+     * @throws ProvisioningException  in case provisioning fails
+     */
+    public void provision(Path provisioningXml, Collection<Path> installationHomes) throws ProvisioningException {
+        provision(readProvisioningConfig(provisioningXml), installationHomes);
+    }
+
+    /**
+     * Resolves the specified provisioning configuration without installing
+     * anything or modifying the installation.
+     *
+     * @param provisioningConfig  the desired installation specification
+     * @return  the feature-packs, the packages and the configs the provisioning would result in
+     * @throws ProvisioningException  in case the resolution fails
+     */
+    public ProvisioningPlan plan(ProvisioningConfig provisioningConfig) throws ProvisioningException {
+        if(artifactResolver == null) {
+            throw new ProvisioningException("Artifact resolver has not been provided.");
+        }
+        return ProvisioningRuntimeBuilder.newInstance(messageWriter)
+                .setArtifactResolver(artifactResolver)
+                .setConfig(provisioningConfig)
+                .setEncoding(encoding)
+                .setLayoutCache(layoutCacheDir, layoutCacheMaxSize)
+                .setResolutionCache(resolutionCache)
+                .setInstallDir(installationHome)
+                .plan();
+    }
+
+    /**
+     * Resolves the provisioning configuration described in the specified XML file
+     * without installing anything or modifying the installation.
+     *
+     * @param provisioningXml  file describing the desired provisioned state
+     * @return  the feature-packs, the packages and the configs the provisioning would result in
+     * @throws ProvisioningException  in case the resolution fails
+     */
+    public ProvisioningPlan plan(Path provisioningXml) throws ProvisioningException {
+        return plan(readProvisioningConfig(provisioningXml));
+    }
+
     /**
      * Exports the current provisioning configuration of the installation to
      * the specified file.
@@ -292,12 +520,19 @@ public class ProvisioningManager {
             }
             Files.copy(userProvisionedXml, xmlTarget, StandardCopyOption.REPLACE_EXISTING);
         }
+        final ContentManifest referenceManifest = ContentManifest.read(installationHome);
         Path tempInstallationDir = IoUtils.createRandomTmpDir();
         try {
+            // with the recorded content manifest the pristine installation is provisioned only if
+            // a modified file has no pristine source in the feature-pack layouts
+            final Path pristineDir = referenceManifest.isEmpty() ? tempInstallationDir : tempInstallationDir.resolve("pristine");
             ProvisioningManager reference = new ProvisioningManager(ProvisioningManager.builder()
                     .setArtifactResolver(this.getArtifactResolver())
                     .setEncoding(this.getEncoding())
-                    .setInstallationHome(tempInstallationDir)
+                    .setLayoutCacheDir(layoutCacheDir)
+                    .setLayoutCacheMaxSize(layoutCacheMaxSize)
+                    .setResolutionCache(resolutionCache)
+                    .setInstallationHome(pristineDir)
                     .setMessageWriter(new MessageWriter() {
                         @Override
                         public void verbose(Throwable cause, CharSequence message) {
@@ -324,13 +559,24 @@ public class ProvisioningManager {
                             return;
                         }
                     }));
-            reference.provision(configuration);
+            final ProvisioningManager pristine = reference;
+            final ReferenceContent.PristineInstallation pristineInstallation = () -> {
+                pristine.provision(configuration);
+                return pristineDir;
+            };
+            if(referenceManifest.isEmpty()) {
+                pristineInstallation.provision();
+            }
             ProvisioningRuntimeBuilder builder = ProvisioningRuntimeBuilder.newInstance(messageWriter)
                     .setArtifactResolver(this.getArtifactResolver())
                     .setConfig(configuration)
                     .setEncoding(this.getEncoding())
+                    .setLayoutCache(layoutCacheDir, layoutCacheMaxSize)
+                    .setResolutionCache(resolutionCache)
                     .setInstallDir(tempInstallationDir)
                     .addAllParameters(parameters)
+                    .setReferenceManifest(referenceManifest.isEmpty() ? null : referenceManifest)
+                    .setPristineInstallation(pristineInstallation)
                     .setOperation(toFeaturePack ? "diff-to-feature-pack" : "diff");
             try (ProvisioningRuntime runtime = builder.build()) {
                 if(toFeaturePack) {
@@ -349,13 +595,20 @@ public class ProvisioningManager {
 
     public void upgrade(ArtifactCoords.Gav fpGav, Map<String, String> parameters) throws ProvisioningException, IOException {
         ProvisioningConfig configuration = this.getProvisioningConfig();
+        final ContentManifest referenceManifest = ContentManifest.read(installationHome);
         Path tempInstallationDir = IoUtils.createRandomTmpDir();
         Path stagedDir = IoUtils.createRandomTmpDir();
         try {
+            // with the recorded content manifest the pristine installation is provisioned only if
+            // a modified file has no pristine source in the feature-pack layouts
+            final Path pristineDir = referenceManifest.isEmpty() ? tempInstallationDir : tempInstallationDir.resolve("pristine");
             ProvisioningManager reference = new ProvisioningManager(ProvisioningManager.builder()
                     .setArtifactResolver(this.getArtifactResolver())
                     .setEncoding(this.getEncoding())
-                    .setInstallationHome(tempInstallationDir)
+                    .setLayoutCacheDir(layoutCacheDir)
+                    .setLayoutCacheMaxSize(layoutCacheMaxSize)
+                    .setResolutionCache(resolutionCache)
+                    .setInstallationHome(pristineDir)
                     .setMessageWriter(new MessageWriter() {
                         @Override
                         public void verbose(Throwable cause, CharSequence message) {
@@ -382,11 +635,21 @@ public class ProvisioningManager {
                             return;
                         }
                     }));
-            reference.provision(configuration);
+            final ProvisioningManager pristine = reference;
+            final ReferenceContent.PristineInstallation pristineInstallation = () -> {
+                pristine.provision(configuration);
+                return pristineDir;
+            };
+            if(referenceManifest.isEmpty()) {
+                pristineInstallation.provision();
+            }
             Files.createDirectories(stagedDir);
             reference = new ProvisioningManager(ProvisioningManager.builder()
                     .setArtifactResolver(this.getArtifactResolver())
                     .setEncoding(this.getEncoding())
+                    .setLayoutCacheDir(layoutCacheDir)
+                    .setLayoutCacheMaxSize(layoutCacheMaxSize)
+                    .setResolutionCache(resolutionCache)
                     .setInstallationHome(stagedDir)
                     .setMessageWriter(new MessageWriter() {
                         @Override
@@ -419,8 +682,12 @@ public class ProvisioningManager {
                     .setArtifactResolver(this.getArtifactResolver())
                     .setConfig(configuration)
                     .setEncoding(this.getEncoding())
+                    .setLayoutCache(layoutCacheDir, layoutCacheMaxSize)
+                    .setResolutionCache(resolutionCache)
                     .setInstallDir(tempInstallationDir)
                     .addAllParameters(parameters)
+                    .setReferenceManifest(referenceManifest.isEmpty() ? null : referenceManifest)
+                    .setPristineInstallation(pristineInstallation)
                     .setOperation("upgrade");
             try (ProvisioningRuntime runtime = diffBuilder.build()) {
                 // install the software
@@ -21,18 +21,26 @@ import static org.jboss.provisioning.util.IoUtils.listContents;
 import difflib.DiffUtils;
 import difflib.Patch;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.ProviderException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.jboss.provisioning.MessageWriter;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.runtime.ProvisioningRuntime;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.HashAlgorithm;
 import org.jboss.provisioning.util.PathFilter;
 
 /**
@@ -40,24 +48,86 @@ import org.jboss.provisioning.util.PathFilter;
  * @author Emmanuel Hugonnet (c) 2017 Red Hat, inc.
  */
 public class FileSystemDiff {
+
+    public static final long DEFAULT_MAX_TEXT_DIFF_SIZE = 8 * 1024 * 1024;
+
     private final Path stagedInstallation;
+    private final ReferenceContent reference;
     private final Path customizedInstallation;
     protected final MessageWriter messageWriter;
+    private long maxTextDiffSize = DEFAULT_MAX_TEXT_DIFF_SIZE;
+    private HashAlgorithm hashAlgorithm;
+
+    /**
+     * Creates a diff of the customized installation against the pristine state
+     * of the runtime, which is its reference content, if the runtime has one,
+     * or its installation directory otherwise.
+     *
+     * @param runtime  provisioning runtime
+     * @param customizedInstallation  customized installation
+     * @return  file system diff
+     * @throws ProvisioningException  in case the reference content could not be determined
+     */
+    public static FileSystemDiff newInstance(ProvisioningRuntime runtime, Path customizedInstallation) throws ProvisioningException {
+        final ReferenceContent reference = runtime.getReferenceContent();
+        if(reference != null) {
+            return new FileSystemDiff(runtime.getMessageWriter(), reference, customizedInstallation);
+        }
+        return new FileSystemDiff(runtime.getMessageWriter(), runtime.getInstallDir(), customizedInstallation);
+    }
 
     public FileSystemDiff(MessageWriter messageWriter, Path stagedInstallation, Path customizedInstallation) {
         this.stagedInstallation = stagedInstallation;
+        this.reference = null;
+        this.customizedInstallation = customizedInstallation;
+        this.messageWriter = messageWriter;
+    }
+
+    public FileSystemDiff(MessageWriter messageWriter, ReferenceContent reference, Path customizedInstallation) {
+        this.stagedInstallation = null;
+        this.reference = reference;
         this.customizedInstallation = customizedInstallation;
         this.messageWriter = messageWriter;
     }
 
+    /**
+     * Text files up to this size are diffed in memory. The larger ones are
+     * diffed skipping the lines they have in common at the beginning and
+     * at the end, unless the region they differ in is larger than this size,
+     * in which case they are reported as modified binary files.
+     *
+     * @param maxTextDiffSize  max size in bytes of the text to diff in memory
+     * @return  this diff
+     */
+    public FileSystemDiff setMaxTextDiffSize(long maxTextDiffSize) {
+        this.maxTextDiffSize = maxTextDiffSize;
+        return this;
+    }
+
+    /**
+     * The algorithm the content is hashed with to detect the changed files.
+     * If not set, the algorithm of the reference content is used or, when
+     * diffing against a staged installation, the algorithm of the content
+     * manifest of the customized installation, so that its recorded hashes
+     * can be reused, falling back to SHA-1.
+     *
+     * @param hashAlgorithm  hash algorithm
+     * @return  this diff
+     */
+    public FileSystemDiff setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+        return this;
+    }
+
     public FileSystemDiffResult diff() throws ProviderException {
         return this.diff(PathFilter.DEFAULT);
     }
 
     public FileSystemDiffResult diff(final PathFilter filter) throws ProviderException {
         try {
-            final Map<Path, String> stagged = listContents(stagedInstallation, filter);
-            final Map<Path, String> custom = listContents(customizedInstallation, filter);
+            final HashAlgorithm algorithm = resolveHashAlgorithm();
+            final Map<Path, String> stagged = reference == null ? listContents(stagedInstallation, filter, algorithm) : reference.getContents(filter);
+            final Map<Path, String> custom = listContents(customizedInstallation, filter, algorithm);
             Changes changes = listChanges(stagged, custom);
             return new FileSystemDiffResult(
                     listDeletedFiles(stagged, custom),
@@ -69,10 +139,28 @@ public class FileSystemDiff {
         }
     }
 
+    private HashAlgorithm resolveHashAlgorithm() {
+        if (reference != null) {
+            // the recorded hashes can only be compared with the ones computed with the same algorithm
+            return reference.getHashAlgorithm();
+        }
+        if (hashAlgorithm != null) {
+            return hashAlgorithm;
+        }
+        final HashAlgorithm recorded = ContentManifest.read(customizedInstallation).getHashAlgorithm();
+        return recorded == null ? HashAlgorithm.SHA1 : recorded;
+    }
+
     private Set<Path> listDeletedFiles(final Map<Path, String> stagged, final Map<Path, String> custom) {
         Set<Path> deletedFiles = new HashSet<>();
         for (Path path : stagged.keySet()) {
             if (!custom.containsKey(path)) {
+                if (reference != null) {
+                    if (!reference.isDirectory(path) || !Files.exists(resolveOriginPath(path))) {
+                        deletedFiles.add(path);
+                    }
+                    continue;
+                }
                 Path staggedPath = resolveStagePath(path);
                 if (Files.exists(staggedPath)) {
                     if (!Files.isDirectory(staggedPath) || !Files.exists(resolveOriginPath(path))) {
@@ -103,20 +191,60 @@ public class FileSystemDiff {
     }
 
         private Changes listChanges(final Map<Path, String> stagged, final Map<Path, String> custom) throws IOException {
-            Changes changes = new Changes();
+            final List<Path> changed = new ArrayList<>();
             for (Entry<Path, String> entry : stagged.entrySet()) {
-                Path path = entry.getKey();
-                if (custom.containsKey(path) && !custom.get(path).equals(entry.getValue())) {
-                    try {
-                        changes.unifiedDiff.put(path, extractUnifiedDiff(resolveStagePath(path), resolveOriginPath(path)));
-                    } catch(MalformedInputException ex) {
-                        changes.modifiedBinaryFiles.add(path);
-                    }
+                final String customHash = custom.get(entry.getKey());
+                if (customHash != null && !customHash.equals(entry.getValue())) {
+                    changed.add(entry.getKey());
+                }
+            }
+            // the files are diffed concurrently, null standing for a modified binary file
+            final List<List<String>> diffs;
+            try {
+                diffs = IntStream.range(0, changed.size()).parallel()
+                        .mapToObj(i -> diffChanged(changed.get(i)))
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            final Changes changes = new Changes();
+            for (int i = 0; i < changed.size(); ++i) {
+                final List<String> diff = diffs.get(i);
+                if (diff == null) {
+                    changes.modifiedBinaryFiles.add(changed.get(i));
+                } else {
+                    changes.unifiedDiff.put(changed.get(i), diff);
                 }
             }
             return changes;
         }
 
+        private List<String> diffChanged(Path path) {
+            try {
+                final Path pristine = reference == null ? resolveStagePath(path) : reference.getPristineFile(path);
+                if (pristine == null) {
+                    // the pristine content is not available to diff against
+                    return null;
+                }
+                final Path customized = resolveOriginPath(path);
+                if (TextDiff.isBinary(pristine) || TextDiff.isBinary(customized)) {
+                    return null;
+                }
+                if (Files.size(pristine) <= maxTextDiffSize && Files.size(customized) <= maxTextDiffSize) {
+                    return extractUnifiedDiff(pristine, customized);
+                }
+                final List<String> diff = TextDiff.diff(pristine, customized, maxTextDiffSize);
+                if (diff == null) {
+                    messageWriter.verbose("%s differs in a region larger than %d bytes and is treated as a binary file", path, maxTextDiffSize);
+                }
+                return diff;
+            } catch (MalformedInputException ex) {
+                return null;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
         private List<String> extractUnifiedDiff(Path revised, Path original) throws IOException {
             final List<String> revisedLines = Files.readAllLines(revised, StandardCharsets.UTF_8);
             final List<String> originalLines = Files.readAllLines(original, StandardCharsets.UTF_8);
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.diff;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.util.HashAlgorithm;
+import org.jboss.provisioning.util.HashUtils;
+import org.jboss.provisioning.util.PathFilter;
+
+/**
+ * The expected content of a pristine installation that is not materialized
+ * on disk. The hashes of the files come from the content manifest recorded
+ * when the installation was provisioned while the pristine content of the files,
+ * needed to compute the unified diffs, is looked up in the feature-pack layouts.
+ * The files that don't have a pristine source in the layouts, e.g. the ones
+ * generated by the provisioning plug-ins, are looked up in a pristine installation,
+ * if one was configured, which is provisioned only when such a file was modified.
+ */
+public class ReferenceContent {
+
+    /**
+     * Provisions the pristine installation on disk.
+     */
+    public interface PristineInstallation {
+
+        /**
+         * @return  the directory of the pristine installation
+         * @throws ProvisioningException  in case the provisioning failed
+         */
+        Path provision() throws ProvisioningException;
+    }
+
+    public static class Builder {
+
+        private final Map<Path, String> hashes;
+        private final HashAlgorithm algorithm;
+        private final Map<Path, Path> sources = new HashMap<>();
+        private final Set<Path> dirs = new HashSet<>();
+        private PristineInstallation pristineInstallation;
+
+        private Builder(Map<Path, String> hashes, HashAlgorithm algorithm) {
+            this.hashes = hashes;
+            this.algorithm = algorithm;
+        }
+
+        /**
+         * Adds a file from the feature-pack layout that was installed
+         * at the specified path, replacing the file previously added
+         * at the same path.
+         *
+         * @param relativePath  the path of the file relative to the installation
+         * @param source  the file in the feature-pack layout
+         * @return  this builder
+         */
+        public Builder addFile(Path relativePath, Path source) {
+            sources.put(relativePath, source);
+            return this;
+        }
+
+        /**
+         * Adds a directory that was created in the installation.
+         *
+         * @param relativePath  the path of the directory relative to the installation
+         * @return  this builder
+         */
+        public Builder addDir(Path relativePath) {
+            dirs.add(relativePath);
+            return this;
+        }
+
+        /**
+         * Sets the pristine installation the files without a pristine source
+         * in the feature-pack layouts are looked up in.
+         *
+         * @param pristineInstallation  provisions the pristine installation on demand
+         * @return  this builder
+         */
+        public Builder setPristineInstallation(PristineInstallation pristineInstallation) {
+            this.pristineInstallation = pristineInstallation;
+            return this;
+        }
+
+        public ReferenceContent build() {
+            return new ReferenceContent(this);
+        }
+    }
+
+    /**
+     * Creates a builder for the reference content with the specified file hashes.
+     *
+     * @param hashes  the hashes of the installed files by their paths relative to the installation
+     * @param algorithm  the algorithm the hashes were computed with
+     * @return  reference content builder
+     */
+    public static Builder builder(Map<Path, String> hashes, HashAlgorithm algorithm) {
+        return new Builder(hashes, algorithm);
+    }
+
+    private final HashAlgorithm algorithm;
+    private final Map<Path, String> contents;
+    private final Map<Path, Path> sources;
+    private final Set<Path> dirs;
+    private final PristineInstallation pristineInstallation;
+    private Path pristineDir;
+
+    private ReferenceContent(Builder builder) {
+        this.algorithm = builder.algorithm;
+        this.sources = builder.sources;
+        this.dirs = builder.dirs;
+        this.pristineInstallation = builder.pristineInstallation;
+        final Map<Path, String> contents = new HashMap<>(builder.hashes);
+        // the directories that are not parents of any of the files are empty
+        final Set<Path> parents = new HashSet<>();
+        for(Path file : builder.hashes.keySet()) {
+            Path parent = file.getParent();
+            while(parent != null && parents.add(parent)) {
+                parent = parent.getParent();
+            }
+        }
+        for(Path dir : dirs) {
+            if(dir.toString().isEmpty() || parents.contains(dir)) {
+                continue;
+            }
+            try {
+                contents.put(dir, HashUtils.hash(dir.toString(), algorithm));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.contents = Collections.unmodifiableMap(contents);
+    }
+
+    /**
+     * Returns the hashes of the files and the empty directories accepted by the filter
+     * the same way {@link org.jboss.provisioning.util.IoUtils#listContents(Path, PathFilter)}
+     * would for the pristine installation.
+     *
+     * @param filter  accepts the paths to include
+     * @return  the hashes by the relative paths
+     */
+    public Map<Path, String> getContents(PathFilter filter) {
+        if(filter == PathFilter.DEFAULT) {
+            return contents;
+        }
+        final Map<Path, String> result = new HashMap<>(contents.size());
+        final Map<Path, Boolean> acceptedDirs = new HashMap<>();
+        for(Map.Entry<Path, String> entry : contents.entrySet()) {
+            if(accept(entry.getKey(), filter, acceptedDirs)) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static boolean accept(Path path, PathFilter filter, Map<Path, Boolean> acceptedDirs) {
+        final Path parent = path.getParent();
+        if(parent != null) {
+            Boolean accepted = acceptedDirs.get(parent);
+            if(accepted == null) {
+                accepted = accept(parent, filter, acceptedDirs);
+                acceptedDirs.put(parent, accepted);
+            }
+            if(!accepted) {
+                return false;
+            }
+        }
+        return filter.accept(path);
+    }
+
+    /**
+     * The algorithm the content hashes were computed with.
+     *
+     * @return  hash algorithm
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isDirectory(Path relativePath) {
+        return dirs.contains(relativePath) && !sources.containsKey(relativePath);
+    }
+
+    /**
+     * Returns the file with the pristine content of the installed file or null,
+     * if the pristine content is not available, i.e. the file was generated
+     * or modified by a provisioning plug-in and there is no pristine installation.
+     *
+     * @param relativePath  the path of the file relative to the installation
+     * @return  the file with the pristine content or null
+     * @throws IOException  in case hashing the file or provisioning the pristine installation fails
+     */
+    public Path getPristineFile(Path relativePath) throws IOException {
+        final Path source = sources.get(relativePath);
+        if(source != null && Files.isRegularFile(source)) {
+            final String hash = contents.get(relativePath);
+            if(hash != null && hash.equals(HashUtils.hashFile(source, algorithm))) {
+                return source;
+            }
+        }
+        if(pristineInstallation == null) {
+            return null;
+        }
+        final Path file = getPristineDir().resolve(relativePath.toString());
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    private synchronized Path getPristineDir() throws IOException {
+        if(pristineDir == null) {
+            try {
+                pristineDir = pristineInstallation.provision();
+            } catch (ProvisioningException e) {
+                throw new IOException(e);
+            }
+        }
+        return pristineDir;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.diff;
+
+import difflib.DiffUtils;
+import difflib.Patch;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Line diff of text files that does not require loading the whole files
+ * into memory. The leading and the trailing lines the files have in common
+ * are skipped by comparing their bytes, only the region in between is
+ * decoded and diffed.
+ */
+class TextDiff {
+
+    private static final int SNIFF_SIZE = 8192;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(,\\d+)? \\+(\\d+)(,\\d+)? @@(.*)$");
+
+    /**
+     * Checks the first bytes of the file for the signs of binary content,
+     * i.e. NUL bytes or byte sequences that are not valid UTF-8.
+     */
+    static boolean isBinary(Path file) throws IOException {
+        final byte[] bytes = new byte[SNIFF_SIZE];
+        int read = 0;
+        try(InputStream in = Files.newInputStream(file)) {
+            int n;
+            while(read < bytes.length && (n = in.read(bytes, read, bytes.length - read)) > 0) {
+                read += n;
+            }
+        }
+        for(int i = 0; i < read; ++i) {
+            if(bytes[i] == 0) {
+                return true;
+            }
+        }
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // not the end of input, a multi-byte sequence cut at the end of the sample is fine
+        final CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0, read), CharBuffer.allocate(read), false);
+        return result.isError();
+    }
+
+    /**
+     * Computes the unified diff of the files loading into memory only the
+     * lines that are not common to the beginning or the end of both files.
+     *
+     * @param revised  the revised file
+     * @param original  the original file
+     * @param maxRegionSize  the max size in bytes of the differing region
+     * @return  the unified diff or null if the differing region exceeds the max size
+     * @throws IOException  in case reading the files fails or they are not valid UTF-8
+     */
+    static List<String> diff(Path revised, Path original, long maxRegionSize) throws IOException {
+        // the region is read into a single buffer
+        maxRegionSize = Math.min(maxRegionSize, Integer.MAX_VALUE - 8);
+        try(FileChannel revisedCh = FileChannel.open(revised, StandardOpenOption.READ);
+                FileChannel originalCh = FileChannel.open(original, StandardOpenOption.READ)) {
+            final long revisedSize = revisedCh.size();
+            final long originalSize = originalCh.size();
+            final long minSize = Math.min(revisedSize, originalSize);
+            final ByteBuffer revisedBuf = ByteBuffer.allocate(CHUNK_SIZE);
+            final ByteBuffer originalBuf = ByteBuffer.allocate(CHUNK_SIZE);
+
+            // the common leading lines
+            long prefixBytes = 0;
+            int prefixLines = 0;
+            long offset = 0;
+            prefix: while(offset < minSize) {
+                final int len = (int) Math.min(CHUNK_SIZE, minSize - offset);
+                read(revisedCh, revisedBuf, offset, len);
+                read(originalCh, originalBuf, offset, len);
+                for(int i = 0; i < len; ++i) {
+                    final byte b = revisedBuf.get(i);
+                    if(b != originalBuf.get(i)) {
+                        break prefix;
+                    }
+                    if(b == '\n') {
+                        ++prefixLines;
+                        prefixBytes = offset + i + 1;
+                    }
+                }
+                offset += len;
+            }
+
+            // the common trailing lines, which may not overlap with the leading ones
+            final long maxSuffix = minSize - prefixBytes;
+            long suffixBytes = 0;
+            long distance = 0;
+            suffix: while(distance < maxSuffix) {
+                final int len = (int) Math.min(CHUNK_SIZE, maxSuffix - distance);
+                read(revisedCh, revisedBuf, revisedSize - distance - len, len);
+                read(originalCh, originalBuf, originalSize - distance - len, len);
+                for(int i = len - 1; i >= 0; --i) {
+                    final byte b = revisedBuf.get(i);
+                    if(b != originalBuf.get(i)) {
+                        break suffix;
+                    }
+                    ++distance;
+                    if(b == '\n' && distance > 1) {
+                        // the suffix starts right after a common line end
+                        suffixBytes = distance - 1;
+                    }
+                }
+            }
+
+            final long revisedRegion = revisedSize - suffixBytes - prefixBytes;
+            final long originalRegion = originalSize - suffixBytes - prefixBytes;
+            if(revisedRegion > maxRegionSize || originalRegion > maxRegionSize) {
+                return null;
+            }
+            final List<String> revisedLines = readLines(revisedCh, prefixBytes, (int) revisedRegion);
+            final List<String> originalLines = readLines(originalCh, prefixBytes, (int) originalRegion);
+            final Patch<String> patch = DiffUtils.diff(revisedLines, originalLines);
+            final List<String> unifiedDiff = DiffUtils.generateUnifiedDiff(revised.toString(), original.toString(), revisedLines, patch, 0);
+            return prefixLines == 0 ? unifiedDiff : shiftHunks(unifiedDiff, prefixLines);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buf, long position, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while(buf.hasRemaining()) {
+            if(channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static List<String> readLines(FileChannel channel, long position, int len) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(len);
+        read(channel, buf, position, len);
+        buf.flip();
+        final String text = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(buf).toString();
+        final List<String> lines = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Adjusts the line numbers in the hunk headers by the number of the skipped leading lines.
+     */
+    static List<String> shiftHunks(List<String> unifiedDiff, int lines) {
+        final List<String> result = new ArrayList<>(unifiedDiff.size());
+        for(String line : unifiedDiff) {
+            if(line.startsWith("@@")) {
+                final Matcher m = HUNK_HEADER.matcher(line);
+                if(m.matches()) {
+                    line = "@@ -" + (Integer.parseInt(m.group(1)) + lines) + (m.group(2) == null ? "" : m.group(2))
+                            + " +" + (Integer.parseInt(m.group(3)) + lines) + (m.group(4) == null ? "" : m.group(4))
+                            + " @@" + m.group(5);
+                }
+            }
+            result.add(line);
+        }
+        return result;
+    }
+}
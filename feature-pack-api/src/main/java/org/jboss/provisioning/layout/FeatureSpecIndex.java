@@ -0,0 +1,424 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.layout;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.Errors;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.spec.CapabilitySpec;
+import org.jboss.provisioning.spec.FeatureAnnotation;
+import org.jboss.provisioning.spec.FeatureDependencySpec;
+import org.jboss.provisioning.spec.FeatureId;
+import org.jboss.provisioning.spec.FeatureParameterSpec;
+import org.jboss.provisioning.spec.FeatureReferenceSpec;
+import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.spec.PackageDependencySpec;
+import org.jboss.provisioning.xml.FeatureSpecXmlParser;
+
+/**
+ * Binary index of the feature specs of a feature-pack. The index is an
+ * optional addition to the {@code spec.xml} files, it is stored in the
+ * features directory of the feature-pack as {@link Constants#FEATURE_SPEC_INDEX}.
+ *
+ * <p>The index starts with a table of spec names and the offsets of their
+ * records. Only the table is read when the index is loaded, a spec record
+ * is decoded when the spec is requested.
+ */
+public class FeatureSpecIndex {
+
+    private static final int MAGIC = 0x504d5349;
+    private static final int VERSION = 1;
+
+    /**
+     * Parses the {@code spec.xml} files found in the features directory
+     * and writes their index into the same directory.
+     *
+     * @param featuresDir  features directory of a feature-pack
+     * @throws ProvisioningDescriptionException  in case of a failure
+     */
+    public static void write(Path featuresDir) throws ProvisioningDescriptionException {
+        final List<FeatureSpec> specs = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(featuresDir)) {
+            for(Path featureDir : stream) {
+                final Path specXml = featureDir.resolve(Constants.SPEC_XML);
+                if(!Files.exists(specXml)) {
+                    continue;
+                }
+                try(BufferedReader reader = Files.newBufferedReader(specXml)) {
+                    specs.add(FeatureSpecXmlParser.getInstance().parse(reader));
+                } catch (Exception e) {
+                    throw new ProvisioningDescriptionException(Errors.parseXml(specXml), e);
+                }
+            }
+        } catch (IOException e) {
+            throw new ProvisioningDescriptionException(Errors.readDirectory(featuresDir), e);
+        }
+        write(specs, featuresDir.resolve(Constants.FEATURE_SPEC_INDEX));
+    }
+
+    /**
+     * Writes the index of the feature specs to the file.
+     *
+     * @param specs  feature specs
+     * @param file  target file
+     * @throws ProvisioningDescriptionException  in case of a failure
+     */
+    public static void write(Collection<FeatureSpec> specs, Path file) throws ProvisioningDescriptionException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final List<String> names = new ArrayList<>(specs.size());
+        final int[] offsets = new int[specs.size()];
+        try {
+            final DataOutputStream out = new DataOutputStream(records);
+            for(FeatureSpec spec : specs) {
+                offsets[names.size()] = out.size();
+                names.add(spec.getName());
+                writeSpec(out, spec);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new ProvisioningDescriptionException(Errors.writeFile(file), e);
+        }
+
+        try(OutputStream os = Files.newOutputStream(file)) {
+            final DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            for(int i = 0; i < offsets.length; ++i) {
+                out.writeUTF(names.get(i));
+                out.writeInt(offsets[i]);
+            }
+            out.writeInt(records.size());
+            records.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new ProvisioningDescriptionException(Errors.writeFile(file), e);
+        }
+    }
+
+    /**
+     * Loads the index from the file. Files on the default file system
+     * are memory-mapped.
+     *
+     * @param file  index file
+     * @return  loaded index
+     * @throws ProvisioningDescriptionException  in case the file could not be read
+     */
+    public static FeatureSpecIndex load(Path file) throws ProvisioningDescriptionException {
+        final ByteBuffer buf;
+        try {
+            if(file.getFileSystem() == FileSystems.getDefault()) {
+                try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            }
+        } catch (IOException e) {
+            throw new ProvisioningDescriptionException(Errors.readFile(file), e);
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buf));
+            if(in.readInt() != MAGIC) {
+                throw new ProvisioningDescriptionException(file + " is not a feature spec index");
+            }
+            final int version = in.readInt();
+            if(version != VERSION) {
+                throw new ProvisioningDescriptionException("Unsupported version " + version + " of feature spec index " + file);
+            }
+            final int size = in.readInt();
+            final Map<String, Integer> offsets = new HashMap<>(size);
+            for(int i = 0; i < size; ++i) {
+                offsets.put(in.readUTF(), in.readInt());
+            }
+            final int recordsSize = in.readInt();
+            buf.limit(buf.position() + recordsSize);
+            return new FeatureSpecIndex(file, buf.slice(), offsets);
+        } catch(IOException | RuntimeException e) {
+            throw new ProvisioningDescriptionException(Errors.readFile(file), e);
+        }
+    }
+
+    private final Path file;
+    private final ByteBuffer records;
+    private final Map<String, Integer> offsets;
+
+    private FeatureSpecIndex(Path file, ByteBuffer records, Map<String, Integer> offsets) {
+        this.file = file;
+        this.records = records;
+        this.offsets = offsets;
+    }
+
+    public boolean hasSpec(String name) {
+        return offsets.containsKey(name);
+    }
+
+    /**
+     * Decodes the spec from the index.
+     *
+     * @param name  feature spec name
+     * @return  the spec or null, if the index does not include the spec
+     * @throws ProvisioningDescriptionException  in case the spec record could not be decoded
+     */
+    public FeatureSpec getSpec(String name) throws ProvisioningDescriptionException {
+        final Integer offset = offsets.get(name);
+        if(offset == null) {
+            return null;
+        }
+        final ByteBuffer record = records.duplicate();
+        record.position(offset);
+        final int length = record.getInt();
+        record.limit(record.position() + length);
+        try {
+            return readSpec(new DataInputStream(new ByteBufferInputStream(record)));
+        } catch (IOException | RuntimeException e) {
+            throw new ProvisioningDescriptionException("Failed to decode feature spec " + name + " from " + file, e);
+        }
+    }
+
+    private static void writeSpec(DataOutputStream out, FeatureSpec spec) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeUTF(spec.getName());
+
+        record.writeInt(spec.getAnnotations().size());
+        for(FeatureAnnotation annotation : spec.getAnnotations()) {
+            record.writeUTF(annotation.getName());
+            record.writeInt(annotation.getAttrs().size());
+            for(Map.Entry<String, String> attr : annotation.getAttrs().entrySet()) {
+                record.writeUTF(attr.getKey());
+                writeNullable(record, attr.getValue());
+            }
+        }
+
+        writeCaps(record, spec.getProvidedCapabilities());
+        writeCaps(record, spec.getRequiredCapabilities());
+
+        record.writeInt(spec.getFeatureDeps().size());
+        for(FeatureDependencySpec dep : spec.getFeatureDeps()) {
+            final FeatureId featureId = dep.getFeatureId();
+            record.writeUTF(featureId.getSpec().toString());
+            record.writeInt(featureId.getParams().size());
+            for(Map.Entry<String, String> param : featureId.getParams().entrySet()) {
+                record.writeUTF(param.getKey());
+                record.writeUTF(param.getValue());
+            }
+            writeNullable(record, dep.getDependency());
+            record.writeBoolean(dep.isInclude());
+        }
+
+        record.writeInt(spec.getFeatureRefs().size());
+        for(FeatureReferenceSpec ref : spec.getFeatureRefs()) {
+            record.writeUTF(ref.getFeature().toString());
+            record.writeUTF(ref.getName());
+            writeNullable(record, ref.getDependency());
+            record.writeBoolean(ref.isNillable());
+            record.writeBoolean(ref.isInclude());
+            record.writeInt(ref.getMappedParams().size());
+            for(Map.Entry<String, String> mapping : ref.getMappedParams().entrySet()) {
+                record.writeUTF(mapping.getKey());
+                record.writeUTF(mapping.getValue());
+            }
+        }
+
+        record.writeInt(spec.getParamsTotal());
+        for(FeatureParameterSpec param : spec.getParams().values()) {
+            record.writeUTF(param.getName());
+            record.writeBoolean(param.isFeatureId());
+            record.writeBoolean(param.isNillable());
+            writeNullable(record, param.hasDefaultValue() ? param.getDefaultValue() : null);
+            writeNullable(record, param.getType());
+        }
+
+        writePackageDeps(record, spec.hasLocalPackageDeps() ? spec.getLocalPackageDeps() : null);
+        if(spec.hasExternalPackageDeps()) {
+            record.writeInt(spec.getExternalPackageSources().size());
+            for(String fpDep : spec.getExternalPackageSources()) {
+                record.writeUTF(fpDep);
+                writePackageDeps(record, spec.getExternalPackageDeps(fpDep));
+            }
+        } else {
+            record.writeInt(0);
+        }
+
+        record.flush();
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static void writeCaps(DataOutputStream out, Collection<CapabilitySpec> caps) throws IOException {
+        out.writeInt(caps.size());
+        for(CapabilitySpec cap : caps) {
+            out.writeUTF(cap.toString());
+            out.writeBoolean(cap.isOptional());
+        }
+    }
+
+    private static void writePackageDeps(DataOutputStream out, Collection<PackageDependencySpec> deps) throws IOException {
+        if(deps == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(deps.size());
+        for(PackageDependencySpec dep : deps) {
+            out.writeUTF(dep.getName());
+            out.writeBoolean(dep.isOptional());
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static FeatureSpec readSpec(DataInputStream in) throws IOException, ProvisioningDescriptionException {
+        final FeatureSpec.Builder builder = FeatureSpec.builder(in.readUTF());
+
+        int size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            final FeatureAnnotation annotation = new FeatureAnnotation(in.readUTF());
+            final int attrs = in.readInt();
+            for(int j = 0; j < attrs; ++j) {
+                annotation.setAttr(in.readUTF(), readNullable(in));
+            }
+            builder.addAnnotation(annotation);
+        }
+
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            builder.providesCapability(in.readUTF(), in.readBoolean());
+        }
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            builder.requiresCapability(in.readUTF(), in.readBoolean());
+        }
+
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            final String featureSpec = in.readUTF();
+            final int idParams = in.readInt();
+            final Map<String, String> params = new HashMap<>(idParams);
+            for(int j = 0; j < idParams; ++j) {
+                params.put(in.readUTF(), in.readUTF());
+            }
+            final FeatureId featureId = new FeatureId(featureSpec, params);
+            builder.addFeatureDep(FeatureDependencySpec.create(featureId, readNullable(in), in.readBoolean()));
+        }
+
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            final FeatureReferenceSpec.Builder refBuilder = FeatureReferenceSpec.builder(in.readUTF())
+                    .setName(in.readUTF())
+                    .setFpDep(readNullable(in))
+                    .setNillable(in.readBoolean())
+                    .setInclude(in.readBoolean());
+            final int mappings = in.readInt();
+            for(int j = 0; j < mappings; ++j) {
+                refBuilder.mapParam(in.readUTF(), in.readUTF());
+            }
+            builder.addFeatureRef(refBuilder.build());
+        }
+
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            final FeatureParameterSpec.Builder paramBuilder = FeatureParameterSpec.builder(in.readUTF());
+            if(in.readBoolean()) {
+                paramBuilder.setFeatureId();
+            }
+            if(in.readBoolean()) {
+                paramBuilder.setNillable();
+            }
+            final String defaultValue = readNullable(in);
+            if(defaultValue != null) {
+                paramBuilder.setDefaultValue(defaultValue);
+            }
+            final String type = readNullable(in);
+            if(type != null) {
+                paramBuilder.setType(type);
+            }
+            builder.addParam(paramBuilder.build());
+        }
+
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            builder.addPackageDep(in.readUTF(), in.readBoolean());
+        }
+        size = in.readInt();
+        for(int i = 0; i < size; ++i) {
+            final String fpDep = in.readUTF();
+            final int deps = in.readInt();
+            for(int j = 0; j < deps; ++j) {
+                builder.addPackageDep(fpDep, in.readUTF(), in.readBoolean());
+            }
+        }
+        return builder.build();
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.jboss.provisioning.ArtifactRepositoryManager;
 import org.jboss.provisioning.ProvisioningDescriptionException;
 import org.jboss.provisioning.Constants;
 import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.layout.FeatureSpecIndex;
 import org.jboss.provisioning.plugin.ProvisioningPlugin;
 import org.jboss.provisioning.repomanager.fs.FsTaskContext;
 import org.jboss.provisioning.repomanager.fs.FsTaskList;
@@ -75,6 +76,7 @@ public class FeaturePackBuilder {
     private Map<String, FeatureSpec> specs = Collections.emptyMap();
     private Map<String, FeatureGroupSpec> featureGroups = Collections.emptyMap();
     private FsTaskList tasks;
+    private boolean featureSpecIndex;
 
 
     protected FeaturePackBuilder(FeaturePackInstaller repo) {
@@ -168,6 +170,11 @@ public class FeaturePackBuilder {
         return this;
     }
 
+    public FeaturePackBuilder setFeatureSpecIndex(boolean featureSpecIndex) {
+        this.featureSpecIndex = featureSpecIndex;
+        return this;
+    }
+
     public FeaturePackBuilder setPluginFileName(String pluginFileName) {
         this.pluginFileName = pluginFileName;
         return this;
@@ -269,6 +276,9 @@ public class FeaturePackBuilder {
                     ensureDir(featureDir);
                     specWriter.write(spec, featureDir.resolve(Constants.SPEC_XML));
                 }
+                if(featureSpecIndex) {
+                    FeatureSpecIndex.write(specs.values(), featuresDir.resolve(Constants.FEATURE_SPEC_INDEX));
+                }
             }
 
             if(!featureGroups.isEmpty()) {
@@ -38,7 +38,7 @@ class CapabilityProviders {
 
     void add(SpecFeatures specFeatures) {
         specs = PmCollections.add(specs, specFeatures);
-        specFeatures.spec.addCapabilityProviders(this);
+        specFeatures.addCapabilityProviders(this);
     }
 
     void add(ResolvedFeature feature) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+/**
+ * Capability providers of a config indexed by the capability name.
+ *
+ * <p>Unlike a {@code Map<String, CapabilityProviders>}, the registry can be
+ * queried with any {@link CharSequence}, so capability names resolved into
+ * reusable buffers don't have to be turned into strings to be looked up.
+ * A string is created only when a capability is registered for the first time.
+ */
+class CapabilityRegistry {
+
+    private String[] names = new String[16];
+    private int[] hashes = new int[16];
+    private CapabilityProviders[] providers = new CapabilityProviders[16];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the providers of the capability or null, if the capability
+     * has not been registered.
+     */
+    CapabilityProviders get(CharSequence name) {
+        final int hash = hash(name);
+        final int mask = names.length - 1;
+        int i = hash & mask;
+        while(names[i] != null) {
+            if(hashes[i] == hash && contentEquals(names[i], name)) {
+                return providers[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the providers of the capability registering the capability first,
+     * if necessary.
+     */
+    CapabilityProviders getOrAdd(CharSequence name) {
+        final int hash = hash(name);
+        int mask = names.length - 1;
+        int i = hash & mask;
+        while(names[i] != null) {
+            if(hashes[i] == hash && contentEquals(names[i], name)) {
+                return providers[i];
+            }
+            i = (i + 1) & mask;
+        }
+        if((size + 1) * 2 > names.length) {
+            grow();
+            mask = names.length - 1;
+            i = hash & mask;
+            while(names[i] != null) {
+                i = (i + 1) & mask;
+            }
+        }
+        final CapabilityProviders capProviders = new CapabilityProviders();
+        names[i] = name.toString();
+        hashes[i] = hash;
+        providers[i] = capProviders;
+        ++size;
+        return capProviders;
+    }
+
+    private void grow() {
+        final String[] oldNames = names;
+        final int[] oldHashes = hashes;
+        final CapabilityProviders[] oldProviders = providers;
+        names = new String[oldNames.length * 2];
+        hashes = new int[names.length];
+        providers = new CapabilityProviders[names.length];
+        final int mask = names.length - 1;
+        for(int j = 0; j < oldNames.length; ++j) {
+            if(oldNames[j] == null) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while(names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = oldNames[j];
+            hashes[i] = oldHashes[j];
+            providers[i] = oldProviders[j];
+        }
+    }
+
+    // the same as String.hashCode() spreading the higher bits
+    private static int hash(CharSequence cs) {
+        int h = 0;
+        for(int i = 0; i < cs.length(); ++i) {
+            h = 31 * h + cs.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean contentEquals(String str, CharSequence cs) {
+        if(str.length() != cs.length()) {
+            return false;
+        }
+        for(int i = 0; i < str.length(); ++i) {
+            if(str.charAt(i) != cs.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,9 +19,7 @@ package org.jboss.provisioning.runtime;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 
 import org.jboss.provisioning.Errors;
 import org.jboss.provisioning.ProvisioningException;
@@ -33,44 +31,71 @@ import org.jboss.provisioning.spec.CapabilitySpec;
  */
 public class CapabilityResolver {
 
-    private ArrayList<StringBuilder> capList = null;
-    private StringBuilder capBuf;
+    // the buffers are reused for every resolved capability to avoid allocating new strings
+    private final ArrayList<StringBuilder> capBufs = new ArrayList<>(1);
+    // the number of capability names resolved from the current spec
+    private int resolved;
+    // incremented on every resolution so the callers can tell their results have been overwritten
+    private int resolutions;
 
     private ResolvedFeature feature;
     private CapabilitySpec capSpec;
 
-    List<String> resolve(CapabilitySpec capSpec, ResolvedFeature feature) throws ProvisioningException {
-        if(capSpec.isStatic()) {
-            return Collections.singletonList(capSpec.toString());
+    /**
+     * Resolves the capability names the feature provides or requires according to the spec.
+     * The resolved names are available through {@link #getResolved(int)} until the next call
+     * to this method.
+     *
+     * @param capSpec  capability spec
+     * @param feature  feature
+     * @return  the number of resolved capability names
+     * @throws ProvisioningException  in case of a failure
+     */
+    int resolve(CapabilitySpec capSpec, ResolvedFeature feature) throws ProvisioningException {
+        ++resolutions;
+        if(capBufs.isEmpty()) {
+            capBufs.add(new StringBuilder());
+        } else {
+            capBufs.get(0).setLength(0);
         }
-        if(capBuf == null) {
-            capBuf = new StringBuilder();
+        resolved = 1;
+        if(capSpec.isStatic()) {
+            capBufs.get(0).append(capSpec.toString());
+            return resolved;
         }
         this.feature = feature;
         this.capSpec = capSpec;
         try {
             if(!capSpec.resolve(this)) {
-                return Collections.emptyList();
-            }
-            if(capList == null) {
-                return capBuf.length() == 0 ? Collections.emptyList() : Collections.singletonList(capBuf.toString());
-            }
-            List<String> resolved = new ArrayList<>(capList.size());
-            for (int i = 0; i < capList.size(); ++i) {
-                resolved.add(capList.get(i).toString());
+                resolved = 0;
+            } else if(resolved == 1 && capBufs.get(0).length() == 0) {
+                resolved = 0;
             }
             return resolved;
         } catch(ProvisioningException e) {
+            resolved = 0;
             throw new ProvisioningException(Errors.failedToResolveCapability(feature, capSpec), e);
         } finally {
-            reset();
+            this.feature = null;
         }
     }
 
-    void reset() {
-        feature = null;
-        capList = null;
-        capBuf.setLength(0);
+    CharSequence getResolved(int i) {
+        if(i >= resolved) {
+            throw new IndexOutOfBoundsException(i + " >= " + resolved);
+        }
+        return capBufs.get(i);
+    }
+
+    /**
+     * Identifies the latest resolution. If the value changed since the caller's
+     * own call to {@link #resolve(CapabilitySpec, ResolvedFeature)}, the names
+     * it resolved are no longer available.
+     *
+     * @return  the number of resolutions performed so far
+     */
+    int getResolutions() {
+        return resolutions;
     }
 
     public CapabilitySpec getSpec() {
@@ -86,16 +111,13 @@ public class CapabilityResolver {
     }
 
     public CapabilityResolver add(Object elem) throws ProvisioningException {
-        if(capList == null) {
+        final String str = toStringElem(elem);
+        for(int i = 0; i < resolved; ++i) {
+            final StringBuilder capBuf = capBufs.get(i);
             if(capBuf.length() > 0) {
                 capBuf.append('.');
             }
-            capBuf.append(toStringElem(elem));
-            return this;
-        }
-        final String str = toStringElem(elem);
-        for(int i = 0; i < capList.size(); ++i) {
-            capList.get(i).append('.').append(str);
+            capBuf.append(str);
         }
         return this;
     }
@@ -108,28 +130,29 @@ public class CapabilityResolver {
             add(elems.iterator().next());
             return this;
         }
-        if(capList == null) {
+
+        final int capsTotal = resolved;
+        final int newTotal = capsTotal * elems.size();
+        capBufs.ensureCapacity(newTotal);
+        while(capBufs.size() < newTotal) {
+            capBufs.add(new StringBuilder());
+        }
+        int next = capsTotal;
+        for (int i = 0; i < capsTotal; ++i) {
+            final StringBuilder capBuf = capBufs.get(i);
             if(capBuf.length() > 0) {
                 capBuf.append('.');
             }
-            capList = new ArrayList<>(elems.size());
-            for(Object o : elems) {
-                capList.add(capBuf.length() == 0 ? new StringBuilder(toStringElem(o)) : new StringBuilder(capBuf).append(toStringElem(o)));
-            }
-            return this;
-        }
-
-        capList.ensureCapacity(capList.size() * elems.size());
-        final int capsTotal = capList.size();
-        for (int i = 0; i < capsTotal; ++i) {
-            final StringBuilder capBuf = capList.get(i).append('.');
             final Iterator<?> elemI = elems.iterator();
             final Object firstElem = elemI.next();
             while(elemI.hasNext()) {
-                capList.add(new StringBuilder(capBuf).append(toStringElem(elemI.next())));
+                final StringBuilder copy = capBufs.get(next++);
+                copy.setLength(0);
+                copy.append(capBuf).append(toStringElem(elemI.next()));
             }
             capBuf.append(toStringElem(firstElem));
         }
+        resolved = newTotal;
         return this;
     }
 
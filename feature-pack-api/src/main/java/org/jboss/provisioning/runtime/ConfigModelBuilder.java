@@ -18,9 +18,10 @@
 package org.jboss.provisioning.runtime;
 
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -160,7 +161,7 @@ public class ConfigModelBuilder implements ProvisionedConfig {
     private Map<ResolvedSpecId, SpecFeatures> featuresBySpec = new LinkedHashMap<>();
 
     private CapabilityResolver capResolver = new CapabilityResolver();
-    private Map<String, CapabilityProviders> capProviders = Collections.emptyMap();
+    private CapabilityRegistry capProviders = new CapabilityRegistry();
 
     // features in the order they should be processed by the provisioning handlers
     private List<ResolvedFeature> orderedFeatures;
@@ -168,7 +169,7 @@ public class ConfigModelBuilder implements ProvisionedConfig {
     private int featureIncludeCount = 0;
     private boolean inBatch;
 
-    private Map<ArtifactCoords.Gav, List<ResolvedFeatureGroupConfig>> fgConfigStacks = new HashMap<>();
+    private Map<ArtifactCoords.Gav, FeatureGroupFilter> fgFilters = new HashMap<>();
 
     private ConfigModelBuilder(String model, String name) {
         this.model = model;
@@ -194,13 +195,14 @@ public class ConfigModelBuilder implements ProvisionedConfig {
     }
 
     boolean pushConfig(ArtifactCoords.Gav gav, ResolvedFeatureGroupConfig fgConfig) {
-        List<ResolvedFeatureGroupConfig> fgConfigStack = fgConfigStacks.get(gav);
-        if(fgConfigStack == null) {
-            fgConfigStack = new ArrayList<>();
-            fgConfigStacks.put(gav, fgConfigStack);
-            fgConfigStack.add(fgConfig);
+        FeatureGroupFilter fgFilter = fgFilters.get(gav);
+        if(fgFilter == null) {
+            fgFilter = new FeatureGroupFilter();
+            fgFilters.put(gav, fgFilter);
+            fgFilter.push(fgConfig);
             return true;
         }
+        final List<ResolvedFeatureGroupConfig> fgConfigStack = fgFilter.stack;
         int i = fgConfigStack.size() - 1;
         while(i >= 0) {
             final ResolvedFeatureGroupConfig pushedFgConfig = fgConfigStack.get(i--);
@@ -220,19 +222,19 @@ public class ConfigModelBuilder implements ProvisionedConfig {
                 }
             }
         }
-        fgConfigStack.add(fgConfig);
+        fgFilter.push(fgConfig);
         return true;
     }
 
     ResolvedFeatureGroupConfig popConfig(ArtifactCoords.Gav gav) {
-        final List<ResolvedFeatureGroupConfig> stack = fgConfigStacks.get(gav);
-        if(stack == null) {
+        final FeatureGroupFilter fgFilter = fgFilters.get(gav);
+        if(fgFilter == null) {
             throw new IllegalStateException("Feature group stack is null for " + gav);
         }
-        if(stack.isEmpty()) {
+        if(fgFilter.isEmpty()) {
             throw new IllegalStateException("Feature group stack is empty for " + gav);
         }
-        return stack.remove(stack.size() - 1);
+        return fgFilter.pop();
     }
 
     ResolvedFeature includeFeature(ResolvedFeatureId id, ResolvedFeatureSpec spec, Map<String, Object> resolvedParams, Map<ResolvedFeatureId, FeatureDependencySpec> resolvedDeps) throws ProvisioningException {
@@ -283,35 +285,8 @@ public class ConfigModelBuilder implements ProvisionedConfig {
     }
 
     boolean isFilteredOut(ResolvedSpecId specId, final ResolvedFeatureId id) {
-        final List<ResolvedFeatureGroupConfig> fgConfigStack = fgConfigStacks.get(specId.gav);
-        if (fgConfigStack == null) {
-            return false;
-        }
-        int i = fgConfigStack.size() - 1;
-        while (i >= 0) {
-            final ResolvedFeatureGroupConfig fgConfig = fgConfigStack.get(i--);
-            if (fgConfig.inheritFeatures) {
-                if (id != null && fgConfig.excludedFeatures.contains(id)) {
-                    return true;
-                }
-                if (fgConfig.excludedSpecs.contains(specId)) {
-                    if (id != null && fgConfig.includedFeatures.containsKey(id)) {
-                        continue;
-                    }
-                    return true;
-                }
-            } else {
-                if (id != null && fgConfig.includedFeatures.containsKey(id)) {
-                    continue;
-                }
-                if (!fgConfig.includedSpecs.contains(specId)) {
-                    return true;
-                } else if (id != null && fgConfig.excludedFeatures.contains(id)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        final FeatureGroupFilter fgFilter = fgFilters.get(specId.gav);
+        return fgFilter != null && fgFilter.isFilteredOut(specId, id);
     }
 
     @Override
@@ -339,6 +314,10 @@ public class ConfigModelBuilder implements ProvisionedConfig {
         return orderedFeatures != null && !orderedFeatures.isEmpty();
     }
 
+    int getFeaturesTotal() {
+        return orderedFeatures == null ? 0 : orderedFeatures.size();
+    }
+
     @Override
     public void handle(ProvisionedConfigHandler handler) throws ProvisioningException {
         if(orderedFeatures.isEmpty()) {
@@ -385,15 +364,12 @@ public class ConfigModelBuilder implements ProvisionedConfig {
             if(features.spec.xmlSpec.providesCapabilities()) {
                 for(CapabilitySpec cap : features.spec.xmlSpec.getProvidedCapabilities()) {
                     if(cap.isStatic()) {
-                        getProviders(cap.toString(), true).add(features);
+                        capProviders.getOrAdd(cap.toString()).add(features);
                     } else {
                         for(ResolvedFeature feature : features.list) {
-                            final List<String> resolvedCaps = capResolver.resolve(cap, feature);
-                            if(resolvedCaps.isEmpty()) {
-                                continue;
-                            }
-                            for(String resolvedCap : resolvedCaps) {
-                                getProviders(resolvedCap, true).add(feature);
+                            final int resolved = capResolver.resolve(cap, feature);
+                            for(int i = 0; i < resolved; ++i) {
+                                capProviders.getOrAdd(capResolver.getResolved(i)).add(feature);
                             }
                         }
                     }
@@ -402,7 +378,7 @@ public class ConfigModelBuilder implements ProvisionedConfig {
         }
         orderedFeatures = new ArrayList<>(featuresById.size());
         for(SpecFeatures features : featuresBySpec.values()) {
-            orderFeaturesInSpec(features, false);
+            execute(new OrderSpecFeatures(features, false));
         }
 
         featuresById = Collections.emptyMap();
@@ -411,306 +387,431 @@ public class ConfigModelBuilder implements ProvisionedConfig {
         return this;
     }
 
-    private CapabilityProviders getProviders(String cap, boolean add) throws ProvisioningException {
-        CapabilityProviders providers = capProviders.get(cap);
-        if(providers != null) {
-            return providers;
+    private void ordered(ResolvedFeature feature) throws ProvisioningDescriptionException {
+        feature.ordered();
+        featuresBySpec.get(feature.spec.id).provided();
+        orderedFeatures.add(feature);
+    }
+
+    /**
+     * Executes the ordering step and the steps it initiates using an explicit
+     * stack instead of the call stack, so that long chains of feature references
+     * don't result in deep recursion.
+     *
+     * @param step  the step to execute
+     * @return  the result of the step
+     * @throws ProvisioningException  in case ordering failed
+     */
+    private List<CircularRefInfo> execute(OrderingStep step) throws ProvisioningException {
+        final Deque<OrderingStep> stack = new ArrayDeque<>();
+        stack.push(step);
+        List<CircularRefInfo> childResult = null;
+        while(!stack.isEmpty()) {
+            final OrderingStep current = stack.peek();
+            final OrderingStep next = current.proceed(childResult);
+            if(next == null) {
+                stack.pop();
+                childResult = current.result;
+            } else {
+                stack.push(next);
+                childResult = null;
+            }
         }
-        if(!add) {
-            throw new ProvisioningException(Errors.noCapabilityProvider(cap));
+        return childResult;
+    }
+
+    private static List<CircularRefInfo> addCircularRefs(List<CircularRefInfo> circularRefs, List<CircularRefInfo> added) {
+        if(added == null) {
+            return circularRefs;
         }
-        providers = new CapabilityProviders();
-        if(capProviders.isEmpty()) {
-            capProviders = Collections.singletonMap(cap, providers);
-            return providers;
+        if(circularRefs == null) {
+            return added;
         }
-        if(capProviders.size() == 1) {
-            final Map.Entry<String, CapabilityProviders> first = capProviders.entrySet().iterator().next();
-            capProviders = new HashMap<>(2);
-            capProviders.put(first.getKey(), first.getValue());
+        if(circularRefs.size() == 1) {
+            final CircularRefInfo first = circularRefs.get(0);
+            circularRefs = new ArrayList<>(1 + added.size());
+            circularRefs.add(first);
         }
-        capProviders.put(cap, providers);
-        return providers;
+        circularRefs.addAll(added);
+        return circularRefs;
+    }
+
+    /**
+     * A unit of the feature ordering which may need other units to be executed
+     * before it can complete.
+     */
+    private abstract static class OrderingStep {
+
+        /**
+         * Feature ids that form circular dependency loops or null if no loop was detected
+         */
+        List<CircularRefInfo> result;
+
+        /**
+         * Proceeds with the step.
+         *
+         * @param childResult  the result of the step returned by the previous invocation of this method
+         * @return  the step that has to be executed before this step can proceed or null if this step is complete
+         * @throws ProvisioningException  in case ordering failed
+         */
+        abstract OrderingStep proceed(List<CircularRefInfo> childResult) throws ProvisioningException;
     }
 
     /**
      * Attempts to order the features of the spec.
-     * Terminates immediately when a feature reference loop is detected.
-     *
-     * @param features  spec features
-     * @return  returns the feature id on which the feature reference loop was detected,
-     *   returns null if no loop was detected (despite whether any feature was processed or not)
-     * @throws ProvisioningException
+     * Terminates immediately when a feature reference loop is detected,
+     * in which case the result contains the feature on which the loop was detected.
      */
-    private List<CircularRefInfo> orderFeaturesInSpec(SpecFeatures features, boolean force) throws ProvisioningException {
-        if(!force) {
-            if (!features.isFree()) {
-                return null;
-            }
-            features.schedule();
+    private final class OrderSpecFeatures extends OrderingStep {
+
+        private final SpecFeatures features;
+        private final boolean force;
+        private boolean started;
+        private int i;
+
+        OrderSpecFeatures(SpecFeatures features, boolean force) {
+            this.features = features;
+            this.force = force;
         }
 
-        List<CircularRefInfo> allCircularRefs = null;
-        int i = 0;
-        while(i < features.list.size() && allCircularRefs == null) {
-            allCircularRefs = orderFeature(features.list.get(i++));
-/*            if(circularRefs != null) {
-                if(allCircularRefs == null) {
-                    allCircularRefs = circularRefs;
-                } else {
-                    if(allCircularRefs.size() == 1) {
-                        final CircularRefInfo first = allCircularRefs.get(0);
-                        allCircularRefs = new ArrayList<>(1 + circularRefs.size());
-                        allCircularRefs.add(first);
+        @Override
+        OrderingStep proceed(List<CircularRefInfo> childResult) {
+            if(!started) {
+                started = true;
+                if(!force) {
+                    if (!features.isFree()) {
+                        return null;
                     }
-                    allCircularRefs.addAll(circularRefs);
+                    features.schedule();
                 }
+            } else {
+                result = childResult;
+            }
+            if(i < features.list.size() && result == null) {
+                return new OrderFeature(features.list.get(i++));
             }
-*/        }
-        if(!force) {
-            features.free();
+            if(!force) {
+                features.free();
+            }
+            return null;
         }
-        return allCircularRefs;
     }
 
     /**
      * Attempts to order the feature. If the feature has already been scheduled
-     * for ordering but haven't been ordered yet, it means there is a circular feature
-     * reference loop, in which case the feature is not ordered and false is returned.
-     *
-     * @param feature  the feature to put in the ordered list
-     * @return  whether the feature was added to the ordered list or not
-     * @throws ProvisioningException
+     * for ordering but hasn't been ordered yet, it means there is a circular feature
+     * reference loop, in which case the feature is not ordered and the loop is
+     * returned as the result.
      */
-    private List<CircularRefInfo> orderFeature(ResolvedFeature feature) throws ProvisioningException {
-        if(feature.isOrdered()) {
-            return null;
-        }
-        if(!feature.isFree()) {
-            return Collections.singletonList(new CircularRefInfo(feature));
+    private final class OrderFeature extends OrderingStep {
+
+        private static final int START = 0;
+        private static final int CAPS = 1;
+        private static final int DEPS = 2;
+        private static final int REFS = 3;
+        private static final int LOOPS = 4;
+        private static final int ORDER_LOOPS = 5;
+
+        private final ResolvedFeature feature;
+        private int state = START;
+        private List<CircularRefInfo> circularRefs;
+
+        private Iterator<CapabilitySpec> capSpecs;
+        private CapabilitySpec capSpec;
+        private int resolvedCaps;
+        private int resolution;
+        private int providersI;
+
+        private Iterator<ResolvedFeatureId> refIds;
+        private boolean specRefs;
+
+        private Iterator<CircularRefInfo> loops;
+        private boolean orderFirstInConfig;
+        private boolean prevOrderRefSpec;
+        private boolean endBatch;
+
+        OrderFeature(ResolvedFeature feature) {
+            this.feature = feature;
+        }
+
+        @Override
+        OrderingStep proceed(List<CircularRefInfo> childResult) throws ProvisioningException {
+            while(true) {
+                switch(state) {
+                    case START:
+                        if(feature.isOrdered()) {
+                            return null;
+                        }
+                        if(!feature.isFree()) {
+                            result = Collections.singletonList(new CircularRefInfo(feature));
+                            return null;
+                        }
+                        feature.schedule();
+                        if(feature.spec.xmlSpec.requiresCapabilities()) {
+                            capSpecs = feature.spec.xmlSpec.getRequiredCapabilities().iterator();
+                            state = CAPS;
+                        } else {
+                            state = DEPS;
+                        }
+                        break;
+                    case CAPS:
+                        if(capSpec != null) {
+                            // returning from ordering the providers
+                            circularRefs = addCircularRefs(circularRefs, childResult);
+                        }
+                        final CapabilityProviders providers = nextProviders();
+                        if(providers != null) {
+                            return new OrderProviders(providers);
+                        }
+                        state = DEPS;
+                        break;
+                    case DEPS:
+                        if(!feature.deps.isEmpty()) {
+                            refIds = feature.deps.keySet().iterator();
+                            specRefs = false;
+                            state = REFS;
+                            return new OrderReferencedFeature(feature, refIds.next(), specRefs);
+                        }
+                        final List<ResolvedFeatureId> resolvedRefs = feature.resolveRefs();
+                        if (!resolvedRefs.isEmpty()) {
+                            refIds = resolvedRefs.iterator();
+                            specRefs = true;
+                            state = REFS;
+                            return new OrderReferencedFeature(feature, refIds.next(), specRefs);
+                        }
+                        state = LOOPS;
+                        break;
+                    case REFS:
+                        circularRefs = addCircularRefs(circularRefs, childResult);
+                        if(refIds.hasNext()) {
+                            return new OrderReferencedFeature(feature, refIds.next(), specRefs);
+                        }
+                        if(specRefs) {
+                            state = LOOPS;
+                            break;
+                        }
+                        final List<ResolvedFeatureId> refs = feature.resolveRefs();
+                        if (!refs.isEmpty()) {
+                            refIds = refs.iterator();
+                            specRefs = true;
+                            return new OrderReferencedFeature(feature, refIds.next(), specRefs);
+                        }
+                        state = LOOPS;
+                        break;
+                    case LOOPS:
+                        return orderLoops();
+                    case ORDER_LOOPS:
+                        if(childResult != null) {
+                            throw new IllegalStateException();
+                        }
+                        if(loops.hasNext()) {
+                            final CircularRefInfo ref = loops.next();
+                            return new OrderFeature(orderFirstInConfig ? ref.firstInConfig : ref.nextOnPath);
+                        }
+                        if(endBatch) {
+                            inBatch = false;
+                            orderedFeatures.get(orderedFeatures.size() - 1).endBatch();
+                        }
+                        orderReferencedSpec = prevOrderRefSpec;
+                        return null;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
         }
-        feature.schedule();
 
-        List<CircularRefInfo> circularRefs = null;
-        if(feature.spec.xmlSpec.requiresCapabilities()) {
-            circularRefs = orderCapabilityProviders(feature, circularRefs);
-        }
-        if(!feature.deps.isEmpty()) {
-            circularRefs = orderReferencedFeatures(feature, feature.deps.keySet(), false, circularRefs);
+        private CapabilityProviders nextProviders() throws ProvisioningException {
+            while(providersI == resolvedCaps) {
+                if(!capSpecs.hasNext()) {
+                    return null;
+                }
+                capSpec = capSpecs.next();
+                resolvedCaps = capResolver.resolve(capSpec, feature);
+                resolution = capResolver.getResolutions();
+                providersI = 0;
+            }
+            if(resolution != capResolver.getResolutions()) {
+                // the resolver has been reused while ordering the previous providers
+                capResolver.resolve(capSpec, feature);
+                resolution = capResolver.getResolutions();
+            }
+            return getProviders(capSpec, providersI++);
         }
-        List<ResolvedFeatureId> refIds = feature.resolveRefs();
-        if(!refIds.isEmpty()) {
-            circularRefs = orderReferencedFeatures(feature, refIds, true, circularRefs);
+
+        private CapabilityProviders getProviders(CapabilitySpec capSpec, int i) throws ProvisioningException {
+            final CharSequence resolvedCap = capResolver.getResolved(i);
+            final CapabilityProviders providers = capProviders.get(resolvedCap);
+            if(providers == null) {
+                throw new ProvisioningException(Errors.noCapabilityProvider(feature, capSpec, resolvedCap.toString()));
+            }
+            return providers;
         }
 
-        List<CircularRefInfo> initiatedCircularRefs = Collections.emptyList();
-        if(circularRefs != null) {
-            // there is a one or more circular feature reference loop(s)
+        private OrderingStep orderLoops() throws ProvisioningException {
+            List<CircularRefInfo> initiatedCircularRefs = Collections.emptyList();
+            if(circularRefs != null) {
+                // there is a one or more circular feature reference loop(s)
 
-            // check whether there is a loop that this feature didn't initiate
-            // if there is such a loop then propagate the loops this feature didn't start to their origins
-            if(circularRefs.size() == 1) {
-                final CircularRefInfo next = circularRefs.get(0);
-                if (next.loopedOn.id.equals(feature.id)) { // this feature initiated the loop
-                    circularRefs = Collections.emptyList();
-                    initiatedCircularRefs = Collections.singletonList(next);
-                } else {
-                    next.setNext(feature);
-                    feature.free();
-                }
-            } else {
-                final Iterator<CircularRefInfo> i = circularRefs.iterator();
-                while (i.hasNext()) {
-                    final CircularRefInfo next = i.next();
-                    if (next.loopedOn.id.equals(feature.id)) {
-                        // this feature initiated the loop
-                        i.remove();
-                        initiatedCircularRefs = PmCollections.add(initiatedCircularRefs, next);
+                // check whether there is a loop that this feature didn't initiate
+                // if there is such a loop then propagate the loops this feature didn't start to their origins
+                if(circularRefs.size() == 1) {
+                    final CircularRefInfo next = circularRefs.get(0);
+                    if (next.loopedOn.id.equals(feature.id)) { // this feature initiated the loop
+                        circularRefs = Collections.emptyList();
+                        initiatedCircularRefs = Collections.singletonList(next);
                     } else {
-                        // the feature is in the middle of the loop
                         next.setNext(feature);
                         feature.free();
                     }
+                } else {
+                    final Iterator<CircularRefInfo> i = circularRefs.iterator();
+                    while (i.hasNext()) {
+                        final CircularRefInfo next = i.next();
+                        if (next.loopedOn.id.equals(feature.id)) {
+                            // this feature initiated the loop
+                            i.remove();
+                            initiatedCircularRefs = PmCollections.add(initiatedCircularRefs, next);
+                        } else {
+                            // the feature is in the middle of the loop
+                            next.setNext(feature);
+                            feature.free();
+                        }
+                    }
+                }
+                if(!circularRefs.isEmpty()) {
+                    result = circularRefs;
+                    return null;
                 }
+                // all the loops were initiated by this feature
             }
-            if(!circularRefs.isEmpty()) {
-                return circularRefs;
+
+            if (initiatedCircularRefs.isEmpty()) {
+                ordered(feature);
+                return null;
             }
-            // all the loops were initiated by this feature
-        }
 
-        if (!initiatedCircularRefs.isEmpty()) {
-            final boolean prevOrderRefSpec = orderReferencedSpec;
+            prevOrderRefSpec = orderReferencedSpec;
             orderReferencedSpec = false;
             // sort according to the appearance in the config
             initiatedCircularRefs.sort((o1, o2) -> o1.firstInConfig.includeNo - o2.firstInConfig.includeNo);
             if(initiatedCircularRefs.get(0).firstInConfig.includeNo < feature.includeNo) {
                 feature.free();
-                for(CircularRefInfo ref : initiatedCircularRefs) {
-                    if(orderFeature(ref.firstInConfig) != null) {
-                        throw new IllegalStateException();
-                    }
-                }
+                orderFirstInConfig = true;
             } else {
-                final boolean endBatch;
-                if(inBatch) {
-                    endBatch = false;
-                } else {
+                if(!inBatch) {
                     inBatch = true;
                     feature.startBatch();
                     endBatch = true;
                 }
-                feature.ordered();
-                orderedFeatures.add(feature);
+                ordered(feature);
                 initiatedCircularRefs.sort((o1, o2) -> o1.nextOnPath.includeNo - o2.nextOnPath.includeNo);
-                for(CircularRefInfo ref : initiatedCircularRefs) {
-                    if(orderFeature(ref.nextOnPath) != null) {
-                        throw new IllegalStateException();
-                    }
-                }
-                if(endBatch) {
-                    inBatch = false;
-                    this.orderedFeatures.get(orderedFeatures.size() - 1).endBatch();
-                }
             }
-            orderReferencedSpec = prevOrderRefSpec;
-        } else {
-            feature.ordered();
-            orderedFeatures.add(feature);
+            loops = initiatedCircularRefs.iterator();
+            state = ORDER_LOOPS;
+            return proceed(null);
         }
-        return null;
     }
 
-    private List<CircularRefInfo> orderCapabilityProviders(ResolvedFeature feature, List<CircularRefInfo> circularRefs)
-            throws ProvisioningException {
-        for (CapabilitySpec capSpec : feature.spec.xmlSpec.getRequiredCapabilities()) {
-            final List<String> resolvedCaps = capResolver.resolve(capSpec, feature);
-            if (resolvedCaps.isEmpty()) {
-                continue;
-            }
-            for (String resolvedCap : resolvedCaps) {
-                final CapabilityProviders providers;
-                try {
-                    providers = getProviders(resolvedCap, false);
-                } catch (ProvisioningException e) {
-                    throw new ProvisioningException(Errors.noCapabilityProvider(feature, capSpec, resolvedCap));
-                }
-                final List<CircularRefInfo> circles = orderProviders(providers);
-                if (circularRefs == null) {
-                    circularRefs = circles;
-                } else {
-                    if (circularRefs.size() == 1) {
-                        final CircularRefInfo first = circularRefs.get(0);
-                        circularRefs = new ArrayList<>(1 + circles.size());
-                        circularRefs.add(first);
-                    }
-                    circularRefs.addAll(circles);
-                }
-            }
+    /**
+     * Attempts to order the providers of a capability until the capability is provided.
+     */
+    private final class OrderProviders extends OrderingStep {
+
+        private final CapabilityProviders providers;
+        private List<CircularRefInfo> firstLoop;
+        private int specIndex = -1;
+        private int featureIndex = -1;
+
+        OrderProviders(CapabilityProviders providers) {
+            this.providers = providers;
         }
-        return circularRefs;
-    }
 
-    private List<CircularRefInfo> orderProviders(CapabilityProviders providers) throws ProvisioningException {
-        if(!providers.isProvided()) {
-            List<CircularRefInfo> firstLoop = null;
-            if(!providers.specs.isEmpty()) {
-                for(SpecFeatures specFeatures : providers.specs) {
-                    final List<CircularRefInfo> loop = orderFeaturesInSpec(specFeatures, !specFeatures.isFree());
-                    if(providers.isProvided()) {
-                        return null;
-                    }
-                    if(firstLoop == null) {
-                        firstLoop = loop;
-                    }
+        @Override
+        OrderingStep proceed(List<CircularRefInfo> childResult) {
+            if(specIndex >= 0 || featureIndex >= 0) {
+                // returning from ordering a provider
+                if(providers.isProvided()) {
+                    result = null;
+                    return null;
                 }
-            }
-            if (!providers.features.isEmpty()) {
-                for (ResolvedFeature provider : providers.features) {
-                    final List<CircularRefInfo> loop = orderFeature(provider);
-                    if(providers.isProvided()) {
-                        return null;
-                    }
-                    if(firstLoop == null) {
-                        firstLoop = loop;
-                    }
+                if(firstLoop == null) {
+                    firstLoop = childResult;
                 }
+            } else if(providers.isProvided()) {
+                return null;
             }
-            return firstLoop;
-        }
-        return null;
-    }
-
-    /**
-     * Attempts to order the referenced features.
-     *
-     * @param feature  parent feature
-     * @param refIds  referenced features ids
-     * @param specRefs  whether these referenced features represent actual spec references or feature dependencies
-     * @return  feature ids that form circular dependency loops
-     * @throws ProvisioningException
-     */
-    private List<CircularRefInfo> orderReferencedFeatures(ResolvedFeature feature, Collection<ResolvedFeatureId> refIds, boolean specRefs, List<CircularRefInfo> circularRefs) throws ProvisioningException {
-        for(ResolvedFeatureId refId : refIds) {
-            final List<CircularRefInfo> loopedOnFeature = orderReferencedFeature(feature, refId, specRefs);
-            if(loopedOnFeature != null) {
-                if(circularRefs == null) {
-                    circularRefs = loopedOnFeature;
-                } else {
-                    if(circularRefs.size() == 1) {
-                        final CircularRefInfo first = circularRefs.get(0);
-                        circularRefs = new ArrayList<>(1 + loopedOnFeature.size());
-                        circularRefs.add(first);
-                    }
-                    circularRefs.addAll(loopedOnFeature);
-                }
+            if(++specIndex < providers.specs.size()) {
+                final SpecFeatures specFeatures = providers.specs.get(specIndex);
+                return new OrderSpecFeatures(specFeatures, !specFeatures.isFree());
+            }
+            if(++featureIndex < providers.features.size()) {
+                return new OrderFeature(providers.features.get(featureIndex));
             }
+            result = firstLoop;
+            return null;
         }
-        return circularRefs;
     }
 
     /**
-     * Attempts to order a feature reference.
-     *
-     * @param feature  parent feature
-     * @param refId  referenced feature id
-     * @param specRef  whether the referenced feature represents a spec reference or a feature dependency
-     * @return  true if the referenced feature was ordered, false if the feature was not ordered because of the circular reference loop
-     * @throws ProvisioningException
+     * Attempts to order a feature reference. If the reference is a spec reference,
+     * the features of the referenced spec are ordered first.
      */
-    private List<CircularRefInfo> orderReferencedFeature(ResolvedFeature feature, ResolvedFeatureId refId, boolean specRef) throws ProvisioningException {
-        if(orderReferencedSpec && specRef && !feature.spec.id.equals(refId.specId)) {
-            final SpecFeatures targetSpecFeatures = featuresBySpec.get(refId.specId);
-            if (targetSpecFeatures == null) {
-                throw new ProvisioningDescriptionException(Errors.unresolvedFeatureDep(feature, refId));
-            }
-            final List<CircularRefInfo> specLoops = orderFeaturesInSpec(targetSpecFeatures, false);
-            if (specLoops != null) {
-                List<CircularRefInfo> featureLoops = null;
-                for (int i = 0; i < specLoops.size(); ++i) {
-                    final CircularRefInfo specLoop = specLoops.get(i);
-                    if (specLoop.nextOnPath.id.equals(refId)) {
-                        if (featureLoops == null) {
-                            featureLoops = Collections.singletonList(specLoop);
-                        } else {
-                            if (featureLoops.size() == 1) {
-                                final CircularRefInfo first = featureLoops.get(0);
-                                featureLoops = new ArrayList<>(2);
-                                featureLoops.add(first);
+    private final class OrderReferencedFeature extends OrderingStep {
+
+        private final ResolvedFeature feature;
+        private final ResolvedFeatureId refId;
+        private final boolean specRef;
+        private int state;
+
+        OrderReferencedFeature(ResolvedFeature feature, ResolvedFeatureId refId, boolean specRef) {
+            this.feature = feature;
+            this.refId = refId;
+            this.specRef = specRef;
+        }
+
+        @Override
+        OrderingStep proceed(List<CircularRefInfo> childResult) throws ProvisioningException {
+            switch(state) {
+                case 0:
+                    if(orderReferencedSpec && specRef && !feature.spec.id.equals(refId.specId)) {
+                        final SpecFeatures targetSpecFeatures = featuresBySpec.get(refId.specId);
+                        if (targetSpecFeatures == null) {
+                            throw new ProvisioningDescriptionException(Errors.unresolvedFeatureDep(feature, refId));
+                        }
+                        state = 1;
+                        return new OrderSpecFeatures(targetSpecFeatures, false);
+                    }
+                    return orderFeature();
+                case 1:
+                    if (childResult != null) {
+                        List<CircularRefInfo> featureLoops = null;
+                        for (int i = 0; i < childResult.size(); ++i) {
+                            final CircularRefInfo specLoop = childResult.get(i);
+                            if (specLoop.nextOnPath.id.equals(refId)) {
+                                featureLoops = PmCollections.add(featureLoops == null ? Collections.emptyList() : featureLoops, specLoop);
                             }
-                            featureLoops.add(specLoop);
+                        }
+                        if (featureLoops != null) {
+                            result = featureLoops;
+                            return null;
                         }
                     }
-                }
-                if (featureLoops != null) {
-                    return featureLoops;
-                }
+                    return orderFeature();
+                case 2:
+                    result = childResult;
+                    return null;
+                default:
+                    throw new IllegalStateException();
             }
         }
-        final ResolvedFeature dep = featuresById.get(refId);
-        if (dep == null) {
-            throw new ProvisioningDescriptionException(Errors.unresolvedFeatureDep(feature, refId));
+
+        private OrderingStep orderFeature() throws ProvisioningDescriptionException {
+            final ResolvedFeature dep = featuresById.get(refId);
+            if (dep == null) {
+                throw new ProvisioningDescriptionException(Errors.unresolvedFeatureDep(feature, refId));
+            }
+            state = 2;
+            return new OrderFeature(dep);
         }
-        return orderFeature(dep);
     }
 }
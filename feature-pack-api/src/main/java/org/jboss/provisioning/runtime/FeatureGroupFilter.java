@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provisioning.util.PmCollections;
+
+/**
+ * Stack of the feature group configs pushed for a feature-pack and the feature
+ * filter compiled from them.
+ *
+ * <p>A feature is filtered out if at least one of the pushed configs filters it out,
+ * so the result does not depend on the order of the configs. This allows the
+ * filter to be updated incrementally on {@link #push(ResolvedFeatureGroupConfig)}
+ * and {@link #pop()} instead of walking the stack for every feature.
+ * A config filters out a spec if it inherits features and excludes the spec
+ * or if it does not inherit features and does not include the spec. The number
+ * of such configs is calculated per spec from the counters below. A feature
+ * of a filtered out spec is still included if every config filtering out
+ * the spec explicitly includes the feature.
+ */
+class FeatureGroupFilter {
+
+    final List<ResolvedFeatureGroupConfig> stack = new ArrayList<>();
+
+    // the number of the configs that don't inherit features
+    private int notInheriting;
+    // the number of the configs not inheriting features that include the spec
+    private Map<ResolvedSpecId, Integer> includedSpecs = Collections.emptyMap();
+    // the number of the configs inheriting features that exclude the spec
+    private Map<ResolvedSpecId, Integer> excludedSpecs = Collections.emptyMap();
+    // the number of the configs that exclude the feature regardless of its spec
+    private Map<ResolvedFeatureId, Integer> excludedFeatures = Collections.emptyMap();
+    // the configs that explicitly include the feature
+    private Map<ResolvedFeatureId, List<ResolvedFeatureGroupConfig>> includedFeatures = Collections.emptyMap();
+
+    boolean isEmpty() {
+        return stack.isEmpty();
+    }
+
+    void push(ResolvedFeatureGroupConfig fgConfig) {
+        stack.add(fgConfig);
+        if(fgConfig.inheritFeatures) {
+            for(ResolvedSpecId specId : fgConfig.excludedSpecs) {
+                excludedSpecs = increment(excludedSpecs, specId);
+            }
+            for(ResolvedFeatureId id : fgConfig.excludedFeatures) {
+                excludedFeatures = increment(excludedFeatures, id);
+            }
+        } else {
+            ++notInheriting;
+            for(ResolvedSpecId specId : fgConfig.includedSpecs) {
+                includedSpecs = increment(includedSpecs, specId);
+            }
+            for(ResolvedFeatureId id : fgConfig.excludedFeatures) {
+                if(!fgConfig.includedFeatures.containsKey(id)) {
+                    excludedFeatures = increment(excludedFeatures, id);
+                }
+            }
+        }
+        for(ResolvedFeatureId id : fgConfig.includedFeatures.keySet()) {
+            if(fgConfig.inheritFeatures && fgConfig.excludedFeatures.contains(id)) {
+                continue;
+            }
+            final List<ResolvedFeatureGroupConfig> configs = includedFeatures.get(id);
+            includedFeatures = PmCollections.put(includedFeatures, id, configs == null ? Collections.singletonList(fgConfig) : PmCollections.add(configs, fgConfig));
+        }
+    }
+
+    ResolvedFeatureGroupConfig pop() {
+        final ResolvedFeatureGroupConfig fgConfig = stack.remove(stack.size() - 1);
+        if(fgConfig.inheritFeatures) {
+            for(ResolvedSpecId specId : fgConfig.excludedSpecs) {
+                excludedSpecs = decrement(excludedSpecs, specId);
+            }
+            for(ResolvedFeatureId id : fgConfig.excludedFeatures) {
+                excludedFeatures = decrement(excludedFeatures, id);
+            }
+        } else {
+            --notInheriting;
+            for(ResolvedSpecId specId : fgConfig.includedSpecs) {
+                includedSpecs = decrement(includedSpecs, specId);
+            }
+            for(ResolvedFeatureId id : fgConfig.excludedFeatures) {
+                if(!fgConfig.includedFeatures.containsKey(id)) {
+                    excludedFeatures = decrement(excludedFeatures, id);
+                }
+            }
+        }
+        for(ResolvedFeatureId id : fgConfig.includedFeatures.keySet()) {
+            if(fgConfig.inheritFeatures && fgConfig.excludedFeatures.contains(id)) {
+                continue;
+            }
+            final List<ResolvedFeatureGroupConfig> configs = includedFeatures.get(id);
+            if(configs.size() == 1) {
+                includedFeatures = remove(includedFeatures, id);
+            } else {
+                final List<ResolvedFeatureGroupConfig> remaining = new ArrayList<>(configs);
+                remaining.remove(remaining.lastIndexOf(fgConfig));
+                includedFeatures = PmCollections.put(includedFeatures, id, remaining.size() == 1 ? Collections.singletonList(remaining.get(0)) : remaining);
+            }
+        }
+        return fgConfig;
+    }
+
+    boolean isFilteredOut(ResolvedSpecId specId, ResolvedFeatureId id) {
+        if(id != null && excludedFeatures.containsKey(id)) {
+            return true;
+        }
+        final int filteringSpec = notInheriting - count(includedSpecs, specId) + count(excludedSpecs, specId);
+        if(filteringSpec == 0) {
+            return false;
+        }
+        if(id == null) {
+            return true;
+        }
+        final List<ResolvedFeatureGroupConfig> configs = includedFeatures.get(id);
+        if(configs == null || configs.size() < filteringSpec) {
+            return true;
+        }
+        int including = 0;
+        for(ResolvedFeatureGroupConfig fgConfig : configs) {
+            if(fgConfig.inheritFeatures ? fgConfig.excludedSpecs.contains(specId) : !fgConfig.includedSpecs.contains(specId)) {
+                ++including;
+            }
+        }
+        return including < filteringSpec;
+    }
+
+    private static <K> int count(Map<K, Integer> counters, K key) {
+        final Integer count = counters.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static <K> Map<K, Integer> increment(Map<K, Integer> counters, K key) {
+        return PmCollections.put(counters, key, count(counters, key) + 1);
+    }
+
+    private static <K> Map<K, Integer> decrement(Map<K, Integer> counters, K key) {
+        final int count = count(counters, key);
+        if(count == 1) {
+            return remove(counters, key);
+        }
+        return PmCollections.put(counters, key, count - 1);
+    }
+
+    private static <K, V> Map<K, V> remove(Map<K, V> map, K key) {
+        if(map.size() == 1) {
+            return Collections.emptyMap();
+        }
+        map.remove(key);
+        return map;
+    }
+}
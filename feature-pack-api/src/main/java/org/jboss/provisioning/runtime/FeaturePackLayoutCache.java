@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jboss.provisioning.Errors;
+import org.jboss.provisioning.MessageWriter;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.util.HashUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PmCollections;
+import org.jboss.provisioning.util.ZipUtils;
+
+/**
+ * Persistent cache of unpacked feature-pack layouts shared by provisioning runs.
+ *
+ * <p>Entries are keyed by the checksum of the feature-pack zip. For an entry
+ * {@code <hash>} the cache directory contains
+ * <ul>
+ * <li>{@code <hash>/} the unpacked feature-pack;</li>
+ * <li>{@code <hash>.lock} the lock file, its last modified time is the time
+ * the entry was last used;</li>
+ * <li>{@code <hash>.size} the size of the unpacked feature-pack in bytes.</li>
+ * </ul>
+ *
+ * <p>An entry is unpacked into a temporary directory first and then atomically
+ * renamed into place, so a partially unpacked feature-pack is never visible.
+ * While an entry is in use, a shared lock is held on its lock file, eviction
+ * requires an exclusive one. This keeps the cache safe to use from concurrent
+ * processes. Once the total size of the entries exceeds the limit, the least
+ * recently used entries that are not in use are evicted.
+ *
+ * <p>The cached layouts are shared and must be treated as read-only.
+ */
+class FeaturePackLayoutCache {
+
+    private static final String LOCK = ".lock";
+    private static final String SIZE = ".size";
+    private static final String TMP_PREFIX = ".tmp-";
+    // leftovers of interrupted processes older than this are removed
+    private static final long TMP_EXPIRATION = 24 * 60 * 60 * 1000L;
+
+    /**
+     * File locks are held on behalf of the whole JVM, so the entries locked
+     * by the current JVM are reference counted here.
+     */
+    private static final Map<Path, EntryLock> LOCKED = new HashMap<>();
+
+    private static class EntryLock {
+        final FileChannel channel;
+        final FileLock lock;
+        int refs = 1;
+
+        EntryLock(FileChannel channel, FileLock lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+
+    private final Path dir;
+    private final long maxSize;
+    private final MessageWriter messageWriter;
+    private List<Path> acquired = Collections.emptyList();
+
+    FeaturePackLayoutCache(Path dir, long maxSize, MessageWriter messageWriter) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.messageWriter = messageWriter;
+    }
+
+    /**
+     * Returns the cached layout of the feature-pack zip unpacking it into
+     * the cache first, if necessary. The entry remains locked until
+     * {@link #release()} is called.
+     *
+     * @param zip  feature-pack zip
+     * @return  directory containing the unpacked feature-pack
+     * @throws ProvisioningException  in case of a failure
+     */
+    Path get(Path zip) throws ProvisioningException {
+        final String hash;
+        try {
+            hash = HashUtils.hashFile(zip);
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.hashCalculation(zip), e);
+        }
+        final Path lockFile = dir.resolve(hash + LOCK);
+        lock(lockFile);
+        synchronized(this) {
+            acquired = PmCollections.add(acquired, lockFile);
+        }
+        try {
+            Files.setLastModifiedTime(lockFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // not critical, only affects the eviction order
+        }
+
+        final Path entryDir = dir.resolve(hash);
+        if(Files.exists(entryDir)) {
+            return entryDir;
+        }
+        final Path tmpDir = dir.resolve(TMP_PREFIX + UUID.randomUUID());
+        try {
+            ZipUtils.unzip(zip, tmpDir);
+            IoUtils.writeFile(dir.resolve(hash + SIZE), String.valueOf(sizeOf(tmpDir)));
+            Files.move(tmpDir, entryDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if(!Files.exists(entryDir)) {
+                throw new ProvisioningException("Failed to unzip " + zip + " to " + entryDir, e);
+            }
+            // another process has published the entry first
+        } finally {
+            IoUtils.recursiveDelete(tmpDir);
+        }
+        return entryDir;
+    }
+
+    /**
+     * Releases the entries acquired through this instance and evicts
+     * the least recently used entries if the cache exceeds its size limit.
+     */
+    void release() {
+        final List<Path> released;
+        synchronized(this) {
+            released = acquired;
+            acquired = Collections.emptyList();
+        }
+        if(released.isEmpty()) {
+            return;
+        }
+        for(Path lockFile : released) {
+            unlock(lockFile);
+        }
+        try {
+            evict();
+        } catch (IOException e) {
+            messageWriter.error(e, "Failed to clean up the feature-pack layout cache " + dir);
+        }
+    }
+
+    private void lock(Path lockFile) throws ProvisioningException {
+        synchronized (LOCKED) {
+            final EntryLock entryLock = LOCKED.get(lockFile);
+            if(entryLock != null) {
+                ++entryLock.refs;
+                return;
+            }
+            FileChannel channel = null;
+            try {
+                Files.createDirectories(dir);
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+                LOCKED.put(lockFile, new EntryLock(channel, channel.lock(0, Long.MAX_VALUE, true)));
+            } catch (IOException e) {
+                if(channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e1) {
+                    }
+                }
+                throw new ProvisioningException("Failed to lock " + lockFile, e);
+            }
+        }
+    }
+
+    private static void unlock(Path lockFile) {
+        synchronized (LOCKED) {
+            final EntryLock entryLock = LOCKED.get(lockFile);
+            if(entryLock == null || --entryLock.refs > 0) {
+                return;
+            }
+            LOCKED.remove(lockFile);
+            try {
+                entryLock.lock.release();
+                entryLock.channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void evict() throws IOException {
+        final List<Path> entries = new ArrayList<>();
+        final Map<Path, Long> lastUsed = new HashMap<>();
+        final Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        final long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                final String name = p.getFileName().toString();
+                if (name.startsWith(TMP_PREFIX)) {
+                    if (now - Files.getLastModifiedTime(p).toMillis() > TMP_EXPIRATION) {
+                        IoUtils.recursiveDelete(p);
+                    }
+                    continue;
+                }
+                if (!name.endsWith(LOCK)) {
+                    continue;
+                }
+                final Path entryDir = dir.resolve(name.substring(0, name.length() - LOCK.length()));
+                if (!Files.exists(entryDir)) {
+                    continue;
+                }
+                final long size = readSize(entryDir);
+                entries.add(entryDir);
+                lastUsed.put(entryDir, Files.getLastModifiedTime(p).toMillis());
+                sizes.put(entryDir, size);
+                total += size;
+            }
+        }
+        if(total <= maxSize) {
+            return;
+        }
+        entries.sort((e1, e2) -> Long.compare(lastUsed.get(e1), lastUsed.get(e2)));
+        for(Path entryDir : entries) {
+            if(evict(entryDir)) {
+                total -= sizes.get(entryDir);
+                if(total <= maxSize) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean evict(Path entryDir) throws IOException {
+        final Path lockFile = dir.resolve(entryDir.getFileName() + LOCK);
+        final Path trash = dir.resolve(TMP_PREFIX + UUID.randomUUID());
+        synchronized (LOCKED) {
+            if(LOCKED.containsKey(lockFile)) {
+                return false;
+            }
+            try(FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+                final FileLock lock = channel.tryLock();
+                if(lock == null) {
+                    return false;
+                }
+                try {
+                    Files.move(entryDir, trash, StandardCopyOption.ATOMIC_MOVE);
+                    Files.deleteIfExists(dir.resolve(entryDir.getFileName() + SIZE));
+                } catch(AtomicMoveNotSupportedException e) {
+                    return false;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        messageWriter.verbose("Evicting %s from the feature-pack layout cache", entryDir.getFileName());
+        IoUtils.recursiveDelete(trash);
+        return true;
+    }
+
+    private long readSize(Path entryDir) throws IOException {
+        final Path sizeFile = dir.resolve(entryDir.getFileName() + SIZE);
+        if(Files.exists(sizeFile)) {
+            try {
+                return Long.parseLong(new String(Files.readAllBytes(sizeFile), StandardCharsets.UTF_8).trim());
+            } catch(NumberFormatException e) {
+            }
+        }
+        return sizeOf(entryDir);
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        final long[] size = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+}
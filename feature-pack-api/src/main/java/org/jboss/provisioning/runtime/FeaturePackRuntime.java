@@ -18,6 +18,8 @@
 package org.jboss.provisioning.runtime;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -28,6 +30,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.jboss.provisioning.ArtifactCoords;
 import org.jboss.provisioning.ArtifactCoords.Gav;
@@ -36,16 +43,21 @@ import org.jboss.provisioning.Errors;
 import org.jboss.provisioning.ProvisioningDescriptionException;
 import org.jboss.provisioning.ProvisioningException;
 import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.PackageConfig;
+import org.jboss.provisioning.layout.FeatureSpecIndex;
 import org.jboss.provisioning.spec.ConfigId;
 import org.jboss.provisioning.spec.FeatureGroupSpec;
 import org.jboss.provisioning.spec.FeaturePackSpec;
 import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.spec.PackageSpec;
 import org.jboss.provisioning.state.FeaturePack;
 import org.jboss.provisioning.type.ParameterTypeProvider;
 import org.jboss.provisioning.type.builtin.BuiltInParameterTypeProvider;
+import org.jboss.provisioning.util.LayoutUtils;
 import org.jboss.provisioning.util.PmCollections;
 import org.jboss.provisioning.xml.FeatureGroupXmlParser;
 import org.jboss.provisioning.xml.FeatureSpecXmlParser;
+import org.jboss.provisioning.xml.PackageXmlParser;
 
 /**
  *
@@ -55,20 +67,32 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
 
     static class Builder {
         final ArtifactCoords.Gav gav;
-        final Path dir;
+        Path dir;
         final FeaturePackSpec spec;
         boolean ordered;
         private Map<String, ResolvedFeatureSpec> featureSpecs = null;
         private Map<String, FeatureGroupSpec> fgSpecs = null;
+        private FeatureSpecIndex specIndex;
+        private boolean specIndexLoaded;
+        private Map<String, Future<PackageSpec>> prefetchedPkgSpecs;
 
         Map<String, PackageRuntime.Builder> pkgBuilders = Collections.emptyMap();
-        private List<String> pkgOrder = new ArrayList<>();
+        List<String> pkgOrder = new ArrayList<>();
 
         private List<FeaturePackConfig> fpConfigStack = Collections.emptyList();
         private List<List<FeaturePackConfig>> recordedStacks = Collections.emptyList();
         private FeaturePackConfig blockedPackageInheritance;
         private FeaturePackConfig blockedConfigInheritance;
 
+        // the number of the configs on the stack including/excluding the package
+        private final Map<String, Integer> includedPackages = new HashMap<>();
+        private final Map<String, Integer> excludedPackages = new HashMap<>();
+        // config decisions for the current state of the stack, reset on push and pop
+        private Map<ConfigId, Boolean> excludedConfigs = Collections.emptyMap();
+        private Map<ConfigId, Boolean> includedConfigs = Collections.emptyMap();
+        private Map<ConfigId, Boolean> excludedModelOnlyConfigs = Collections.emptyMap();
+        private Map<ConfigId, Boolean> includedModelOnlyConfigs = Collections.emptyMap();
+
         ParameterTypeProvider featureParamTypeProvider = BuiltInParameterTypeProvider.getInstance();
 
         private Builder(ArtifactCoords.Gav gav, FeaturePackSpec spec, Path dir) {
@@ -87,7 +111,79 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
             pkgOrder.add(name);
         }
 
-        FeatureGroupSpec getFeatureGroupSpec(String name) throws ProvisioningException {
+        Map<String, ResolvedFeatureSpec> getResolvedFeatureSpecs() {
+            return featureSpecs;
+        }
+
+        /**
+         * Initializes the packages and the feature specs from a previous resolution
+         * of the same provisioning config instead of resolving them.
+         */
+        void restore(ResolutionCache.FeaturePackEntry entry) throws ProvisioningDescriptionException {
+            for(PackageSpec pkgSpec : entry.packages) {
+                newPackage(pkgSpec.getName(), LayoutUtils.getPackageDir(dir, pkgSpec.getName(), false)).spec = pkgSpec;
+                addPackage(pkgSpec.getName());
+            }
+            featureSpecs = entry.featureSpecs;
+        }
+
+        /**
+         * Submits the parsing of all the package specs of the feature-pack to the executor.
+         * The specs are then picked up by loadPackageSpec as the packages are resolved.
+         */
+        void prefetchPackageSpecs(ExecutorService executor) throws ProvisioningException {
+            final Path pkgsDir = dir.resolve(Constants.PACKAGES);
+            if(!Files.exists(pkgsDir)) {
+                return;
+            }
+            final Map<String, Future<PackageSpec>> pkgSpecs = new HashMap<>();
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(pkgsDir)) {
+                for(Path pkgDir : stream) {
+                    if(!Files.isDirectory(pkgDir)) {
+                        continue;
+                    }
+                    String name = pkgDir.getFileName().toString();
+                    if(name.endsWith("/")) {
+                        // zip file system directories
+                        name = name.substring(0, name.length() - 1);
+                    }
+                    final Path pkgXml = pkgsDir.resolve(name).resolve(Constants.PACKAGE_XML);
+                    pkgSpecs.put(name, executor.submit(() -> parsePackageSpec(pkgXml)));
+                }
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.readDirectory(pkgsDir), e);
+            } catch (RejectedExecutionException e) {
+                // the prefetching has been stopped, the specs will be parsed as the packages are resolved
+                return;
+            }
+            prefetchedPkgSpecs = pkgSpecs;
+        }
+
+        PackageSpec loadPackageSpec(String name, Path pkgDir) throws ProvisioningException {
+            if(prefetchedPkgSpecs != null) {
+                final Future<PackageSpec> pkgSpec = prefetchedPkgSpecs.get(name);
+                if(pkgSpec != null) {
+                    return ProvisioningRuntimeBuilder.getResult(pkgSpec);
+                }
+            }
+            if(!Files.exists(pkgDir)) {
+                throw new ProvisioningDescriptionException(Errors.packageNotFound(gav, name));
+            }
+            return parsePackageSpec(pkgDir.resolve(Constants.PACKAGE_XML));
+        }
+
+        private static PackageSpec parsePackageSpec(Path pkgXml) throws ProvisioningException {
+            if(!Files.exists(pkgXml)) {
+                throw new ProvisioningDescriptionException(Errors.pathDoesNotExist(pkgXml));
+            }
+            try(BufferedReader reader = Files.newBufferedReader(pkgXml)) {
+                return PackageXmlParser.getInstance().parse(reader);
+            } catch (IOException | XMLStreamException e) {
+                throw new ProvisioningException(Errors.parseXml(pkgXml), e);
+            }
+        }
+
+        synchronized FeatureGroupSpec getFeatureGroupSpec(String name) throws ProvisioningException {
             FeatureGroupSpec fgSpec = null;
             if(fgSpecs == null) {
                 fgSpecs = new HashMap<>();
@@ -109,7 +205,7 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
             return new FeatureGroupSpec(fgSpec);
         }
 
-        ResolvedFeatureSpec getFeatureSpec(String name) throws ProvisioningException {
+        synchronized ResolvedFeatureSpec getFeatureSpec(String name) throws ProvisioningException {
             ResolvedFeatureSpec resolvedSpec = null;
             if(featureSpecs == null) {
                 featureSpecs = new HashMap<>();
@@ -117,15 +213,24 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
                 resolvedSpec = featureSpecs.get(name);
             }
             if(resolvedSpec == null) {
-                final Path specXml = dir.resolve(Constants.FEATURES).resolve(name).resolve(Constants.SPEC_XML);
-                if(!Files.exists(specXml)) {
-                    throw new ProvisioningDescriptionException("Failed to locate feature spec '" + name + "' in " + gav);
+                if(!specIndexLoaded) {
+                    final Path indexFile = dir.resolve(Constants.FEATURES).resolve(Constants.FEATURE_SPEC_INDEX);
+                    if(Files.exists(indexFile)) {
+                        specIndex = FeatureSpecIndex.load(indexFile);
+                    }
+                    specIndexLoaded = true;
                 }
-                final FeatureSpec xmlSpec;
-                try(BufferedReader reader = Files.newBufferedReader(specXml)) {
-                    xmlSpec = FeatureSpecXmlParser.getInstance().parse(reader);
-                } catch (Exception e) {
-                    throw new ProvisioningDescriptionException(Errors.parseXml(specXml), e);
+                FeatureSpec xmlSpec = specIndex == null ? null : specIndex.getSpec(name);
+                if(xmlSpec == null) {
+                    final Path specXml = dir.resolve(Constants.FEATURES).resolve(name).resolve(Constants.SPEC_XML);
+                    if(!Files.exists(specXml)) {
+                        throw new ProvisioningDescriptionException("Failed to locate feature spec '" + name + "' in " + gav);
+                    }
+                    try(BufferedReader reader = Files.newBufferedReader(specXml)) {
+                        xmlSpec = FeatureSpecXmlParser.getInstance().parse(reader);
+                    } catch (Exception e) {
+                        throw new ProvisioningDescriptionException(Errors.parseXml(specXml), e);
+                    }
                 }
 
                 resolvedSpec = new ResolvedFeatureSpec(new ResolvedSpecId(gav, xmlSpec.getName()), featureParamTypeProvider, xmlSpec);
@@ -148,6 +253,17 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
 
         void push(FeaturePackConfig fpConfig) {
             fpConfigStack = PmCollections.add(fpConfigStack, fpConfig);
+            if(fpConfig.hasIncludedPackages()) {
+                for(PackageConfig pkgConfig : fpConfig.getIncludedPackages()) {
+                    includedPackages.merge(pkgConfig.getName(), 1, Integer::sum);
+                }
+            }
+            if(fpConfig.hasExcludedPackages()) {
+                for(String pkgName : fpConfig.getExcludedPackages()) {
+                    excludedPackages.merge(pkgName, 1, Integer::sum);
+                }
+            }
+            resetConfigDecisions();
             if(blockedPackageInheritance == null && !fpConfig.isInheritPackages()) {
                 blockedPackageInheritance = fpConfig;
             }
@@ -167,6 +283,17 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
                     fpConfigStack = Collections.singletonList(fpConfigStack.get(0));
                 }
             }
+            if(popped.hasIncludedPackages()) {
+                for(PackageConfig pkgConfig : popped.getIncludedPackages()) {
+                    includedPackages.computeIfPresent(pkgConfig.getName(), (name, count) -> count == 1 ? null : count - 1);
+                }
+            }
+            if(popped.hasExcludedPackages()) {
+                for(String pkgName : popped.getExcludedPackages()) {
+                    excludedPackages.computeIfPresent(pkgName, (name, count) -> count == 1 ? null : count - 1);
+                }
+            }
+            resetConfigDecisions();
             if(popped == blockedPackageInheritance) {
                 blockedPackageInheritance = null;
             }
@@ -176,6 +303,13 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
             return popped;
         }
 
+        private void resetConfigDecisions() {
+            excludedConfigs = Collections.emptyMap();
+            includedConfigs = Collections.emptyMap();
+            excludedModelOnlyConfigs = Collections.emptyMap();
+            includedModelOnlyConfigs = Collections.emptyMap();
+        }
+
         void recordConfigStack() {
             final List<FeaturePackConfig> copy;
             if(fpConfigStack.isEmpty()) {
@@ -204,27 +338,23 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
         }
 
         boolean isPackageIncluded(String packageName) {
-            int i = fpConfigStack.size() - 1;
-            while(i >= 0) {
-                final FeaturePackConfig fpConfig = fpConfigStack.get(i--);
-                if(fpConfig.isPackageIncluded(packageName)) {
-                    return true;
-                }
-            }
-            return false;
+            return includedPackages.containsKey(packageName);
         }
 
         boolean isPackageExcluded(String packageName) {
-            int i = fpConfigStack.size() - 1;
-            while(i >= 0) {
-                if(fpConfigStack.get(i--).isPackageExcluded(packageName)) {
-                    return true;
-                }
-            }
-            return false;
+            return excludedPackages.containsKey(packageName);
         }
 
         boolean isModelOnlyConfigExcluded(ConfigId configId) {
+            Boolean excluded = excludedModelOnlyConfigs.get(configId);
+            if(excluded == null) {
+                excluded = resolveModelOnlyConfigExcluded(configId);
+                excludedModelOnlyConfigs = PmCollections.put(excludedModelOnlyConfigs, configId, excluded);
+            }
+            return excluded;
+        }
+
+        private boolean resolveModelOnlyConfigExcluded(ConfigId configId) {
             int i = fpConfigStack.size() - 1;
             while(i >= 0) {
                 final FeaturePackConfig fpConfig = fpConfigStack.get(i--);
@@ -239,6 +369,15 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
         }
 
         boolean isConfigExcluded(ConfigId configId) {
+            Boolean excluded = excludedConfigs.get(configId);
+            if(excluded == null) {
+                excluded = resolveConfigExcluded(configId);
+                excludedConfigs = PmCollections.put(excludedConfigs, configId, excluded);
+            }
+            return excluded;
+        }
+
+        private boolean resolveConfigExcluded(ConfigId configId) {
             int i = fpConfigStack.size() - 1;
             while(i >= 0) {
                 final FeaturePackConfig fpConfig = fpConfigStack.get(i--);
@@ -256,6 +395,15 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
         }
 
         boolean isModelOnlyConfigIncluded(ConfigId config) {
+            Boolean included = includedModelOnlyConfigs.get(config);
+            if(included == null) {
+                included = resolveModelOnlyConfigIncluded(config);
+                includedModelOnlyConfigs = PmCollections.put(includedModelOnlyConfigs, config, included);
+            }
+            return included;
+        }
+
+        private boolean resolveModelOnlyConfigIncluded(ConfigId config) {
             int i = fpConfigStack.size() - 1;
             while(i >= 0) {
                 final FeaturePackConfig fpConfig = fpConfigStack.get(i--);
@@ -270,6 +418,15 @@ public class FeaturePackRuntime implements FeaturePack<PackageRuntime> {
         }
 
         boolean isConfigIncluded(ConfigId config) {
+            Boolean included = includedConfigs.get(config);
+            if(included == null) {
+                included = resolveConfigIncluded(config);
+                includedConfigs = PmCollections.put(includedConfigs, config, included);
+            }
+            return included;
+        }
+
+        private boolean resolveConfigIncluded(ConfigId config) {
             int i = fpConfigStack.size() - 1;
             while(i >= 0) {
                 final FeaturePackConfig fpConfig = fpConfigStack.get(i--);
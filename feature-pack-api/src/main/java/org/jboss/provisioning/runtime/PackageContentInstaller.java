@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.provisioning.Errors;
+import org.jboss.provisioning.MessageWriter;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.util.FeaturePackInstallException;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathFilter;
+
+/**
+ * Copies the content of the packages into the staged directory.
+ *
+ * <p>The copying happens in two phases. First, the content directories are
+ * walked in the installation order to collect the directories to create and
+ * the files to copy, a file of a package installed later replacing the file
+ * with the same path of a package installed earlier. Then the directories are
+ * created and the files are copied concurrently by a bounded pool of workers.
+ *
+ * <p>The files accepted by the link filter, if one is set, are hard-linked
+ * from the feature-pack layout instead of being copied.
+ */
+class PackageContentInstaller {
+
+    private static final int COPY_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
+    private static class CopyTask {
+        final String pkgName;
+        final Path src;
+        final long size;
+
+        CopyTask(String pkgName, Path src, long size) {
+            this.pkgName = pkgName;
+            this.src = src;
+            this.size = size;
+        }
+    }
+
+    private final Path target;
+    private final MessageWriter messageWriter;
+    private final PathFilter linkFilter;
+    // set once linking fails, e.g. the layout is on a different file system
+    private volatile boolean linkFailed;
+    private final AtomicInteger linked = new AtomicInteger();
+    private final Set<String> dirs = new LinkedHashSet<>();
+    private final Map<String, CopyTask> files = new LinkedHashMap<>();
+
+    PackageContentInstaller(Path target, MessageWriter messageWriter) {
+        this(target, messageWriter, null);
+    }
+
+    PackageContentInstaller(Path target, MessageWriter messageWriter, PathFilter linkFilter) {
+        this.target = target;
+        this.messageWriter = messageWriter;
+        this.linkFilter = linkFilter;
+    }
+
+    /**
+     * Adds the content of the package. The packages are expected to be added
+     * in the installation order.
+     */
+    void addPackage(String pkgName, Path contentDir) throws ProvisioningException {
+        try {
+            Files.walkFileTree(contentDir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                            final String relative = contentDir.relativize(dir).toString();
+                            if(files.containsKey(relative)) {
+                                throw new FileAlreadyExistsException(target.resolve(relative).toString());
+                            }
+                            dirs.add(relative);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            final String relative = contentDir.relativize(file).toString();
+                            if(dirs.contains(relative)) {
+                                throw new FileAlreadyExistsException(target.resolve(relative).toString());
+                            }
+                            // remove first to keep the order in which the files were last added
+                            files.remove(relative);
+                            files.put(relative, new CopyTask(pkgName, file, attrs.size()));
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            throw new FeaturePackInstallException(Errors.packageContentCopyFailed(pkgName), e);
+        }
+    }
+
+    void install() throws ProvisioningException {
+        if(files.isEmpty() && dirs.isEmpty()) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        for(String dir : dirs) {
+            final Path targetDir = target.resolve(dir);
+            try {
+                Files.createDirectories(targetDir);
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.mkdirs(targetDir), e);
+            }
+        }
+
+        long bytes = 0;
+        if(files.size() == 1 || COPY_THREADS == 1) {
+            for(Map.Entry<String, CopyTask> entry : files.entrySet()) {
+                bytes += copy(entry.getKey(), entry.getValue());
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(COPY_THREADS, files.size()));
+            try {
+                final List<Future<Long>> futures = new ArrayList<>(files.size());
+                for (Map.Entry<String, CopyTask> entry : files.entrySet()) {
+                    futures.add(executor.submit(() -> copy(entry.getKey(), entry.getValue())));
+                }
+                for (Future<Long> future : futures) {
+                    bytes += future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProvisioningException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof ProvisioningException) {
+                    throw (ProvisioningException) cause;
+                }
+                throw new ProvisioningException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if(messageWriter.isVerboseEnabled()) {
+            final long time = Math.max(System.currentTimeMillis() - startTime, 1);
+            messageWriter.verbose("Copied %d file(s), %d byte(s) of package content in %d ms (%.1f MB/s)",
+                    files.size(), bytes, time, bytes * 1000.0 / time / (1024 * 1024));
+            if(linkFilter != null) {
+                messageWriter.verbose("Hard-linked %d of the files", linked.get());
+            }
+        }
+    }
+
+    private long copy(String relative, CopyTask task) throws ProvisioningException {
+        try {
+            if(linkFilter != null && !linkFailed && linkFilter.accept(Paths.get(relative))) {
+                if(IoUtils.linkOrCopy(task.src, target.resolve(relative))) {
+                    linked.incrementAndGet();
+                } else {
+                    linkFailed = true;
+                }
+            } else {
+                Files.copy(task.src, target.resolve(relative), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new FeaturePackInstallException(Errors.packageContentCopyFailed(task.pkgName), e);
+        }
+        return task.size;
+    }
+}
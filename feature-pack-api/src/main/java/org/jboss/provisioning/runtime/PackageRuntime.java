@@ -30,7 +30,7 @@ import org.jboss.provisioning.state.ProvisionedPackage;
 public class PackageRuntime implements ProvisionedPackage {
 
     static class Builder {
-        final Path dir;
+        Path dir;
         PackageSpec spec;
 
         private Builder(String name, Path dir) {
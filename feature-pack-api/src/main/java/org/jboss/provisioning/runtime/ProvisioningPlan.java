@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+import java.util.List;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.util.PmCollections;
+
+/**
+ * The result of the resolution of a provisioning config performed without
+ * extracting or copying any feature-pack content. It describes the feature-packs
+ * and the packages that would be installed and the configs that would be generated.
+ */
+public class ProvisioningPlan {
+
+    public static class PackagePlan {
+
+        private final String name;
+        private final int filesTotal;
+        private final long size;
+
+        PackagePlan(String name, int filesTotal, long size) {
+            this.name = name;
+            this.filesTotal = filesTotal;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return  the number of content files of the package
+         */
+        public int getFilesTotal() {
+            return filesTotal;
+        }
+
+        /**
+         * @return  the total size of the content files of the package in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return name + " files=" + filesTotal + " size=" + size;
+        }
+    }
+
+    public static class FeaturePackPlan {
+
+        private final ArtifactCoords.Gav gav;
+        private final List<PackagePlan> packages;
+        private final int filesTotal;
+        private final long size;
+
+        FeaturePackPlan(ArtifactCoords.Gav gav, List<PackagePlan> packages) {
+            this.gav = gav;
+            this.packages = PmCollections.unmodifiable(packages);
+            int filesTotal = 0;
+            long size = 0;
+            for(PackagePlan pkg : packages) {
+                filesTotal += pkg.filesTotal;
+                size += pkg.size;
+            }
+            this.filesTotal = filesTotal;
+            this.size = size;
+        }
+
+        public ArtifactCoords.Gav getGav() {
+            return gav;
+        }
+
+        /**
+         * @return  the packages to be installed in the order they were resolved
+         */
+        public List<PackagePlan> getPackages() {
+            return packages;
+        }
+
+        public int getFilesTotal() {
+            return filesTotal;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return gav + " packages=" + packages.size() + " files=" + filesTotal + " size=" + size;
+        }
+    }
+
+    public static class ConfigPlan {
+
+        private final String model;
+        private final String name;
+        private final int featuresTotal;
+
+        ConfigPlan(String model, String name, int featuresTotal) {
+            this.model = model;
+            this.name = name;
+            this.featuresTotal = featuresTotal;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFeaturesTotal() {
+            return featuresTotal;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder();
+            if(model != null) {
+                buf.append("model=").append(model).append(' ');
+            }
+            if(name != null) {
+                buf.append("name=").append(name).append(' ');
+            }
+            return buf.append("features=").append(featuresTotal).toString();
+        }
+    }
+
+    private final List<FeaturePackPlan> featurePacks;
+    private final List<ConfigPlan> configs;
+
+    ProvisioningPlan(List<FeaturePackPlan> featurePacks, List<ConfigPlan> configs) {
+        this.featurePacks = PmCollections.unmodifiable(featurePacks);
+        this.configs = PmCollections.unmodifiable(configs);
+    }
+
+    /**
+     * @return  the feature-packs to be installed in the order their content would be installed
+     */
+    public List<FeaturePackPlan> getFeaturePacks() {
+        return featurePacks;
+    }
+
+    public FeaturePackPlan getFeaturePack(ArtifactCoords.Gav gav) {
+        for(FeaturePackPlan fp : featurePacks) {
+            if(fp.gav.equals(gav)) {
+                return fp;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasConfigs() {
+        return !configs.isEmpty();
+    }
+
+    public List<ConfigPlan> getConfigs() {
+        return configs;
+    }
+
+    public int getFilesTotal() {
+        int total = 0;
+        for(FeaturePackPlan fp : featurePacks) {
+            total += fp.filesTotal;
+        }
+        return total;
+    }
+
+    public long getSize() {
+        long total = 0;
+        for(FeaturePackPlan fp : featurePacks) {
+            total += fp.size;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        for(FeaturePackPlan fp : featurePacks) {
+            buf.append(fp).append(System.lineSeparator());
+            for(PackagePlan pkg : fp.packages) {
+                buf.append("  ").append(pkg).append(System.lineSeparator());
+            }
+        }
+        for(ConfigPlan config : configs) {
+            buf.append("config ").append(config).append(System.lineSeparator());
+        }
+        return buf.toString();
+    }
+}
@@ -19,16 +19,28 @@ package org.jboss.provisioning.runtime;
 
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import javax.xml.stream.XMLStreamException;
@@ -43,12 +55,16 @@ import org.jboss.provisioning.ProvisioningException;
 import org.jboss.provisioning.config.FeaturePackConfig;
 import org.jboss.provisioning.config.ProvisioningConfig;
 import org.jboss.provisioning.diff.FileSystemDiffResult;
+import org.jboss.provisioning.diff.ReferenceContent;
 import org.jboss.provisioning.repomanager.FeaturePackBuilder;
 import org.jboss.provisioning.repomanager.FeaturePackRepositoryManager;
 import org.jboss.provisioning.state.FeaturePackSet;
 import org.jboss.provisioning.state.ProvisionedConfig;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.HashAlgorithm;
 import org.jboss.provisioning.util.FeaturePackInstallException;
 import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathFilter;
 import org.jboss.provisioning.util.PathsUtils;
 import org.jboss.provisioning.util.PmCollections;
 import org.jboss.provisioning.xml.ProvisionedStateXmlWriter;
@@ -66,22 +82,123 @@ import org.jboss.provisioning.spec.FeaturePackSpec;
  */
 public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>, java.io.Closeable {
 
+    private static final int INSTALL_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // the siblings of the installation directory are named .<installation-dir-name><suffix><uuid>
+    private static final String BACKUP_DIR_SUFFIX = "-backup-";
+    private static final String STAGED_DIR_SUFFIX = "-staged-";
+
     public static void install(ProvisioningRuntime runtime) throws ProvisioningException {
+        stage(runtime);
+        commit(runtime, runtime.stagedDir, runtime.installDir);
+    }
+
+    /**
+     * Installs the same provisioned state into each of the target directories.
+     * The content is installed and the plug-ins are executed only once,
+     * into the staged directory of the runtime. The existing installations
+     * that are re-provisioned incrementally are synced with the staged directory
+     * and the other targets get copies of it in parallel, except for one of them,
+     * preferably the installation directory of the runtime, into which the staged
+     * directory itself is moved once the rest of the targets are done.
+     *
+     * @param runtime  provisioning runtime
+     * @param installDirs  target installation directories
+     * @throws ProvisioningException  in case the installation into any of the directories fails
+     */
+    public static void install(ProvisioningRuntime runtime, Collection<Path> installDirs) throws ProvisioningException {
+        stage(runtime);
+        if(installDirs.isEmpty()) {
+            return;
+        }
+        // the same directory listed more than once, possibly as different paths, is installed once
+        final Set<Path> targetDirs = new LinkedHashSet<>(installDirs.size());
+        for(Path installDir : installDirs) {
+            targetDirs.add(installDir.toAbsolutePath().normalize());
+        }
+        for(Path installDir : targetDirs) {
+            recoverInstallation(installDir, runtime.stagedDir, runtime.messageWriter);
+        }
+        // the target that takes over the staged directory
+        Path stagedTarget = null;
+        for(Path installDir : targetDirs) {
+            if(!isSyncable(runtime, installDir)) {
+                if(stagedTarget == null || runtime.installDir != null && installDir.equals(runtime.installDir.toAbsolutePath().normalize())) {
+                    stagedTarget = installDir;
+                }
+            }
+        }
+        if(stagedTarget != null) {
+            targetDirs.remove(stagedTarget);
+        }
+        if(!targetDirs.isEmpty()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(targetDirs.size(), INSTALL_THREADS));
+            try {
+                final List<Future<?>> futures = new ArrayList<>(targetDirs.size());
+                for(Path installDir : targetDirs) {
+                    futures.add(executor.submit(() -> {
+                        installCopy(runtime, installDir);
+                        return null;
+                    }));
+                }
+                ProvisioningException error = null;
+                for(Future<?> future : futures) {
+                    try {
+                        ProvisioningRuntimeBuilder.getResult(future);
+                    } catch(ProvisioningException e) {
+                        if(error == null) {
+                            error = e;
+                        } else {
+                            error.addSuppressed(e);
+                        }
+                    }
+                }
+                if(error != null) {
+                    throw error;
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+        if(stagedTarget != null) {
+            commit(runtime, runtime.stagedDir, stagedTarget);
+        }
+    }
+
+    private static void installCopy(ProvisioningRuntime runtime, Path installDir) throws ProvisioningException {
+        if(isSyncable(runtime, installDir)) {
+            // the sync only reads from the staged directory, so it can be shared by the targets
+            commit(runtime, runtime.stagedDir, installDir);
+            return;
+        }
+        // a private copy of the staged directory, preferably next to the target, which is then moved into place
+        final Path copyDir = newStagedDir(runtime.workDir.resolve(UUID.randomUUID().toString()), installDir);
+        try {
+            IoUtils.copy(runtime.stagedDir, copyDir, runtime.linkFilter);
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.copyFile(runtime.stagedDir, copyDir), e);
+        }
+        try {
+            commit(runtime, copyDir, installDir);
+        } finally {
+            IoUtils.recursiveDelete(copyDir);
+        }
+    }
+
+    private static void stage(ProvisioningRuntime runtime) throws ProvisioningException {
         // copy package content
+        final PackageContentInstaller contentInstaller = new PackageContentInstaller(runtime.stagedDir, runtime.messageWriter, runtime.linkFilter);
         for(FeaturePackRuntime fp : runtime.fpRuntimes.values()) {
             final ArtifactCoords.Gav fpGav = fp.getGav();
             runtime.messageWriter.verbose("Installing %s", fpGav);
             for(PackageRuntime pkg : fp.getPackages()) {
                 final Path pkgSrcDir = pkg.getContentDir();
                 if (Files.exists(pkgSrcDir)) {
-                    try {
-                        IoUtils.copy(pkgSrcDir, runtime.stagedDir);
-                    } catch (IOException e) {
-                        throw new FeaturePackInstallException(Errors.packageContentCopyFailed(pkg.getName()), e);
-                    }
+                    contentInstaller.addPackage(pkg.getName(), pkgSrcDir);
                 }
             }
         }
+        contentInstaller.install();
 
         // execute the plug-ins
         runtime.executePlugins();
@@ -99,15 +216,171 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
         } catch (XMLStreamException | IOException e) {
             throw new FeaturePackInstallException(Errors.writeFile(PathsUtils.getProvisionedStateXml(runtime.stagedDir)), e);
         }
-        runtime.messageWriter.verbose("Moving the provisioned installation from the staged directory to %s", runtime.installDir);
-        // copy from the staged to the target installation directory
-        if (Files.exists(runtime.installDir)) {
-            IoUtils.recursiveDelete(runtime.installDir);
+
+        // hash the content for the manifest, which is written once the content is in place
+        try {
+            runtime.contentHashes = IoUtils.listContents(runtime.stagedDir, PathFilter.DEFAULT, runtime.contentHashAlgorithm);
+        } catch (IOException e) {
+            throw new FeaturePackInstallException(Errors.hashCalculation(runtime.stagedDir), e);
+        }
+    }
+
+    /**
+     * Records the content manifest of the installation, the sizes and the last
+     * modified times are read from the installation directory since they may
+     * differ from the staged ones when the content was copied into place.
+     */
+    private static void writeContentManifest(ProvisioningRuntime runtime, Path installDir) throws ProvisioningException {
+        try {
+            ContentManifest.write(installDir, runtime.contentHashes, runtime.contentHashAlgorithm);
+        } catch (IOException e) {
+            throw new FeaturePackInstallException(Errors.writeFile(PathsUtils.getContentManifest(installDir)), e);
+        }
+    }
+
+    private static boolean isSyncable(ProvisioningRuntime runtime, Path installDir) {
+        return runtime.incremental && Files.exists(PathsUtils.getProvisionedStateDir(installDir));
+    }
+
+    /**
+     * Replaces the installation directory with the content of the staged directory.
+     */
+    private static void commit(ProvisioningRuntime runtime, Path stagedDir, Path installDir) throws ProvisioningException {
+        if(isSyncable(runtime, installDir)) {
+            runtime.messageWriter.verbose("Applying the changes from the staged directory to %s", installDir);
+            try {
+                syncInstallation(runtime, stagedDir, installDir);
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.copyFile(stagedDir, installDir), e);
+            }
+            writeContentManifest(runtime, installDir);
+            return;
+        }
+
+        runtime.messageWriter.verbose("Moving the provisioned installation from the staged directory to %s", installDir);
+        if(swapInstallation(stagedDir, installDir)) {
+            writeContentManifest(runtime, installDir);
+            return;
+        }
+        // the staged directory could not be renamed into place, copy it instead
+        if (Files.exists(installDir)) {
+            IoUtils.recursiveDelete(installDir);
         }
         try {
-            IoUtils.copy(runtime.stagedDir, runtime.installDir);
+            IoUtils.copy(stagedDir, installDir);
         } catch (IOException e) {
-            throw new ProvisioningException(Errors.copyFile(runtime.stagedDir, runtime.installDir));
+            throw new ProvisioningException(Errors.copyFile(stagedDir, installDir));
+        }
+        writeContentManifest(runtime, installDir);
+    }
+
+    /**
+     * Replaces the installation directory with the staged one by renaming
+     * the directories. The existing installation is first renamed to a backup
+     * sibling, which is restored if the staged directory could not be moved
+     * into its place and removed otherwise.
+     *
+     * @return  true if the staged directory has been renamed into place,
+     * false if it has to be copied instead (e.g. it is located on a different file system)
+     */
+    private static boolean swapInstallation(Path stagedDir, Path targetDir) throws ProvisioningException {
+        final Path installDir = targetDir.toAbsolutePath();
+        final Path parentDir = installDir.getParent();
+        if(parentDir == null) {
+            return false;
+        }
+        Path backupDir = null;
+        if(Files.exists(installDir)) {
+            backupDir = parentDir.resolve('.' + installDir.getFileName().toString() + BACKUP_DIR_SUFFIX + UUID.randomUUID());
+            try {
+                Files.move(installDir, backupDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException e) {
+                // e.g. the installation directory is a mount point
+                return false;
+            }
+        } else {
+            try {
+                Files.createDirectories(parentDir);
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.mkdirs(parentDir), e);
+            }
+        }
+        try {
+            Files.move(stagedDir, installDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            if(backupDir != null) {
+                try {
+                    Files.move(backupDir, installDir, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e1) {
+                    throw new ProvisioningException(Errors.moveFile(backupDir, installDir), e1);
+                }
+            }
+            return false;
+        }
+        if(backupDir != null) {
+            IoUtils.recursiveDelete(backupDir);
+        }
+        return true;
+    }
+
+    /**
+     * Brings the existing installation in line with the staged one touching
+     * only the paths that were added, removed or changed. The staged content
+     * is compared to the installation by the hashes, the hashes of the installed
+     * files whose size and last modified time match the content manifest of the
+     * installation are taken from the manifest instead of reading the files.
+     */
+    private static void syncInstallation(ProvisioningRuntime runtime, Path stagedDir, Path installDir) throws IOException {
+        final Map<Path, String> installed = IoUtils.listContents(installDir, PathFilter.DEFAULT, runtime.contentHashAlgorithm);
+        int removed = 0;
+        for(Map.Entry<Path, String> entry : installed.entrySet()) {
+            if(runtime.contentHashes.containsKey(entry.getKey())) {
+                continue;
+            }
+            Path target = installDir.resolve(entry.getKey().toString());
+            if(Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                IoUtils.recursiveDelete(target);
+            } else {
+                Files.deleteIfExists(target);
+            }
+            ++removed;
+            // remove the directories left empty unless they are a part of the staged content
+            target = target.getParent();
+            while(!target.equals(installDir)
+                    && !runtime.contentHashes.containsKey(installDir.relativize(target))
+                    && isEmptyDirectory(target)) {
+                Files.delete(target);
+                target = target.getParent();
+            }
+        }
+        int updated = 0;
+        for(Map.Entry<Path, String> entry : runtime.contentHashes.entrySet()) {
+            if(entry.getValue().equals(installed.get(entry.getKey()))) {
+                continue;
+            }
+            final Path file = stagedDir.resolve(entry.getKey().toString());
+            final Path target = installDir.resolve(entry.getKey().toString());
+            if(Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                IoUtils.recursiveDelete(target);
+            }
+            if(Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                Files.deleteIfExists(target);
+                Files.createDirectories(target);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            ++updated;
+        }
+        runtime.messageWriter.verbose("Updated %d and removed %d path(s) in %s", updated, removed, installDir);
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        if(!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            return !stream.iterator().hasNext();
         }
     }
 
@@ -166,6 +439,14 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
     private FileSystemDiffResult diff = FileSystemDiffResult.empty();
     private ClassLoader pluginsClassLoader;
     private final String operation;
+    private final boolean incremental;
+    private final FeaturePackLayoutCache layoutCache;
+    private final PathFilter linkFilter;
+    private final HashAlgorithm contentHashAlgorithm;
+    private Map<Path, String> contentHashes = Collections.emptyMap();
+    private final ContentManifest referenceManifest;
+    private final ReferenceContent.PristineInstallation pristineInstallation;
+    private ReferenceContent referenceContent;
 
     ProvisioningRuntime(ProvisioningRuntimeBuilder builder, final MessageWriter messageWriter) throws ProvisioningException {
         this.startTime = builder.startTime;
@@ -174,6 +455,12 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
         this.pluginsDir = builder.pluginsDir;
         this.fpRuntimes = builder.fpRuntimes;
         this.operation = builder.operation;
+        this.incremental = builder.incremental;
+        this.layoutCache = builder.layoutCache;
+        this.linkFilter = builder.linkFilter;
+        this.contentHashAlgorithm = builder.contentHashAlgorithm == null ? ContentManifest.DEFAULT_HASH_ALGORITHM : builder.contentHashAlgorithm;
+        this.referenceManifest = builder.referenceManifest;
+        this.pristineInstallation = builder.pristineInstallation;
 
         if(!builder.anonymousConfigs.isEmpty()) {
             for(ProvisionedConfig config : builder.anonymousConfigs) {
@@ -205,7 +492,10 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
 
         this.workDir = builder.workDir;
         this.installDir = builder.installDir;
-        this.stagedDir = workDir.resolve("staged");
+        if(installDir != null) {
+            recoverInstallation(installDir, null, messageWriter);
+        }
+        this.stagedDir = newStagedDir(workDir, installDir);
         try {
             Files.createDirectories(stagedDir);
         } catch(IOException e) {
@@ -216,6 +506,84 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
         this.messageWriter = messageWriter;
     }
 
+    /**
+     * Cleans up after a provisioning of the installation that was interrupted,
+     * e.g. the process was killed. If the installation directory was renamed
+     * to a backup but the staged directory was not moved into its place,
+     * the installation is restored from the backup. The backups of the replaced
+     * installations and the staged directories left next to the installation
+     * directory are removed.
+     *
+     * @param installDir  installation directory
+     * @param messageWriter  message writer
+     * @throws ProvisioningException  in case the installation could not be restored
+     */
+    public static void recoverInstallation(Path installDir, MessageWriter messageWriter) throws ProvisioningException {
+        recoverInstallation(installDir, null, messageWriter);
+    }
+
+    private static void recoverInstallation(Path installDir, Path stagedDir, MessageWriter messageWriter) throws ProvisioningException {
+        final Path home = installDir.toAbsolutePath().normalize();
+        final Path parentDir = home.getParent();
+        if(parentDir == null || home.getFileName() == null || !Files.isDirectory(parentDir)) {
+            return;
+        }
+        final String backupPrefix = '.' + home.getFileName().toString() + BACKUP_DIR_SUFFIX;
+        final String stagedPrefix = '.' + home.getFileName().toString() + STAGED_DIR_SUFFIX;
+        final List<Path> backups = new ArrayList<>(1);
+        final List<Path> staged = new ArrayList<>(1);
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(parentDir)) {
+            for(Path sibling : stream) {
+                final String name = sibling.getFileName().toString();
+                if(name.startsWith(backupPrefix)) {
+                    backups.add(sibling);
+                } else if(name.startsWith(stagedPrefix) && !sibling.equals(stagedDir)) {
+                    staged.add(sibling);
+                }
+            }
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.readDirectory(parentDir), e);
+        }
+        for(Path backup : backups) {
+            if(Files.exists(home)) {
+                messageWriter.verbose("Removing %s left by an interrupted provisioning", backup);
+                IoUtils.recursiveDelete(backup);
+                continue;
+            }
+            messageWriter.print("Restoring %s from %s left by an interrupted provisioning", home, backup);
+            try {
+                Files.move(backup, home, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.moveFile(backup, home), e);
+            }
+        }
+        for(Path dir : staged) {
+            messageWriter.verbose("Removing %s left by an interrupted provisioning", dir);
+            IoUtils.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * The staged directory is preferably created next to the installation directory,
+     * i.e. on the same file system, so that it could be simply renamed into place
+     * once the provisioning is complete. Since it becomes the installation directory,
+     * it is created with the default permissions, unlike a temporary directory
+     * which would be accessible only by its owner.
+     */
+    private static Path newStagedDir(Path workDir, Path installDir) {
+        if(installDir != null) {
+            final Path parentDir = installDir.toAbsolutePath().getParent();
+            if(parentDir != null && Files.isWritable(parentDir)) {
+                try {
+                    return Files.createDirectory(parentDir.resolve('.' + installDir.getFileName().toString() + STAGED_DIR_SUFFIX + UUID.randomUUID()));
+                } catch (IOException e) {
+                    // fallback to the work dir
+                }
+            }
+        }
+        return workDir.resolve("staged");
+    }
+
     private ClassLoader getPluginClassloader() throws ProvisioningException {
         if(pluginsClassLoader != null) {
             return pluginsClassLoader;
@@ -277,6 +645,57 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
         this.installDir = installDir;
     }
 
+    /**
+     * The expected content of the pristine installation computed from the recorded
+     * content manifest and the feature-pack layouts. It is available only if the
+     * runtime was built with a reference manifest, in which case the pristine
+     * installation is provisioned on disk only if the runtime was built with
+     * a pristine installation and a file without a pristine source in the layouts,
+     * e.g. generated by a plug-in, has to be diffed.
+     *
+     * @return  the reference content or null if the runtime was built without a reference manifest
+     * @throws ProvisioningException  in case the package content could not be read
+     */
+    public ReferenceContent getReferenceContent() throws ProvisioningException {
+        if(referenceContent != null || referenceManifest == null) {
+            return referenceContent;
+        }
+        final ReferenceContent.Builder builder = ReferenceContent.builder(referenceManifest.getHashes(), referenceManifest.getHashAlgorithm())
+                .setPristineInstallation(pristineInstallation);
+        // the directories created by the plug-ins
+        for(Path dir : referenceManifest.getDirectories()) {
+            builder.addDir(dir);
+        }
+        // the packages are walked in the installation order, a later package replacing the files of an earlier one
+        for(FeaturePackRuntime fp : fpRuntimes.values()) {
+            for(PackageRuntime pkg : fp.getPackages()) {
+                final Path contentDir = pkg.getContentDir();
+                if(!Files.exists(contentDir)) {
+                    continue;
+                }
+                try {
+                    Files.walkFileTree(contentDir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                            new SimpleFileVisitor<Path>() {
+                                @Override
+                                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                                    builder.addDir(contentDir.relativize(dir));
+                                    return FileVisitResult.CONTINUE;
+                                }
+                                @Override
+                                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                                    builder.addFile(contentDir.relativize(file), file);
+                                    return FileVisitResult.CONTINUE;
+                                }
+                            });
+                } catch (IOException e) {
+                    throw new ProvisioningException(Errors.readDirectory(contentDir), e);
+                }
+            }
+        }
+        referenceContent = builder.build();
+        return referenceContent;
+    }
+
     /**
      * Configuration of the installation to be provisioned.
      *
@@ -452,6 +871,10 @@ public class ProvisioningRuntime implements FeaturePackSet<FeaturePackRuntime>,
     @Override
     public void close() throws IOException {
         IoUtils.recursiveDelete(workDir);
+        IoUtils.recursiveDelete(stagedDir);
+        if(layoutCache != null) {
+            layoutCache.release();
+        }
         if (messageWriter.isVerboseEnabled()) {
             final long time = System.currentTimeMillis() - startTime;
             final long seconds = time / 1000;
@@ -19,11 +19,18 @@ package org.jboss.provisioning.runtime;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,6 +38,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -49,6 +60,7 @@ import org.jboss.provisioning.config.FeaturePackConfig;
 import org.jboss.provisioning.config.IncludedConfig;
 import org.jboss.provisioning.config.PackageConfig;
 import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.diff.ReferenceContent;
 import org.jboss.provisioning.spec.ConfigId;
 import org.jboss.provisioning.spec.ConfigSpec;
 import org.jboss.provisioning.spec.FeatureDependencySpec;
@@ -60,13 +72,16 @@ import org.jboss.provisioning.spec.FeaturePackDependencySpec;
 import org.jboss.provisioning.spec.FeatureReferenceSpec;
 import org.jboss.provisioning.spec.PackageDepsSpec;
 import org.jboss.provisioning.spec.PackageDependencySpec;
+import org.jboss.provisioning.spec.PackageSpec;
 import org.jboss.provisioning.spec.SpecId;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.HashAlgorithm;
 import org.jboss.provisioning.util.IoUtils;
 import org.jboss.provisioning.util.LayoutUtils;
+import org.jboss.provisioning.util.PathFilter;
 import org.jboss.provisioning.util.PmCollections;
 import org.jboss.provisioning.util.ZipUtils;
 import org.jboss.provisioning.xml.FeaturePackXmlParser;
-import org.jboss.provisioning.xml.PackageXmlParser;
 import org.jboss.provisioning.ArtifactRepositoryManager;
 
 
@@ -84,6 +99,9 @@ public class ProvisioningRuntimeBuilder {
         return new ProvisioningRuntimeBuilder(messageWriter);
     }
 
+    private static final int PREFETCH_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    private static final int CONFIG_THREADS = Runtime.getRuntime().availableProcessors();
+
     private static void mkdirs(final Path path) throws ProvisioningException {
         try {
             Files.createDirectories(path);
@@ -95,14 +113,23 @@ public class ProvisioningRuntimeBuilder {
     final long startTime;
     String encoding;
     String operation;
+    boolean incremental;
     ArtifactRepositoryManager artifactResolver;
     ProvisioningConfig config;
     Path installDir;
     final Path workDir;
     final Path layoutDir;
     Path pluginsDir = null;
+    FeaturePackLayoutCache layoutCache;
+    PathFilter linkFilter;
+    ContentManifest referenceManifest;
+    ReferenceContent.PristineInstallation pristineInstallation;
+    HashAlgorithm contentHashAlgorithm;
+    private ResolutionCache resolutionCache;
+    private List<FileSystem> openZips = Collections.emptyList();
 
     private final Map<ArtifactCoords.Ga, FeaturePackRuntime.Builder> fpRtBuilders = new HashMap<>();
+    private Map<ArtifactCoords.Gav, Future<FeaturePackRuntime.Builder>> prefetchedFps = Collections.emptyMap();
     private final MessageWriter messageWriter;
     private List<FeaturePackRuntime.Builder> fpRtBuildersOrdered = new ArrayList<>();
     List<ConfigModelBuilder> anonymousConfigs = Collections.emptyList();
@@ -154,16 +181,122 @@ public class ProvisioningRuntimeBuilder {
         return this;
     }
 
-    public ProvisioningRuntime build() throws ProvisioningException {
+    public ProvisioningRuntimeBuilder setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
 
-        final Collection<FeaturePackConfig> fpConfigs = config.getFeaturePacks();
-        for (FeaturePackConfig fpConfig : fpConfigs) {
-            loadFpBuilder(fpConfig.getGav()).push(fpConfig);
+    /**
+     * Enables the persistent cache of unpacked feature-pack layouts.
+     *
+     * @param layoutCacheDir  cache directory or null to unpack the feature-packs
+     * into the work directory of the runtime
+     * @param maxSize  the size in bytes beyond which the least recently used entries are evicted
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setLayoutCache(Path layoutCacheDir, long maxSize) {
+        this.layoutCache = layoutCacheDir == null ? null : new FeaturePackLayoutCache(layoutCacheDir, maxSize, messageWriter);
+        return this;
+    }
+
+    /**
+     * Enables hard-linking of the package content instead of copying it.
+     * The linked files share the content with the feature-pack layout
+     * (which is preferably kept in the persistent layout cache), so
+     * the filter should only accept the files that are never modified
+     * in place, neither by the plug-ins nor by the users of the installation.
+     *
+     * @param linkFilter  accepts the paths, relative to the installation directory,
+     * of the files to hard-link, null to copy all the content
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setLinkFilter(PathFilter linkFilter) {
+        this.linkFilter = linkFilter;
+        return this;
+    }
+
+    /**
+     * Sets the content manifest recorded when the installation being diffed
+     * was provisioned. With the manifest, the diff plug-ins compare the
+     * installation against the expected content computed from the manifest
+     * and the feature-pack layouts instead of a pristine installation
+     * provisioned on disk.
+     *
+     * @param referenceManifest  recorded content manifest of the installation
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setReferenceManifest(ContentManifest referenceManifest) {
+        this.referenceManifest = referenceManifest;
+        return this;
+    }
+
+    /**
+     * Sets the pristine installation the files without a pristine source
+     * in the feature-pack layouts, e.g. the ones generated by the plug-ins,
+     * are diffed against when the runtime was built with a reference manifest.
+     * The pristine installation is provisioned only if such a file was modified.
+     * If not set, these files are reported as modified binary files.
+     *
+     * @param pristineInstallation  provisions the pristine installation on demand
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setPristineInstallation(ReferenceContent.PristineInstallation pristineInstallation) {
+        this.pristineInstallation = pristineInstallation;
+        return this;
+    }
+
+    /**
+     * Sets the algorithm the installed content is hashed with for the content
+     * manifest. The hashes are only compared with the ones computed locally
+     * to detect changes, so they don't have to be cryptographic.
+     *
+     * @param contentHashAlgorithm  content hash algorithm, null for the default one
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setContentHashAlgorithm(HashAlgorithm contentHashAlgorithm) {
+        this.contentHashAlgorithm = contentHashAlgorithm;
+        return this;
+    }
+
+    public ProvisioningRuntime build() throws ProvisioningException {
+        try {
+            return doBuild();
+        } catch(ProvisioningException | RuntimeException | Error e) {
+            if(layoutCache != null) {
+                layoutCache.release();
+            }
+            throw e;
+        } finally {
+            closeZips();
         }
-        for (FeaturePackConfig fpConfig : fpConfigs) {
-            processFpConfig(fpConfig);
+    }
+
+    /**
+     * Resolves the feature-packs, the packages and the configs the same way
+     * {@link #build()} does but without extracting and copying any feature-pack
+     * content. The feature-pack metadata is read directly from the artifacts
+     * (unless the layout cache is enabled) and the work directory is removed
+     * before the method returns.
+     *
+     * @return  the provisioning plan
+     * @throws ProvisioningException  in case the resolution fails
+     */
+    public ProvisioningPlan plan() throws ProvisioningException {
+        try {
+            resolve();
+            return newPlan();
+        } finally {
+            closeZips();
+            if(layoutCache != null) {
+                layoutCache.release();
+            }
+            IoUtils.recursiveDelete(workDir);
         }
-        buildConfigs();
+    }
+
+    private ProvisioningRuntime doBuild() throws ProvisioningException {
+
+        resolve();
 
         switch(fpRtBuildersOrdered.size()) {
             case 0: {
@@ -172,6 +305,7 @@ public class ProvisioningRuntimeBuilder {
             }
             case 1: {
                 final FeaturePackRuntime.Builder builder = fpRtBuildersOrdered.get(0);
+                extractLayout(builder);
                 copyResources(builder);
                 fpRuntimes = Collections.singletonMap(builder.gav, builder.build());
                 break;
@@ -179,6 +313,7 @@ public class ProvisioningRuntimeBuilder {
             default: {
                 fpRuntimes = new LinkedHashMap<>(fpRtBuildersOrdered.size());
                 for(FeaturePackRuntime.Builder builder : fpRtBuildersOrdered) {
+                    extractLayout(builder);
                     copyResources(builder);
                     fpRuntimes.put(builder.gav, builder.build());
                 }
@@ -189,17 +324,145 @@ public class ProvisioningRuntimeBuilder {
         return new ProvisioningRuntime(this, messageWriter);
     }
 
-    private void buildConfigs() throws ProvisioningException {
-        if(!anonymousConfigs.isEmpty()) {
-            for(ConfigModelBuilder config : anonymousConfigs) {
-                config.build(this);
+    /**
+     * Enables the reuse of the results of the previous resolutions of the same
+     * provisioning config against the same feature-pack artifacts.
+     *
+     * @param resolutionCache  resolution cache or null to always resolve the config
+     * @return  this builder
+     */
+    public ProvisioningRuntimeBuilder setResolutionCache(ResolutionCache resolutionCache) {
+        this.resolutionCache = resolutionCache;
+        return this;
+    }
+
+    private void resolve() throws ProvisioningException {
+        if(resolutionCache == null) {
+            doResolve();
+            return;
+        }
+        if(restoreResolved()) {
+            return;
+        }
+        doResolve();
+        cacheResolved();
+    }
+
+    private boolean restoreResolved() throws ProvisioningException {
+        final ResolutionCache.Entry entry = resolutionCache.get(config);
+        if(entry == null) {
+            return false;
+        }
+        for(Map.Entry<ArtifactCoords.Gav, String> checksum : entry.checksums.entrySet()) {
+            if(!checksum.getValue().equals(resolutionCache.getChecksum(artifactResolver.resolve(checksum.getKey().toArtifactCoords())))) {
+                resolutionCache.remove(config);
+                return false;
+            }
+        }
+        for(ResolutionCache.FeaturePackEntry fpEntry : entry.featurePacks) {
+            final FeaturePackRuntime.Builder fp = loadFpBuilder(fpEntry.gav);
+            fp.restore(fpEntry);
+            orderFpRtBuilder(fp);
+        }
+        anonymousConfigs = entry.anonymousConfigs;
+        nameOnlyConfigs = entry.nameOnlyConfigs;
+        modelOnlyConfigs = entry.modelOnlyConfigs;
+        namedModelConfigs = entry.namedModelConfigs;
+        resolutionCache.hit();
+        return true;
+    }
+
+    private void cacheResolved() throws ProvisioningException {
+        final Map<ArtifactCoords.Gav, String> checksums = new HashMap<>(fpRtBuilders.size());
+        for(FeaturePackRuntime.Builder fp : fpRtBuilders.values()) {
+            checksums.put(fp.gav, resolutionCache.getChecksum(artifactResolver.resolve(fp.gav.toArtifactCoords())));
+        }
+        final List<ResolutionCache.FeaturePackEntry> fpEntries = new ArrayList<>(fpRtBuildersOrdered.size());
+        for(FeaturePackRuntime.Builder fp : fpRtBuildersOrdered) {
+            final List<PackageSpec> packages = new ArrayList<>(fp.pkgOrder.size());
+            for(String pkgName : fp.pkgOrder) {
+                packages.add(fp.pkgBuilders.get(pkgName).spec);
             }
+            fpEntries.add(new ResolutionCache.FeaturePackEntry(fp.gav, packages, fp.getResolvedFeatureSpecs()));
         }
-        if(!nameOnlyConfigs.isEmpty()) {
-            for(Map.Entry<String, ConfigModelBuilder> entry : nameOnlyConfigs.entrySet()) {
-                entry.getValue().build(this);
+        resolutionCache.put(config, new ResolutionCache.Entry(checksums, fpEntries, this));
+    }
+
+    private void doResolve() throws ProvisioningException {
+        final Collection<FeaturePackConfig> fpConfigs = config.getFeaturePacks();
+        prefetchFeaturePacks(fpConfigs);
+        for (FeaturePackConfig fpConfig : fpConfigs) {
+            loadFpBuilder(fpConfig.getGav()).push(fpConfig);
+        }
+        for (FeaturePackConfig fpConfig : fpConfigs) {
+            processFpConfig(fpConfig);
+        }
+        buildConfigs();
+    }
+
+    private ProvisioningPlan newPlan() throws ProvisioningException {
+        List<ProvisioningPlan.FeaturePackPlan> fpPlans = Collections.emptyList();
+        for(FeaturePackRuntime.Builder fp : fpRtBuildersOrdered) {
+            List<ProvisioningPlan.PackagePlan> pkgPlans = Collections.emptyList();
+            for(String pkgName : fp.pkgOrder) {
+                pkgPlans = PmCollections.add(pkgPlans, newPackagePlan(pkgName, fp.pkgBuilders.get(pkgName).dir.resolve(Constants.CONTENT)));
+            }
+            fpPlans = PmCollections.add(fpPlans, new ProvisioningPlan.FeaturePackPlan(fp.gav, pkgPlans));
+        }
+        // the same order in which the configs are added to the runtime
+        List<ProvisioningPlan.ConfigPlan> configPlans = Collections.emptyList();
+        for(ConfigModelBuilder config : anonymousConfigs) {
+            configPlans = PmCollections.add(configPlans, newConfigPlan(config));
+        }
+        for(ConfigModelBuilder config : nameOnlyConfigs.values()) {
+            configPlans = PmCollections.add(configPlans, newConfigPlan(config));
+        }
+        for(ConfigModelBuilder config : modelOnlyConfigs.values()) {
+            configPlans = PmCollections.add(configPlans, newConfigPlan(config));
+        }
+        for(Map<String, ConfigModelBuilder> namedConfigs : namedModelConfigs.values()) {
+            for(ConfigModelBuilder config : namedConfigs.values()) {
+                configPlans = PmCollections.add(configPlans, newConfigPlan(config));
             }
         }
+        return new ProvisioningPlan(fpPlans, configPlans);
+    }
+
+    private static ProvisioningPlan.ConfigPlan newConfigPlan(ConfigModelBuilder config) {
+        return new ProvisioningPlan.ConfigPlan(config.getModel(), config.getName(), config.getFeaturesTotal());
+    }
+
+    private static ProvisioningPlan.PackagePlan newPackagePlan(String name, Path contentDir) throws ProvisioningException {
+        if(!Files.exists(contentDir)) {
+            return new ProvisioningPlan.PackagePlan(name, 0, 0);
+        }
+        final int[] filesTotal = new int[1];
+        final long[] size = new long[1];
+        try {
+            // the sizes come from the file attributes, for a zip these are read from its central directory
+            Files.walkFileTree(contentDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(attrs.isRegularFile()) {
+                        ++filesTotal[0];
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.readDirectory(contentDir), e);
+        }
+        return new ProvisioningPlan.PackagePlan(name, filesTotal[0], size[0]);
+    }
+
+    private void buildConfigs() throws ProvisioningException {
+        if(!anonymousConfigs.isEmpty() || !nameOnlyConfigs.isEmpty()) {
+            final List<ConfigModelBuilder> configs = new ArrayList<>(anonymousConfigs.size() + nameOnlyConfigs.size());
+            configs.addAll(anonymousConfigs);
+            configs.addAll(nameOnlyConfigs.values());
+            buildConfigs(configs);
+        }
 
         if(!modelOnlyConfigSpecs.isEmpty()) {
             for(int i = 0; i < modelOnlyConfigSpecs.size(); ++i) {
@@ -241,10 +504,39 @@ public class ProvisioningRuntimeBuilder {
             modelOnlyConfigs = Collections.emptyMap();
         }
 
-        for(Map<String, ConfigModelBuilder> configMap : namedModelConfigs.values()) {
-            for(Map.Entry<String, ConfigModelBuilder> configEntry : configMap.entrySet()) {
-                configEntry.getValue().build(this);
+        if(!namedModelConfigs.isEmpty()) {
+            final List<ConfigModelBuilder> configs = new ArrayList<>();
+            for(Map<String, ConfigModelBuilder> configMap : namedModelConfigs.values()) {
+                configs.addAll(configMap.values());
+            }
+            buildConfigs(configs);
+        }
+    }
+
+    /**
+     * Builds the configs concurrently. Each config orders its own features,
+     * the only shared state are the feature specs and the feature-pack builders.
+     * If more than one config fails, the failure of the config that comes
+     * first in the list is reported.
+     */
+    private void buildConfigs(List<ConfigModelBuilder> configs) throws ProvisioningException {
+        if(configs.size() == 1 || CONFIG_THREADS == 1) {
+            for(ConfigModelBuilder config : configs) {
+                config.build(this);
             }
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(CONFIG_THREADS, configs.size()));
+        try {
+            final List<Future<?>> futures = new ArrayList<>(configs.size());
+            for(ConfigModelBuilder config : configs) {
+                futures.add(executor.submit(() -> config.build(this)));
+            }
+            for(Future<?> future : futures) {
+                getResult(future);
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -706,26 +998,8 @@ public class ProvisioningRuntimeBuilder {
     private FeaturePackRuntime.Builder loadFpBuilder(ArtifactCoords.Gav gav) throws ProvisioningException {
         FeaturePackRuntime.Builder fp = fpRtBuilders.get(gav.toGa());
         if(fp == null) {
-            final Path fpDir = LayoutUtils.getFeaturePackDir(layoutDir, gav, false);
-            mkdirs(fpDir);
-
-            final Path artifactPath = artifactResolver.resolve(gav.toArtifactCoords());
-            try {
-                ZipUtils.unzip(artifactPath, fpDir);
-            } catch (IOException e) {
-                throw new ProvisioningException("Failed to unzip " + artifactPath + " to " + layoutDir, e);
-            }
-
-            final Path fpXml = fpDir.resolve(Constants.FEATURE_PACK_XML);
-            if(!Files.exists(fpXml)) {
-                throw new ProvisioningDescriptionException(Errors.pathDoesNotExist(fpXml));
-            }
-
-            try(BufferedReader reader = Files.newBufferedReader(fpXml)) {
-                fp = FeaturePackRuntime.builder(gav, FeaturePackXmlParser.getInstance().parse(reader), fpDir);
-            } catch (IOException | XMLStreamException e) {
-                throw new ProvisioningException(Errors.parseXml(fpXml), e);
-            }
+            final Future<FeaturePackRuntime.Builder> prefetched = prefetchedFps.get(gav);
+            fp = prefetched == null ? newFpBuilder(gav) : getResult(prefetched);
             fpRtBuilders.put(gav.toGa(), fp);
         } else if(!fp.gav.equals(gav)) {
             throw new ProvisioningException(Errors.featurePackVersionConflict(fp.gav, gav));
@@ -733,96 +1007,314 @@ public class ProvisioningRuntimeBuilder {
         return fp;
     }
 
-    private void resolvePackage(FeaturePackRuntime.Builder fp, final String pkgName)
-            throws ProvisioningException {
-        final PackageRuntime.Builder pkgRt = fp.pkgBuilders.get(pkgName);
-        if(pkgRt != null) {
-            return;
+    private FeaturePackRuntime.Builder newFpBuilder(ArtifactCoords.Gav gav) throws ProvisioningException {
+        final Path artifactPath = artifactResolver.resolve(gav.toArtifactCoords());
+        final Path fpDir;
+        if(layoutCache != null) {
+            fpDir = layoutCache.get(artifactPath);
+        } else {
+            // the metadata is read directly from the zip,
+            // the selected packages are extracted by extractLayout
+            final FileSystem zipfs;
+            try {
+                zipfs = FileSystems.newFileSystem(artifactPath, null);
+            } catch (IOException e) {
+                throw new ProvisioningException(Errors.openFile(artifactPath), e);
+            }
+            synchronized(this) {
+                openZips = PmCollections.add(openZips, zipfs);
+            }
+            fpDir = zipfs.getRootDirectories().iterator().next();
         }
 
-        final PackageRuntime.Builder pkg = fp.newPackage(pkgName, LayoutUtils.getPackageDir(fp.dir, pkgName, false));
-        if(!Files.exists(pkg.dir)) {
-            throw new ProvisioningDescriptionException(Errors.packageNotFound(fp.gav, pkgName));
-        }
-        final Path pkgXml = pkg.dir.resolve(Constants.PACKAGE_XML);
-        if(!Files.exists(pkgXml)) {
-            throw new ProvisioningDescriptionException(Errors.pathDoesNotExist(pkgXml));
-        }
-        try(BufferedReader reader = Files.newBufferedReader(pkgXml)) {
-            pkg.spec = PackageXmlParser.getInstance().parse(reader);
-        } catch (IOException | XMLStreamException e) {
-            throw new ProvisioningException(Errors.parseXml(pkgXml), e);
+        final Path fpXml = fpDir.resolve(Constants.FEATURE_PACK_XML);
+        if(!Files.exists(fpXml)) {
+            throw new ProvisioningDescriptionException(Errors.pathDoesNotExist(fpXml));
         }
 
-        if(pkg.spec.hasPackageDeps()) {
-            try {
-                processPackageDeps(fp, pkg.spec);
-            } catch(ProvisioningException e) {
-                throw new ProvisioningDescriptionException(Errors.resolvePackage(fp.gav, pkg.spec.getName()), e);
-            }
+        try(BufferedReader reader = Files.newBufferedReader(fpXml)) {
+            return FeaturePackRuntime.builder(gav, FeaturePackXmlParser.getInstance().parse(reader), fpDir);
+        } catch (IOException | XMLStreamException e) {
+            throw new ProvisioningException(Errors.parseXml(fpXml), e);
         }
-        fp.addPackage(pkgName);
     }
 
-    private void processPackageDeps(FeaturePackRuntime.Builder fp, final PackageDepsSpec pkgDeps)
-            throws ProvisioningException {
-        if (pkgDeps.hasLocalPackageDeps()) {
-            for (PackageDependencySpec dep : pkgDeps.getLocalPackageDeps()) {
-                if(fp.isPackageExcluded(dep.getName())) {
-                    if(!dep.isOptional()) {
-                        throw new ProvisioningDescriptionException(Errors.unsatisfiedPackageDependency(fp.gav, dep.getName()));
-                    }
+    /**
+     * Walks the feature-pack dependency graph starting from the feature-packs
+     * in the provisioning config and resolves, unpacks and parses the feature-packs
+     * concurrently. The package specs of each feature-pack are parsed in the background
+     * on the same executor. The resolution of the configs and the packages still happens
+     * sequentially afterwards. Failures are not reported here, they are re-thrown
+     * by loadFpBuilder when (and if) the corresponding feature-pack is actually loaded.
+     */
+    private void prefetchFeaturePacks(Collection<FeaturePackConfig> fpConfigs) {
+        if(fpConfigs.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+        try {
+            final Set<ArtifactCoords.Ga> visited = new HashSet<>();
+            final List<Future<FeaturePackRuntime.Builder>> pending = new ArrayList<>();
+            for(FeaturePackConfig fpConfig : fpConfigs) {
+                prefetchFp(executor, fpConfig.getGav(), visited, pending);
+            }
+            int i = 0;
+            while(i < pending.size()) {
+                final FeaturePackRuntime.Builder fp;
+                try {
+                    fp = pending.get(i++).get();
+                } catch (ExecutionException e) {
                     continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-                try {
-                    resolvePackage(fp, dep.getName());
-                } catch(ProvisioningDescriptionException e) {
-                    if(dep.isOptional()) {
-                        continue;
-                    } else {
-                        throw e;
+                if(fp.spec.hasDependencies()) {
+                    for(FeaturePackDependencySpec fpDep : fp.spec.getDependencies()) {
+                        prefetchFp(executor, fpDep.getTarget().getGav(), visited, pending);
                     }
                 }
             }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void prefetchFp(ExecutorService executor, ArtifactCoords.Gav gav, Set<ArtifactCoords.Ga> visited,
+            List<Future<FeaturePackRuntime.Builder>> pending) {
+        // a version conflict will be reported when the feature-packs are loaded
+        if(!visited.add(gav.toGa())) {
+            return;
+        }
+        final Future<FeaturePackRuntime.Builder> future = executor.submit(() -> {
+            final FeaturePackRuntime.Builder fp = newFpBuilder(gav);
+            fp.prefetchPackageSpecs(executor);
+            return fp;
+        });
+        prefetchedFps = PmCollections.put(prefetchedFps, gav, future);
+        pending.add(future);
+    }
+
+    static <T> T getResult(Future<T> future) throws ProvisioningException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProvisioningException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof ProvisioningException) {
+                throw (ProvisioningException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ProvisioningException(cause);
         }
-        if(pkgDeps.hasExternalPackageDeps()) {
-            final Collection<String> depNames = pkgDeps.getExternalPackageSources();
-            final List<FeaturePackConfig> pushedConfigs = new ArrayList<>(depNames.size());
-            for(String depName : depNames) {
-                pushFpConfig(pushedConfigs, fp.spec.getDependency(depName).getTarget());
+    }
+
+    /**
+     * The state of the processing of the package dependencies of a package
+     * (or of any other package dependencies declaring spec, in which case the pkgName is null).
+     * The frames are used to walk the package dependency graph iteratively.
+     */
+    private class PackageDepsFrame {
+        final FeaturePackRuntime.Builder fp;
+        final String pkgName;
+        final PackageDepsSpec pkgDeps;
+
+        private Iterator<PackageDependencySpec> localDeps;
+        private Iterator<String> externalSources;
+        private List<FeaturePackConfig> pushedConfigs;
+        private FeaturePackRuntime.Builder targetFp;
+        private Iterator<PackageDependencySpec> targetDeps;
+        private boolean resolvedPackages;
+
+        // the dependency currently being resolved and the feature-pack it belongs to
+        PackageDependencySpec dep;
+        FeaturePackRuntime.Builder depFp;
+
+        PackageDepsFrame(FeaturePackRuntime.Builder fp, String pkgName, PackageDepsSpec pkgDeps) {
+            this.fp = fp;
+            this.pkgName = pkgName;
+            this.pkgDeps = pkgDeps;
+            if(pkgDeps.hasLocalPackageDeps()) {
+                localDeps = pkgDeps.getLocalPackageDeps().iterator();
             }
-            for(String depName : depNames) {
-                final FeaturePackDependencySpec depSpec = fp.spec.getDependency(depName);
-                final FeaturePackRuntime.Builder targetFp = loadFpBuilder(depSpec.getTarget().getGav());
-                if(targetFp == null) {
-                    throw new IllegalStateException(depSpec.getName() + " " + depSpec.getTarget().getGav() + " has not been layed out yet");
-                }
-                boolean resolvedPackages = false;
-                for(PackageDependencySpec pkgDep : pkgDeps.getExternalPackageDeps(depName)) {
-                    if(targetFp.isPackageExcluded(pkgDep.getName())) {
-                        if(!pkgDep.isOptional()) {
-                            throw new ProvisioningDescriptionException(Errors.unsatisfiedPackageDependency(targetFp.gav, pkgDep.getName()));
+        }
+
+        /**
+         * Moves to the next package dependency that should be resolved.
+         *
+         * @return  the next dependency or null if all the dependencies have been processed
+         * @throws ProvisioningException  in case the dependencies can't be satisfied
+         */
+        PackageDependencySpec nextDep() throws ProvisioningException {
+            if(localDeps != null) {
+                while(localDeps.hasNext()) {
+                    final PackageDependencySpec localDep = localDeps.next();
+                    if(fp.isPackageExcluded(localDep.getName())) {
+                        if(!localDep.isOptional()) {
+                            throw new ProvisioningDescriptionException(Errors.unsatisfiedPackageDependency(fp.gav, localDep.getName()));
                         }
                         continue;
                     }
-                    try {
-                        resolvePackage(targetFp, pkgDep.getName());
-                        resolvedPackages = true;
-                    } catch(ProvisioningDescriptionException e) {
-                        if(pkgDep.isOptional()) {
+                    dep = localDep;
+                    depFp = fp;
+                    return dep;
+                }
+                localDeps = null;
+            }
+            if(!pkgDeps.hasExternalPackageDeps()) {
+                return null;
+            }
+            if(externalSources == null) {
+                final Collection<String> depNames = pkgDeps.getExternalPackageSources();
+                pushedConfigs = new ArrayList<>(depNames.size());
+                for(String depName : depNames) {
+                    pushFpConfig(pushedConfigs, fp.spec.getDependency(depName).getTarget());
+                }
+                externalSources = depNames.iterator();
+            }
+            while(true) {
+                if(targetDeps != null) {
+                    while(targetDeps.hasNext()) {
+                        final PackageDependencySpec pkgDep = targetDeps.next();
+                        if(targetFp.isPackageExcluded(pkgDep.getName())) {
+                            if(!pkgDep.isOptional()) {
+                                throw new ProvisioningDescriptionException(Errors.unsatisfiedPackageDependency(targetFp.gav, pkgDep.getName()));
+                            }
                             continue;
-                        } else {
-                            throw e;
                         }
+                        dep = pkgDep;
+                        depFp = targetFp;
+                        return dep;
+                    }
+                    if(!targetFp.ordered && resolvedPackages) {
+                        orderFpRtBuilder(targetFp);
                     }
+                    targetDeps = null;
+                }
+                if(!externalSources.hasNext()) {
+                    break;
                 }
-                if(!targetFp.ordered && resolvedPackages) {
-                    orderFpRtBuilder(targetFp);
+                final String depName = externalSources.next();
+                final FeaturePackDependencySpec depSpec = fp.spec.getDependency(depName);
+                targetFp = loadFpBuilder(depSpec.getTarget().getGav());
+                if(targetFp == null) {
+                    throw new IllegalStateException(depSpec.getName() + " " + depSpec.getTarget().getGav() + " has not been layed out yet");
                 }
+                resolvedPackages = false;
+                targetDeps = pkgDeps.getExternalPackageDeps(depName).iterator();
             }
             if (!pushedConfigs.isEmpty()) {
                 popFpConfigs(pushedConfigs);
             }
+            return null;
+        }
+
+        void depResolved() {
+            if(targetDeps != null) {
+                resolvedPackages = true;
+            }
+        }
+
+        ProvisioningException failed(ProvisioningException e) {
+            return pkgName == null ? e : new ProvisioningDescriptionException(Errors.resolvePackage(fp.gav, pkgName), e);
+        }
+    }
+
+    private void resolvePackage(FeaturePackRuntime.Builder fp, final String pkgName)
+            throws ProvisioningException {
+        final PackageDepsFrame frame = newPackage(fp, pkgName);
+        if(frame != null) {
+            resolvePackageDeps(frame);
+        }
+    }
+
+    private void processPackageDeps(FeaturePackRuntime.Builder fp, final PackageDepsSpec pkgDeps)
+            throws ProvisioningException {
+        resolvePackageDeps(new PackageDepsFrame(fp, null, pkgDeps));
+    }
+
+    /**
+     * Registers the package with the feature-pack runtime builder.
+     *
+     * @return  the frame to process the dependencies of the package
+     * or null if the package does not have any dependencies or it has already been registered
+     */
+    private PackageDepsFrame newPackage(FeaturePackRuntime.Builder fp, final String pkgName) throws ProvisioningException {
+        final PackageRuntime.Builder pkgRt = fp.pkgBuilders.get(pkgName);
+        if(pkgRt != null) {
+            return null;
+        }
+        final PackageRuntime.Builder pkg = fp.newPackage(pkgName, LayoutUtils.getPackageDir(fp.dir, pkgName, false));
+        pkg.spec = fp.loadPackageSpec(pkgName, pkg.dir);
+        if(pkg.spec.hasPackageDeps()) {
+            return new PackageDepsFrame(fp, pkgName, pkg.spec);
+        }
+        fp.addPackage(pkgName);
+        return null;
+    }
+
+    /**
+     * Walks the package dependency graph depth-first using an explicit stack of frames.
+     * A package is added to its feature-pack after all its dependencies have been added.
+     * A failure to resolve a package is reported as a failure of each package on the
+     * path to it, unless the dependency on one of those packages is optional.
+     */
+    private void resolvePackageDeps(PackageDepsFrame root) throws ProvisioningException {
+        final Deque<PackageDepsFrame> stack = new ArrayDeque<>();
+        stack.push(root);
+        ProvisioningException error = null;
+        while(!stack.isEmpty()) {
+            final PackageDepsFrame frame = stack.peek();
+            if(error != null) {
+                // the dependency frame.dep failed
+                if(error instanceof ProvisioningDescriptionException && frame.dep.isOptional()) {
+                    error = null;
+                } else {
+                    stack.pop();
+                    error = frame.failed(error);
+                    continue;
+                }
+            }
+            final PackageDependencySpec dep;
+            try {
+                dep = frame.nextDep();
+            } catch(ProvisioningException e) {
+                stack.pop();
+                error = frame.failed(e);
+                continue;
+            }
+            if(dep == null) {
+                stack.pop();
+                if(frame.pkgName != null) {
+                    frame.fp.addPackage(frame.pkgName);
+                }
+                if(!stack.isEmpty()) {
+                    stack.peek().depResolved();
+                }
+                continue;
+            }
+            final PackageDepsFrame depFrame;
+            try {
+                depFrame = newPackage(frame.depFp, dep.getName());
+            } catch(ProvisioningException e) {
+                error = e;
+                continue;
+            }
+            if(depFrame == null) {
+                frame.depResolved();
+            } else {
+                stack.push(depFrame);
+            }
+        }
+        if(error != null) {
+            throw error;
         }
     }
 
@@ -831,6 +1323,49 @@ public class ProvisioningRuntimeBuilder {
         fpRtBuilder.ordered = true;
     }
 
+    /**
+     * Extracts the resources, the plugins and the resolved packages of a feature-pack
+     * which is read directly from its zip into the layout directory.
+     */
+    private void extractLayout(FeaturePackRuntime.Builder fp) throws ProvisioningException {
+        if(fp.dir.getFileSystem() == FileSystems.getDefault()) {
+            return;
+        }
+        final Path fpDir = LayoutUtils.getFeaturePackDir(layoutDir, fp.gav, false);
+        mkdirs(fpDir);
+        extractDir(fp.dir.resolve(Constants.RESOURCES), fpDir.resolve(Constants.RESOURCES));
+        extractDir(fp.dir.resolve(Constants.PLUGINS), fpDir.resolve(Constants.PLUGINS));
+        for(Map.Entry<String, PackageRuntime.Builder> entry : fp.pkgBuilders.entrySet()) {
+            final PackageRuntime.Builder pkg = entry.getValue();
+            final Path pkgDir = LayoutUtils.getPackageDir(fpDir, entry.getKey(), false);
+            extractDir(pkg.dir, pkgDir);
+            pkg.dir = pkgDir;
+        }
+        fp.dir = fpDir;
+    }
+
+    private static void extractDir(Path src, Path target) throws ProvisioningException {
+        if(!Files.exists(src)) {
+            return;
+        }
+        mkdirs(target.getParent());
+        try {
+            ZipUtils.copyFromZip(src, target);
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.copyFile(src, target), e);
+        }
+    }
+
+    private synchronized void closeZips() {
+        for(FileSystem zipfs : openZips) {
+            try {
+                zipfs.close();
+            } catch (IOException e) {
+            }
+        }
+        openZips = Collections.emptyList();
+    }
+
     private void copyResources(FeaturePackRuntime.Builder fpRtBuilder) throws ProvisioningException {
         // resources should be copied last overriding the dependency resources
         final Path fpResources = fpRtBuilder.dir.resolve(Constants.RESOURCES);
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.runtime;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.Errors;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.spec.PackageSpec;
+import org.jboss.provisioning.util.HashUtils;
+
+/**
+ * In-memory cache of the results of the resolution of provisioning configs.
+ * An entry holds the resolved and ordered configs, the resolved packages
+ * and feature specs of each feature-pack. It is keyed by the feature-pack configs
+ * of the provisioning config (in their order) and is used only if the checksums
+ * of all the feature-pack artifacts that participated in the resolution still match.
+ *
+ * The cache is meant to be shared by the provisioning runs performed in the same JVM.
+ */
+public class ResolutionCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    static class FeaturePackEntry {
+        final ArtifactCoords.Gav gav;
+        final List<PackageSpec> packages;
+        final Map<String, ResolvedFeatureSpec> featureSpecs;
+
+        FeaturePackEntry(ArtifactCoords.Gav gav, List<PackageSpec> packages, Map<String, ResolvedFeatureSpec> featureSpecs) {
+            this.gav = gav;
+            this.packages = packages;
+            this.featureSpecs = featureSpecs;
+        }
+    }
+
+    static class Entry {
+        // checksums of all the feature-pack artifacts loaded during the resolution
+        final Map<ArtifactCoords.Gav, String> checksums;
+        // the feature-packs in the order they are installed
+        final List<FeaturePackEntry> featurePacks;
+        final List<ConfigModelBuilder> anonymousConfigs;
+        final Map<String, ConfigModelBuilder> nameOnlyConfigs;
+        final Map<String, ConfigModelBuilder> modelOnlyConfigs;
+        final Map<String, Map<String, ConfigModelBuilder>> namedModelConfigs;
+
+        Entry(Map<ArtifactCoords.Gav, String> checksums, List<FeaturePackEntry> featurePacks, ProvisioningRuntimeBuilder rt) {
+            this.checksums = checksums;
+            this.featurePacks = featurePacks;
+            this.anonymousConfigs = rt.anonymousConfigs;
+            this.nameOnlyConfigs = rt.nameOnlyConfigs;
+            this.modelOnlyConfigs = rt.modelOnlyConfigs;
+            this.namedModelConfigs = rt.namedModelConfigs;
+        }
+    }
+
+    private static class Checksum {
+        final long size;
+        final long lastModified;
+        final String value;
+
+        Checksum(long size, long lastModified, String value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+
+    private final int maxEntries;
+    private final Map<List<FeaturePackConfig>, Entry> entries;
+    private final Map<Path, Checksum> checksums = new HashMap<>();
+    private int hits;
+
+    public ResolutionCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries  the number of entries beyond which the least recently used ones are evicted
+     */
+    public ResolutionCache(int maxEntries) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("The max number of entries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<List<FeaturePackConfig>, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<FeaturePackConfig>, ResolutionCache.Entry> eldest) {
+                return size() > ResolutionCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of times a cached resolution was reused instead of
+     * resolving the config.
+     *
+     * @return  the number of cache hits
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        checksums.clear();
+        hits = 0;
+    }
+
+    synchronized Entry get(ProvisioningConfig config) {
+        return entries.get(key(config));
+    }
+
+    synchronized void put(ProvisioningConfig config, Entry entry) {
+        entries.put(key(config), entry);
+    }
+
+    synchronized void hit() {
+        ++hits;
+    }
+
+    synchronized void remove(ProvisioningConfig config) {
+        entries.remove(key(config));
+    }
+
+    /**
+     * Returns the checksum of the artifact. The checksum is re-calculated
+     * only if the size or the last modification time of the file has changed
+     * since the last time it was calculated.
+     */
+    String getChecksum(Path artifact) throws ProvisioningException {
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(artifact, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.readFile(artifact), e);
+        }
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        synchronized(this) {
+            final Checksum checksum = checksums.get(artifact);
+            if(checksum != null && checksum.size == attrs.size() && checksum.lastModified == lastModified) {
+                return checksum.value;
+            }
+        }
+        final String value;
+        try {
+            value = HashUtils.hashFile(artifact);
+        } catch (IOException e) {
+            throw new ProvisioningException(Errors.hashCalculation(artifact), e);
+        }
+        synchronized(this) {
+            checksums.put(artifact, new Checksum(attrs.size(), lastModified, value));
+        }
+        return value;
+    }
+
+    private static List<FeaturePackConfig> key(ProvisioningConfig config) {
+        // the order of the feature-packs affects the resolution
+        return config.hasFeaturePacks() ? new ArrayList<>(config.getFeaturePacks()) : Collections.emptyList();
+    }
+}
@@ -16,12 +16,15 @@
  */
 package org.jboss.provisioning.runtime;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import org.jboss.provisioning.Errors;
 import org.jboss.provisioning.ProvisioningDescriptionException;
 import org.jboss.provisioning.ProvisioningException;
@@ -50,8 +53,15 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
     final int includeNo;
     final ResolvedFeatureId id;
     final ResolvedFeatureSpec spec;
-    Map<String, Object> params;
+    // param values indexed by ResolvedFeatureParam.index, null for the params that are not set
+    private Object[] paramValues;
+    private int paramsTotal;
+    private Params params;
     Map<ResolvedFeatureId, FeatureDependencySpec> deps;
+    // copies of a feature share the param values and the deps
+    // until one of them modifies them (copy-on-write)
+    private boolean paramsShared;
+    private boolean depsShared;
 
     private byte orderingState = FREE;
     private byte batchControl;
@@ -60,6 +70,7 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
         this.includeNo = includeNo;
         this.id = id;
         this.spec = spec;
+        this.paramValues = new Object[spec.params.length];
         initParamsFromId();
     }
 
@@ -69,6 +80,7 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
         this.id = id;
         this.spec = spec;
         this.deps = resolvedDeps;
+        this.paramValues = new Object[spec.params.length];
         initParamsFromId();
         if (!params.isEmpty()) {
             for (Map.Entry<String, Object> entry : params.entrySet()) {
@@ -77,34 +89,46 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
         }
     }
 
+    private ResolvedFeature(ResolvedFeature original, int includeNo) {
+        this.includeNo = includeNo;
+        this.id = original.id;
+        this.spec = original.spec;
+        this.paramValues = original.paramValues;
+        this.paramsTotal = original.paramsTotal;
+        this.deps = original.deps;
+        paramsShared = true;
+        depsShared = true;
+        // the original may be modified later as well (e.g. when its defaults are set)
+        original.paramsShared = true;
+        original.depsShared = true;
+    }
+
     ResolvedFeature copy(int includeNo) throws ProvisioningException {
-        return new ResolvedFeature(id, spec, params.size() > 1 ? new HashMap<>(params) : params, deps.size() > 1 ? new LinkedHashMap<>(deps) : deps, includeNo);
+        return new ResolvedFeature(this, includeNo);
     }
 
     private void initParamsFromId() {
-        if(id != null) {
-            if(id.params.size() == 1) {
-                this.params = id.params;
-            } else {
-                this.params = new HashMap<>(id.params);
+        if(id == null) {
+            return;
+        }
+        for(Map.Entry<String, Object> entry : id.params.entrySet()) {
+            final int i = spec.getParamIndex(entry.getKey());
+            if(i >= 0) {
+                setValue(i, entry.getValue());
             }
-        } else {
-            this.params = Collections.emptyMap();
         }
     }
 
     void validate() throws ProvisioningDescriptionException {
-        for(FeatureParameterSpec param : spec.xmlSpec.getParams().values()) {
-            if(!param.isNillable()) {
-                if(!params.containsKey(param.getName())) {
-                    if(param.hasDefaultValue()) {
-                        params = PmCollections.put(params, param.getName(), param.getDefaultValue());
-                    } else {
-                        throw new ProvisioningDescriptionException(Errors.nonNillableParameterIsNull(this, param.getName()));
-                    }
-                }
-            } else if(param.hasDefaultValue() && !params.containsKey(param.getName())) {
-                params = PmCollections.put(params, param.getName(), param.getDefaultValue());
+        for(int i = 0; i < paramValues.length; ++i) {
+            if(paramValues[i] != null) {
+                continue;
+            }
+            final FeatureParameterSpec param = spec.params[i].spec;
+            if(param.hasDefaultValue()) {
+                setValue(i, param.getDefaultValue());
+            } else if(!param.isNillable()) {
+                throw new ProvisioningDescriptionException(Errors.nonNillableParameterIsNull(this, param.getName()));
             }
         }
     }
@@ -131,7 +155,6 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
         }
         orderingState = ORDERED;
         provided();
-        spec.provided();
     }
 
     void free() {
@@ -158,6 +181,12 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
         if(deps.containsKey(id)) {
             throw new ProvisioningDescriptionException("Duplicate dependency on " + id + " from " + this.id); // TODO
         }
+        if(depsShared) {
+            if(deps.size() > 1) {
+                deps = new LinkedHashMap<>(deps);
+            }
+            depsShared = false;
+        }
         deps = PmCollections.putLinked(deps, id, depSpec);
     }
 
@@ -178,29 +207,52 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
 
     @Override
     public boolean hasParams() {
-        return !params.isEmpty();
+        return paramsTotal > 0;
     }
 
     @Override
     public Collection<String> getParamNames() {
-        return params.keySet();
+        return getResolvedParams().keySet();
     }
 
     @Override
     public Object getResolvedParam(String name) {
-        return params.get(name);
+        final int i = spec.getParamIndex(name);
+        return i < 0 ? null : paramValues[i];
     }
 
     @Override
     public String getConfigParam(String name) throws ProvisioningException {
-        return spec.paramToString(name, params.get(name));
+        return spec.paramToString(name, getResolvedParam(name));
     }
 
     @Override
     public Map<String, Object> getResolvedParams() {
+        if(params == null) {
+            params = new Params();
+        }
         return params;
     }
 
+    private void setValue(int i, Object value) {
+        if(paramValues[i] == value) {
+            return;
+        }
+        if(paramsShared) {
+            paramValues = paramValues.clone();
+            paramsShared = false;
+        }
+        if(paramValues[i] == null) {
+            if(value == null) {
+                return;
+            }
+            ++paramsTotal;
+        } else if(value == null) {
+            --paramsTotal;
+        }
+        paramValues[i] = value;
+    }
+
     void setParam(String name, Object value, boolean overwrite) throws ProvisioningException {
         if(id != null) {
             final Object idValue = id.params.get(name);
@@ -211,24 +263,54 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
                 return;
             }
         }
-        if(!spec.xmlSpec.hasParam(name)) {
+        final int i = spec.getParamIndex(name);
+        if(i < 0) {
             throw new ProvisioningDescriptionException(Errors.unknownFeatureParameter(spec.id, name));
         }
-        final Object prevValue = params.get(name);
+        setParam(i, value, overwrite);
+    }
+
+    private void setParam(int i, Object value, boolean overwrite) throws ProvisioningException {
+        final Object prevValue = paramValues[i];
         if(prevValue == null) {
-            params = PmCollections.put(params, name, value);
+            setValue(i, value);
             return;
         }
-        final FeatureParameterType valueType = spec.getTypeForParameter(name);
+        final FeatureParameterType valueType = spec.params[i].type;
         if(valueType.isMergeable()) {
-            params = PmCollections.put(params, name, overwrite ? valueType.merge(prevValue, value) : valueType.merge(value, prevValue));
+            setValue(i, overwrite ? valueType.merge(prevValue, value) : valueType.merge(value, prevValue));
         } else if(overwrite) {
-            params = PmCollections.put(params, name, value);
+            setValue(i, value);
         }
     }
 
     void merge(ResolvedFeature other, boolean overwriteParams) throws ProvisioningException {
-        merge(other.deps, other.getResolvedParams(), overwriteParams);
+        if(other.spec != spec) {
+            merge(other.deps, other.getResolvedParams(), overwriteParams);
+            return;
+        }
+        // the features share the slot layout so the values can be merged slot by slot
+        for(int i = 0; i < paramValues.length; ++i) {
+            final Object value = other.paramValues[i];
+            if(value == null) {
+                continue;
+            }
+            if(id != null && spec.params[i].spec.isFeatureId()) {
+                final Object idValue = paramValues[i];
+                if(idValue != null) {
+                    if(!idValue.equals(value)) {
+                        throw new ProvisioningDescriptionException("ID parameter " + spec.params[i].spec.getName() + "=" + idValue + " can't be reset to " + value);
+                    }
+                    continue;
+                }
+            }
+            setParam(i, value, overwriteParams);
+        }
+        if(!other.deps.isEmpty()) {
+            for(Map.Entry<ResolvedFeatureId, FeatureDependencySpec> dep : other.deps.entrySet()) {
+                addDependency(dep.getKey(), dep.getValue());
+            }
+        }
     }
 
     void merge(Map<ResolvedFeatureId, FeatureDependencySpec> deps, Map<String, Object> resolvedParams, boolean overwriteParams) throws ProvisioningException {
@@ -247,4 +329,71 @@ public class ResolvedFeature extends CapabilityProvider implements ProvisionedFe
     List<ResolvedFeatureId> resolveRefs() throws ProvisioningException {
         return spec.resolveRefs(this);
     }
+
+    /**
+     * Read-only map view of the param values that are set.
+     */
+    private class Params extends AbstractMap<String, Object> {
+
+        private Set<Map.Entry<String, Object>> entrySet;
+
+        @Override
+        public int size() {
+            return paramsTotal;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return paramsTotal == 0;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? getResolvedParam((String) key) : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if(entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        return new Iterator<Map.Entry<String, Object>>() {
+                            int i = nextSet(0);
+                            @Override
+                            public boolean hasNext() {
+                                return i < paramValues.length;
+                            }
+                            @Override
+                            public Map.Entry<String, Object> next() {
+                                if(i >= paramValues.length) {
+                                    throw new NoSuchElementException();
+                                }
+                                final Map.Entry<String, Object> entry = new AbstractMap.SimpleImmutableEntry<>(spec.params[i].spec.getName(), paramValues[i]);
+                                i = nextSet(i + 1);
+                                return entry;
+                            }
+                        };
+                    }
+                    @Override
+                    public int size() {
+                        return paramsTotal;
+                    }
+                };
+            }
+            return entrySet;
+        }
+
+        private int nextSet(int i) {
+            while(i < paramValues.length && paramValues[i] == null) {
+                ++i;
+            }
+            return i;
+        }
+    }
 }
\ No newline at end of file
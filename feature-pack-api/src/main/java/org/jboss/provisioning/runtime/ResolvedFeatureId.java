@@ -17,9 +17,14 @@
 
 package org.jboss.provisioning.runtime;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.jboss.provisioning.ArtifactCoords;
 import org.jboss.provisioning.Constants;
@@ -154,19 +159,83 @@ public class ResolvedFeatureId {
 
     final ResolvedSpecId specId;
     final Map<String, Object> params;
+    // param names and values are kept in the slots of two parallel arrays,
+    // the params map is a read-only view of them
+    private final String[] names;
+    private final Object[] values;
+    private final int hash;
 
     ResolvedFeatureId(ResolvedSpecId specId, Map<String, Object> params) {
         this.specId = specId;
-        Map<String, Object> filtered = Collections.emptyMap();
+        int size = 0;
+        for(Object value : params.values()) {
+            if(!Constants.PM_UNDEFINED.equals(value)) {
+                ++size;
+            }
+        }
+        final boolean all = size == 0;
+        if(all) {
+            size = params.size();
+        }
+        names = new String[size];
+        values = new Object[size];
+        int i = 0;
         for(Map.Entry<String, Object> entry : params.entrySet()) {
-            if(!Constants.PM_UNDEFINED.equals(entry.getValue())) {
-                filtered = PmCollections.put(filtered, entry.getKey(), entry.getValue());
+            if(all || !Constants.PM_UNDEFINED.equals(entry.getValue())) {
+                names[i] = entry.getKey();
+                values[i++] = entry.getValue();
+            }
+        }
+        this.params = new Params();
+        this.hash = hash();
+    }
+
+    /**
+     * Creates an ID from the values of the spec's ID params.
+     * The arrays are not copied.
+     */
+    ResolvedFeatureId(ResolvedSpecId specId, String[] names, Object[] values) {
+        this.specId = specId;
+        int size = 0;
+        for(Object value : values) {
+            if(!Constants.PM_UNDEFINED.equals(value)) {
+                ++size;
+            }
+        }
+        if(size == 0 || size == values.length) {
+            this.names = names;
+            this.values = values;
+        } else {
+            this.names = new String[size];
+            this.values = new Object[size];
+            int j = 0;
+            for(int i = 0; i < values.length; ++i) {
+                if(!Constants.PM_UNDEFINED.equals(values[i])) {
+                    this.names[j] = names[i];
+                    this.values[j++] = values[i];
+                }
             }
         }
-        if(filtered.isEmpty()) {
-            filtered = params;
+        this.params = new Params();
+        this.hash = hash();
+    }
+
+    private int hash() {
+        // independent of the order of the params
+        int paramsHash = 0;
+        for(int i = 0; i < names.length; ++i) {
+            paramsHash += names[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
         }
-        this.params = PmCollections.unmodifiable(filtered);
+        return 31 * (31 + paramsHash) + (specId == null ? 0 : specId.hashCode());
+    }
+
+    private Object getParam(String name) {
+        for(int i = 0; i < names.length; ++i) {
+            if(names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
     }
 
     public ResolvedSpecId getSpecId() {
@@ -179,11 +248,7 @@ public class ResolvedFeatureId {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((params == null) ? 0 : params.hashCode());
-        result = prime * result + ((specId == null) ? 0 : specId.hashCode());
-        return result;
+        return hash;
     }
 
     @Override
@@ -195,19 +260,81 @@ public class ResolvedFeatureId {
         if (getClass() != obj.getClass())
             return false;
         ResolvedFeatureId other = (ResolvedFeatureId) obj;
-        if (params == null) {
-            if (other.params != null)
-                return false;
-        } else if (!params.equals(other.params))
+        if (hash != other.hash || names.length != other.names.length)
             return false;
         if (specId == null) {
             if (other.specId != null)
                 return false;
         } else if (!specId.equals(other.specId))
             return false;
+        for(int i = 0; i < names.length; ++i) {
+            final Object value = names[i].equals(other.names[i]) ? other.values[i] : other.getParam(names[i]);
+            if(value == null) {
+                if(values[i] != null || !other.params.containsKey(names[i]))
+                    return false;
+            } else if(!value.equals(values[i]))
+                return false;
+        }
         return true;
     }
 
+    private class Params extends AbstractMap<String, Object> {
+
+        private Set<Map.Entry<String, Object>> entrySet;
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            for(String name : names) {
+                if(name.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? getParam((String) key) : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if(entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        return new Iterator<Map.Entry<String, Object>>() {
+                            int i;
+                            @Override
+                            public boolean hasNext() {
+                                return i < names.length;
+                            }
+                            @Override
+                            public Map.Entry<String, Object> next() {
+                                if(i >= names.length) {
+                                    throw new NoSuchElementException();
+                                }
+                                final Map.Entry<String, Object> entry = new AbstractMap.SimpleImmutableEntry<>(names[i], values[i]);
+                                ++i;
+                                return entry;
+                            }
+                        };
+                    }
+                    @Override
+                    public int size() {
+                        return names.length;
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
     @Override
     public String toString() {
         final StringBuilder buf = new StringBuilder();
@@ -30,9 +30,12 @@ class ResolvedFeatureParam {
     final FeatureParameterSpec spec;
     final FeatureParameterType type;
     final Object defaultValue;
+    // the index of the param value in the features of the spec
+    final int index;
 
-    ResolvedFeatureParam(FeatureParameterSpec spec, FeatureParameterType type) throws ProvisioningException {
+    ResolvedFeatureParam(FeatureParameterSpec spec, FeatureParameterType type, int index) throws ProvisioningException {
         this.spec = spec;
+        this.index = index;
         this.type = type;
         if(spec.hasDefaultValue()) {
             defaultValue = type.fromString(spec.getDefaultValue());
@@ -46,35 +46,52 @@ import org.jboss.provisioning.util.StringUtils;
  *
  * @author Alexey Loubyansky
  */
-public class ResolvedFeatureSpec extends CapabilityProvider {
+public class ResolvedFeatureSpec {
 
     final ResolvedSpecId id;
     final FeatureSpec xmlSpec;
     private Map<String, ResolvedFeatureParam> resolvedParamSpecs = Collections.emptyMap();
+    // the params indexed by the slots of the param values in the features of the spec
+    final ResolvedFeatureParam[] params;
     private Map<String, ResolvedFeatureSpec> resolvedRefTargets;
     private Map<ResolvedFeatureId, FeatureDependencySpec> resolvedDeps;
+    // shared by the IDs of the features of this spec
+    private final String[] idParamNames;
 
 
     public ResolvedFeatureSpec(ResolvedSpecId specId, ParameterTypeProvider typeProvider, FeatureSpec spec) throws ProvisioningException {
         this.id = specId;
         this.xmlSpec = spec;
 
+        params = new ResolvedFeatureParam[xmlSpec.getParamsTotal()];
         if(xmlSpec.hasParams()) {
+            int i = 0;
             for(Map.Entry<String, FeatureParameterSpec> entry : xmlSpec.getParams().entrySet()) {
                 final FeatureParameterSpec param = entry.getValue();
-                resolvedParamSpecs = PmCollections.put(resolvedParamSpecs, param.getName(), resolveParamSpec(param, typeProvider));
+                final ResolvedFeatureParam resolvedParam = resolveParamSpec(param, typeProvider, i);
+                params[i++] = resolvedParam;
+                resolvedParamSpecs = PmCollections.put(resolvedParamSpecs, param.getName(), resolvedParam);
             }
         }
+        if(xmlSpec.hasId()) {
+            final List<FeatureParameterSpec> idParams = xmlSpec.getIdParams();
+            idParamNames = new String[idParams.size()];
+            for(int i = 0; i < idParamNames.length; ++i) {
+                idParamNames[i] = idParams.get(i).getName();
+            }
+        } else {
+            idParamNames = null;
+        }
     }
 
-    private ResolvedFeatureParam resolveParamSpec(FeatureParameterSpec paramSpec, ParameterTypeProvider typeProvider) throws ProvisioningException {
+    private ResolvedFeatureParam resolveParamSpec(FeatureParameterSpec paramSpec, ParameterTypeProvider typeProvider, int index) throws ProvisioningException {
         final FeatureParameterType type;
         try {
             type = typeProvider.getType(id.gav.toGa(), paramSpec.getType());
         } catch(ParameterTypeNotFoundException e) {
             throw new ProvisioningException(Errors.failedToResolveParameter(id, paramSpec.getName()), e);
         }
-        return new ResolvedFeatureParam(paramSpec, type);
+        return new ResolvedFeatureParam(paramSpec, type, index);
     }
 
     public ResolvedSpecId getId() {
@@ -101,6 +118,15 @@ public class ResolvedFeatureSpec extends CapabilityProvider {
         return resolvedParamSpecs.keySet();
     }
 
+    /**
+     * Returns the index of the param value in the features of the spec
+     * or -1 if the spec does not include the param.
+     */
+    int getParamIndex(String name) {
+        final ResolvedFeatureParam p = resolvedParamSpecs.get(name);
+        return p == null ? -1 : p.index;
+    }
+
     ResolvedFeatureParam getResolvedParam(String name) throws ProvisioningDescriptionException {
         final ResolvedFeatureParam p = resolvedParamSpecs.get(name);
         if(p == null) {
@@ -273,15 +299,11 @@ public class ResolvedFeatureSpec extends CapabilityProvider {
             return null;
         }
         final List<FeatureParameterSpec> idSpecs = xmlSpec.getIdParams();
-        if(idSpecs.size() == 1) {
-            final FeatureParameterSpec idSpec = idSpecs.get(0);
-            return new ResolvedFeatureId(id, Collections.singletonMap(idSpec.getName(), resolveIdParamValue(params, idSpec)));
-        }
-        final Map<String, Object> resolvedParams = new HashMap<>(idSpecs.size());
-        for(FeatureParameterSpec param : idSpecs) {
-            resolvedParams.put(param.getName(), resolveIdParamValue(params, param));
+        final Object[] values = new Object[idParamNames.length];
+        for(int i = 0; i < values.length; ++i) {
+            values[i] = resolveIdParamValue(params, idSpecs.get(i));
         }
-        return new ResolvedFeatureId(id, resolvedParams);
+        return new ResolvedFeatureId(id, idParamNames, values);
     }
 
     private Object resolveIdParamValue(Map<String, String> params, final FeatureParameterSpec param) throws ProvisioningException {
@@ -341,7 +363,10 @@ public class ResolvedFeatureSpec extends CapabilityProvider {
         return result;
     }
 
-    void resolveRefMappings(ProvisioningRuntimeBuilder rt) throws ProvisioningException {
+    synchronized void resolveRefMappings(ProvisioningRuntimeBuilder rt) throws ProvisioningException {
+        if(resolvedRefTargets != null) {
+            return;
+        }
         if(!xmlSpec.hasFeatureRefs()) {
             resolvedRefTargets = Collections.emptyMap();
             return;
@@ -99,11 +99,14 @@ public class CapabilitySpec {
     private final String[] elems;
     private final Boolean[] isElemStatic;
     private final boolean optional;
+    private final String str;
 
     private CapabilitySpec(List<String> elems, List<Boolean> elemTypes, boolean optional) throws ProvisioningDescriptionException {
         this.elems = elems.toArray(new String[elems.size()]);
         this.isElemStatic = elemTypes.toArray(new Boolean[elemTypes.size()]);
         this.optional = optional;
+        // static capabilities are resolved to this string
+        this.str = buildString();
         if(optional && isStatic()) {
             throw new ProvisioningDescriptionException("Static capability cannot be optional: " + toString());
         }
@@ -156,6 +159,10 @@ public class CapabilitySpec {
 
     @Override
     public String toString() {
+        return str;
+    }
+
+    private String buildString() {
         if(elems.length == 1 && isElemStatic[0]) {
             return elems[0];
         }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of the files of an installation recording the size, the last
+ * modified time and the hash of each file at the time the installation was
+ * provisioned. It is stored in the provisioned state directory and allows
+ * to skip re-hashing the files whose size and last modified time have not
+ * changed since.
+ *
+ * <p>The first line of the manifest is the time the manifest was written followed
+ * by the name of the algorithm the hashes were computed with. Each of the following
+ * lines has the format {@code <hash> <size> <last-modified> <relative-path>}.
+ * The empty directories are recorded with the size of -1.
+ * The recorded hashes are used only by the listings that use the same algorithm.
+ * The files last modified at or after the last modified time of the manifest
+ * itself are never trusted, since the modifications made after the manifest
+ * was written may not be reflected in their timestamps. The last modified time
+ * of the manifest, unlike the time recorded in it, has the same granularity
+ * as the timestamps of the files, which may be as coarse as a few seconds.
+ */
+public class ContentManifest {
+
+    /**
+     * The manifest is only used for local change detection, so a fast algorithm is preferred.
+     */
+    public static final HashAlgorithm DEFAULT_HASH_ALGORITHM = HashAlgorithm.XXHASH64;
+
+    private static final ContentManifest EMPTY = new ContentManifest(Long.MIN_VALUE, null, Collections.emptyMap());
+
+    private static final long DIRECTORY_SIZE = -1;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Records the size and the last modified time of the files of the installation
+     * along with their hashes and writes the manifest into the provisioned state
+     * directory of the installation.
+     *
+     * @param installationDir  installation directory
+     * @param hashes  the hashes of the files and the empty directories by their paths relative to the installation directory
+     * @param algorithm  the algorithm the hashes were computed with
+     * @throws IOException  in case reading the file attributes or writing the manifest fails
+     */
+    public static void write(Path installationDir, Map<Path, String> hashes, HashAlgorithm algorithm) throws IOException {
+        final Path manifest = PathsUtils.getContentManifest(installationDir);
+        Files.createDirectories(manifest.getParent());
+        try(BufferedWriter writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            writer.write(String.valueOf(System.currentTimeMillis()));
+            writer.write(' ');
+            writer.write(algorithm.getName());
+            writer.newLine();
+            for(Map.Entry<Path, String> entry : hashes.entrySet()) {
+                final Path file = installationDir.resolve(entry.getKey());
+                final BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch(IOException e) {
+                    continue;
+                }
+                final long size;
+                if(attrs.isRegularFile()) {
+                    size = attrs.size();
+                } else if(attrs.isDirectory()) {
+                    size = DIRECTORY_SIZE;
+                } else {
+                    continue;
+                }
+                writer.write(entry.getValue());
+                writer.write(' ');
+                writer.write(String.valueOf(size));
+                writer.write(' ');
+                writer.write(String.valueOf(attrs.lastModifiedTime().toMillis()));
+                writer.write(' ');
+                writer.write(entry.getKey().toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest of the installation. If the installation does not
+     * have a manifest or it could not be read, an empty manifest is returned.
+     *
+     * @param installationDir  installation directory
+     * @return  the manifest of the installation
+     */
+    public static ContentManifest read(Path installationDir) {
+        final Path manifest = PathsUtils.getContentManifest(installationDir);
+        if(!Files.isRegularFile(manifest)) {
+            return EMPTY;
+        }
+        try(BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            final long written = Files.getLastModifiedTime(manifest).toMillis();
+            String line = reader.readLine();
+            if(line == null) {
+                return EMPTY;
+            }
+            final int algorithmStart = line.indexOf(' ') + 1;
+            if(algorithmStart == 0) {
+                return EMPTY;
+            }
+            final HashAlgorithm algorithm = HashAlgorithm.forName(line.substring(algorithmStart));
+            if(algorithm == null) {
+                return EMPTY;
+            }
+            final Map<Path, Entry> entries = new HashMap<>();
+            while((line = reader.readLine()) != null) {
+                final int sizeStart = line.indexOf(' ') + 1;
+                final int timeStart = line.indexOf(' ', sizeStart) + 1;
+                final int pathStart = line.indexOf(' ', timeStart) + 1;
+                if(sizeStart == 0 || timeStart == 0 || pathStart == 0) {
+                    return EMPTY;
+                }
+                entries.put(Paths.get(line.substring(pathStart)), new Entry(
+                        Long.parseLong(line.substring(sizeStart, timeStart - 1)),
+                        Long.parseLong(line.substring(timeStart, pathStart - 1)),
+                        line.substring(0, sizeStart - 1)));
+            }
+            return new ContentManifest(written, algorithm, entries);
+        } catch(IOException | RuntimeException e) {
+            // the manifest is only an optimization, the files will be hashed
+            return EMPTY;
+        }
+    }
+
+    private final long written;
+    private final HashAlgorithm algorithm;
+    private final Map<Path, Entry> entries;
+
+    private ContentManifest(long written, HashAlgorithm algorithm, Map<Path, Entry> entries) {
+        this.written = written;
+        this.algorithm = algorithm;
+        this.entries = entries;
+    }
+
+    /**
+     * The algorithm the recorded hashes were computed with.
+     *
+     * @return  hash algorithm or null if the manifest is empty
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the recorded hashes of the files and the empty directories
+     * regardless of their current state.
+     *
+     * @return  the recorded hashes by the paths relative to the installation directory
+     */
+    public Map<Path, String> getHashes() {
+        final Map<Path, String> hashes = new HashMap<>(entries.size());
+        for(Map.Entry<Path, Entry> entry : entries.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().hash);
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the paths of the recorded empty directories.
+     *
+     * @return  the paths of the empty directories relative to the installation directory
+     */
+    public Set<Path> getDirectories() {
+        final Set<Path> dirs = new HashSet<>();
+        for(Map.Entry<Path, Entry> entry : entries.entrySet()) {
+            if(entry.getValue().size == DIRECTORY_SIZE) {
+                dirs.add(entry.getKey());
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Returns the recorded hash of the file if its current size and last
+     * modified time match the recorded ones, otherwise null.
+     *
+     * @param relativePath  the path of the file relative to the installation directory
+     * @param attrs  the current attributes of the file
+     * @return  the recorded hash of the file or null if the file has to be hashed
+     */
+    public String getHash(Path relativePath, BasicFileAttributes attrs) {
+        final Entry entry = entries.get(relativePath);
+        if(entry == null || !attrs.isRegularFile() || entry.size != attrs.size()) {
+            return null;
+        }
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        // a file modified in the same time unit the manifest was written in may have been modified after it
+        if(entry.lastModified != lastModified || lastModified >= written) {
+            return null;
+        }
+        return entry.hash;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Algorithm used to hash content. SHA-1 is the default one and it is the one
+ * used for anything that is persisted or shared between installations. The
+ * non-cryptographic ones are considerably faster and are meant for detecting
+ * local changes, e.g. in the content of an installation.
+ *
+ * <p>Each thread gets its own instance of the hasher of an algorithm,
+ * so the hashes can be computed concurrently.
+ */
+public abstract class HashAlgorithm {
+
+    /**
+     * Computes a hash of the bytes it is updated with.
+     */
+    public interface Hasher {
+
+        void update(byte[] bytes, int offset, int length);
+
+        /**
+         * Completes the computation and resets the hasher.
+         *
+         * @return  the hash
+         */
+        byte[] digest();
+
+        void reset();
+    }
+
+    public static final HashAlgorithm SHA1 = new HashAlgorithm("SHA-1") {
+        @Override
+        public Hasher newHasher() {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Hasher() {
+                @Override
+                public void update(byte[] bytes, int offset, int length) {
+                    digest.update(bytes, offset, length);
+                }
+                @Override
+                public byte[] digest() {
+                    return digest.digest();
+                }
+                @Override
+                public void reset() {
+                    digest.reset();
+                }
+            };
+        }
+    };
+
+    public static final HashAlgorithm CRC32 = new HashAlgorithm("CRC32") {
+        @Override
+        public Hasher newHasher() {
+            final CRC32 crc = new CRC32();
+            return new Hasher() {
+                @Override
+                public void update(byte[] bytes, int offset, int length) {
+                    crc.update(bytes, offset, length);
+                }
+                @Override
+                public byte[] digest() {
+                    final long value = crc.getValue();
+                    crc.reset();
+                    return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+                }
+                @Override
+                public void reset() {
+                    crc.reset();
+                }
+            };
+        }
+    };
+
+    public static final HashAlgorithm XXHASH64 = new HashAlgorithm("XXH64") {
+        @Override
+        public Hasher newHasher() {
+            return new XxHash64();
+        }
+    };
+
+    /**
+     * Returns the built-in algorithm with the specified name.
+     *
+     * @param name  algorithm name
+     * @return  the algorithm or null if there is no built-in algorithm with the name
+     */
+    public static HashAlgorithm forName(String name) {
+        if(SHA1.name.equals(name)) {
+            return SHA1;
+        }
+        if(XXHASH64.name.equals(name)) {
+            return XXHASH64;
+        }
+        if(CRC32.name.equals(name)) {
+            return CRC32;
+        }
+        return null;
+    }
+
+    private final String name;
+    private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(this::newHasher);
+
+    protected HashAlgorithm(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public abstract Hasher newHasher();
+
+    /**
+     * Returns the hasher of the current thread in its initial state.
+     */
+    Hasher getHasher() {
+        final Hasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Streaming implementation of the 64-bit xxHash with seed 0.
+     */
+    private static class XxHash64 implements Hasher {
+
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        private final byte[] buf = new byte[32];
+        private int bufLength;
+        private long total;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+
+        XxHash64() {
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            v1 = PRIME1 + PRIME2;
+            v2 = PRIME2;
+            v3 = 0;
+            v4 = -PRIME1;
+            bufLength = 0;
+            total = 0;
+        }
+
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            total += length;
+            final int end = offset + length;
+            if(bufLength > 0) {
+                final int fill = Math.min(32 - bufLength, length);
+                System.arraycopy(bytes, offset, buf, bufLength, fill);
+                bufLength += fill;
+                offset += fill;
+                if(bufLength < 32) {
+                    return;
+                }
+                stripe(buf, 0);
+                bufLength = 0;
+            }
+            while(end - offset >= 32) {
+                stripe(bytes, offset);
+                offset += 32;
+            }
+            if(offset < end) {
+                System.arraycopy(bytes, offset, buf, 0, end - offset);
+                bufLength = end - offset;
+            }
+        }
+
+        private void stripe(byte[] bytes, int offset) {
+            v1 = round(v1, readLong(bytes, offset));
+            v2 = round(v2, readLong(bytes, offset + 8));
+            v3 = round(v3, readLong(bytes, offset + 16));
+            v4 = round(v4, readLong(bytes, offset + 24));
+        }
+
+        @Override
+        public byte[] digest() {
+            long h;
+            if(total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = PRIME5;
+            }
+            h += total;
+            int i = 0;
+            while(i + 8 <= bufLength) {
+                h ^= round(0, readLong(buf, i));
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+                i += 8;
+            }
+            if(i + 4 <= bufLength) {
+                h ^= (readInt(buf, i) & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            while(i < bufLength) {
+                h ^= (buf[i] & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+                ++i;
+            }
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+            reset();
+            final byte[] result = new byte[8];
+            for(int j = 7; j >= 0; --j) {
+                result[j] = (byte) h;
+                h >>>= 8;
+            }
+            return result;
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * PRIME1 + PRIME4;
+        }
+
+        private static long readLong(byte[] bytes, int i) {
+            return (bytes[i] & 0xFFL)
+                    | (bytes[i + 1] & 0xFFL) << 8
+                    | (bytes[i + 2] & 0xFFL) << 16
+                    | (bytes[i + 3] & 0xFFL) << 24
+                    | (bytes[i + 4] & 0xFFL) << 32
+                    | (bytes[i + 5] & 0xFFL) << 40
+                    | (bytes[i + 6] & 0xFFL) << 48
+                    | (bytes[i + 7] & 0xFFL) << 56;
+        }
+
+        private static int readInt(byte[] bytes, int i) {
+            return (bytes[i] & 0xFF)
+                    | (bytes[i + 1] & 0xFF) << 8
+                    | (bytes[i + 2] & 0xFF) << 16
+                    | (bytes[i + 3] & 0xFF) << 24;
+        }
+    }
+}
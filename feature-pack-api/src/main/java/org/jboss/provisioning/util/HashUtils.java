@@ -24,11 +24,11 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.jboss.provisioning.util.HashAlgorithm.Hasher;
+
 /**
  *
  * @author Alexey Loubyansky
@@ -37,40 +37,34 @@ public class HashUtils {
 
     private static final char[] TABLE = "0123456789abcdef".toCharArray();
 
-    private static final MessageDigest DIGEST;
-    static {
-        try {
-            DIGEST = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     public static byte[] hashPath(Path path) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            updateDigest(DIGEST, path);
-            return DIGEST.digest();
-        }
+        final Hasher hasher = HashAlgorithm.SHA1.getHasher();
+        updateDigest(hasher, path);
+        return hasher.digest();
     }
 
     public static String hashFile(Path path) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            updateDigest(DIGEST, path);
-            return bytesToHexString(DIGEST.digest());
-        }
+        return hashFile(path, HashAlgorithm.SHA1);
+    }
+
+    public static String hashFile(Path path, HashAlgorithm algorithm) throws IOException {
+        final Hasher hasher = algorithm.getHasher();
+        updateDigest(hasher, path);
+        return bytesToHexString(hasher.digest());
     }
 
     public static String hash(String content) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            DIGEST.update(content.getBytes(StandardCharsets.UTF_8));
-            return bytesToHexString(DIGEST.digest());
-        }
+        return hash(content, HashAlgorithm.SHA1);
+    }
+
+    public static String hash(String content, HashAlgorithm algorithm) throws IOException {
+        final Hasher hasher = algorithm.getHasher();
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        hasher.update(bytes, 0, bytes.length);
+        return bytesToHexString(hasher.digest());
     }
 
-    private static void updateDigest(MessageDigest digest, Path path) throws IOException {
+    private static void updateDigest(Hasher hasher, Path path) throws IOException {
         if(Files.isDirectory(path)) {
             try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
                 final Map<String, Path> sortedChildren = new TreeMap<String, Path>();
@@ -78,7 +72,7 @@ public class HashUtils {
                     sortedChildren.put(p.getFileName().toString(), p);
                 }
                 for (Path child : sortedChildren.values()) {
-                    updateDigest(digest, child);
+                    updateDigest(hasher, child);
                 }
             }
         } else {
@@ -86,34 +80,32 @@ public class HashUtils {
                 byte[] bytes = new byte[8192];
                 int read;
                 while ((read = bis.read(bytes)) > -1) {
-                    digest.update(bytes, 0, read);
+                    hasher.update(bytes, 0, read);
                 }
             }
         }
     }
 
     public static byte[] hashJar(Path jarFile, boolean ignoreManifest) throws IOException {
-        synchronized (DIGEST) {
-            DIGEST.reset();
-            try (FileSystem zipfs = FileSystems.newFileSystem(jarFile, null)) {
-                for (Path zipRoot : zipfs.getRootDirectories()) {
-                    final Map<String, Path> sortedChildren = new TreeMap<String, Path>();
-                    try(DirectoryStream<Path> stream = Files.newDirectoryStream(zipRoot)) {
-                        for(Path p : stream) {
-                            final String fileName = p.getFileName().toString();
-                            if(ignoreManifest && fileName.equals("META-INF/")) {
-                                continue;
-                            }
-                            sortedChildren.put(fileName, p);
+        final Hasher hasher = HashAlgorithm.SHA1.getHasher();
+        try (FileSystem zipfs = FileSystems.newFileSystem(jarFile, null)) {
+            for (Path zipRoot : zipfs.getRootDirectories()) {
+                final Map<String, Path> sortedChildren = new TreeMap<String, Path>();
+                try(DirectoryStream<Path> stream = Files.newDirectoryStream(zipRoot)) {
+                    for(Path p : stream) {
+                        final String fileName = p.getFileName().toString();
+                        if(ignoreManifest && fileName.equals("META-INF/")) {
+                            continue;
                         }
+                        sortedChildren.put(fileName, p);
                     }
-                    for (Path child : sortedChildren.values()) {
-                        updateDigest(DIGEST, child);
-                    }
+                }
+                for (Path child : sortedChildren.values()) {
+                    updateDigest(hasher, child);
                 }
             }
-            return DIGEST.digest();
         }
+        return hasher.digest();
     }
 
     /**
@@ -19,23 +19,29 @@ package org.jboss.provisioning.util;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -88,6 +94,23 @@ public class IoUtils {
     }
 
     public static void copy(Path source, Path target) throws IOException {
+        copy(source, target, null);
+    }
+
+    /**
+     * Copies the source to the target, the files accepted by the link filter
+     * are hard-linked instead of being copied. The linked files share
+     * the content with the source, so they must not be modified in place.
+     * If the links can't be created (e.g. the source and the target are on
+     * different file systems), the rest of the files are copied.
+     *
+     * @param source  the file or directory to copy
+     * @param target  the target path
+     * @param linkFilter  accepts the paths, relative to the source, of the files
+     * that should be hard-linked, null to copy all the files
+     * @throws IOException  in case copying fails
+     */
+    public static void copy(Path source, Path target, PathFilter linkFilter) throws IOException {
         if(Files.isDirectory(source)) {
             Files.createDirectories(target);
         } else {
@@ -95,6 +118,7 @@ public class IoUtils {
         }
         Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
                 new SimpleFileVisitor<Path>() {
+                    boolean link = linkFilter != null;
                     @Override
                     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
                         throws IOException {
@@ -111,12 +135,38 @@ public class IoUtils {
                     @Override
                     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                         throws IOException {
-                        Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+                        final Path relative = source.relativize(file);
+                        if(link && linkFilter.accept(relative)) {
+                            link = linkOrCopy(file, target.resolve(relative));
+                        } else {
+                            Files.copy(file, target.resolve(relative), StandardCopyOption.REPLACE_EXISTING);
+                        }
                         return FileVisitResult.CONTINUE;
                     }
                 });
     }
 
+    /**
+     * Creates a hard link to the source file replacing the target, if it exists.
+     * If the link can't be created, the source is copied instead.
+     *
+     * @param source  the file to link to
+     * @param target  the link to create
+     * @return  true if the link was created, false if the file was copied
+     * @throws IOException  in case both linking and copying failed
+     */
+    public static boolean linkOrCopy(Path source, Path target) throws IOException {
+        // never write through an existing target, it may be a link itself
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch(IOException | UnsupportedOperationException | SecurityException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return false;
+        }
+    }
+
     public static String readFile(Path file) throws IOException {
         final StringWriter buf = new StringWriter();
         try (BufferedWriter bw = new BufferedWriter(buf)) {
@@ -135,45 +185,126 @@ public class IoUtils {
         Files.write(file, content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
     }
 
-     public static Map<Path, String> listContents(Path root, PathFilter filter) throws IOException {
+    /**
+     * Lists the files and the empty directories under the root accepted by
+     * the filter along with their hashes. The sub-directories and the files
+     * are hashed concurrently by the common fork/join pool, the result does
+     * not depend on the order in which they are processed.
+     *
+     * <p>If the root is an installation with a content manifest recorded with
+     * the same hash algorithm, the files whose size and last modified time
+     * match the manifest are not re-hashed. The manifest itself is not included
+     * in the result.
+     *
+     * @param root  the root of the tree to list
+     * @param filter  accepts the paths, relative to the root, to include
+     * @return  the hashes of the accepted files and empty directories by their paths relative to the root
+     * @throws IOException  in case hashing a file fails
+     */
+    public static Map<Path, String> listContents(Path root, PathFilter filter) throws IOException {
+        return listContents(root, filter, HashAlgorithm.SHA1);
+    }
+
+    /**
+     * Same as {@link #listContents(Path, PathFilter)} hashing the content with the specified algorithm.
+     *
+     * @param root  the root of the tree to list
+     * @param filter  accepts the paths, relative to the root, to include
+     * @param algorithm  hash algorithm
+     * @return  the hashes of the accepted files and empty directories by their paths relative to the root
+     * @throws IOException  in case hashing a file fails
+     */
+    public static Map<Path, String> listContents(Path root, PathFilter filter, HashAlgorithm algorithm) throws IOException {
         if (root == null || !Files.exists(root)) {
             return Collections.emptyMap();
         }
         if(Files.isRegularFile(root)) {
-            return Collections.singletonMap(root.relativize(root), HashUtils.hashFile(root));
+            return Collections.singletonMap(root.relativize(root), HashUtils.hashFile(root, algorithm));
         }
-        Map<Path, String> contents = new HashMap<>();
-        Files.walkFileTree(root, new FileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                if (filter.accept(root.relativize(dir))) {
-                    String[] files = dir.toFile().list();
-                    if (files == null || files.length == 0) {
-                        contents.put(root.relativize(dir), HashUtils.hash(root.relativize(dir).toString()));
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-                return FileVisitResult.SKIP_SUBTREE;
-            }
+        final ListContentsTask task = new ListContentsTask(new ListContentsContext(root, filter, algorithm), root,
+                Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        try {
+            ForkJoinPool.commonPool().invoke(task);
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return task.ctx.contents;
+    }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if(filter.accept(root.relativize(file))) {
-                    contents.put(root.relativize(file), HashUtils.hashFile(file));
-                }
-                return FileVisitResult.CONTINUE;
-            }
+    private static class ListContentsContext {
+        final Path root;
+        final PathFilter filter;
+        final HashAlgorithm algorithm;
+        final ContentManifest manifest;
+        final Path manifestPath;
+        final Map<Path, String> contents = new ConcurrentHashMap<>();
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                return FileVisitResult.CONTINUE;
-            }
+        ListContentsContext(Path root, PathFilter filter, HashAlgorithm algorithm) {
+            this.root = root;
+            this.filter = filter;
+            this.algorithm = algorithm;
+            final ContentManifest manifest = ContentManifest.read(root);
+            this.manifest = manifest.getHashAlgorithm() == algorithm ? manifest : null;
+            this.manifestPath = root.relativize(PathsUtils.getContentManifest(root));
+        }
+    }
+
+    private static class ListContentsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ListContentsContext ctx;
+        private final Path path;
+        private final BasicFileAttributes attrs;
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                return FileVisitResult.CONTINUE;
+        ListContentsTask(ListContentsContext ctx, Path path, BasicFileAttributes attrs) {
+            this.ctx = ctx;
+            this.path = path;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute() {
+            final Path relative = ctx.root.relativize(path);
+            if(!ctx.filter.accept(relative)) {
+                return;
+            }
+            try {
+                if(!attrs.isDirectory()) {
+                    if(relative.equals(ctx.manifestPath)) {
+                        return;
+                    }
+                    String hash = ctx.manifest == null ? null : ctx.manifest.getHash(relative, attrs);
+                    if(hash == null) {
+                        hash = HashUtils.hashFile(path, ctx.algorithm);
+                    }
+                    ctx.contents.put(relative, hash);
+                    return;
+                }
+                boolean empty = true;
+                final List<ListContentsTask> tasks = new ArrayList<>();
+                try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for(Path child : stream) {
+                        empty = false;
+                        final BasicFileAttributes childAttrs;
+                        try {
+                            childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch(IOException e) {
+                            continue;
+                        }
+                        tasks.add(new ListContentsTask(ctx, child, childAttrs));
+                    }
+                } catch(IOException e) {
+                    // the directory could not be read, it is treated as an empty one
+                }
+                if(empty) {
+                    ctx.contents.put(relative, HashUtils.hash(relative.toString(), ctx.algorithm));
+                } else {
+                    invokeAll(tasks);
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
             }
-        });
-        return contents;
+        }
     }
 }
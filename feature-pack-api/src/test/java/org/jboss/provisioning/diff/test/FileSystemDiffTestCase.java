@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.diff.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.provisioning.DefaultMessageWriter;
+import org.jboss.provisioning.diff.FileSystemDiff;
+import org.jboss.provisioning.diff.FileSystemDiffResult;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSystemDiffTestCase {
+
+    private Path pristine;
+    private Path customized;
+
+    @Before
+    public void before() throws Exception {
+        pristine = TestUtils.mkRandomTmpDir();
+        customized = TestUtils.mkRandomTmpDir();
+    }
+
+    @After
+    public void after() throws Exception {
+        IoUtils.recursiveDelete(pristine);
+        IoUtils.recursiveDelete(customized);
+    }
+
+    private void write(String name, String pristineContent, String customizedContent) throws Exception {
+        Files.write(pristine.resolve(name), pristineContent.getBytes(StandardCharsets.UTF_8));
+        Files.write(customized.resolve(name), customizedContent.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String lines(int total, int changedLine, String change) {
+        final StringBuilder buf = new StringBuilder();
+        for(int i = 1; i <= total; ++i) {
+            buf.append(i == changedLine ? change : "line " + i).append('\n');
+        }
+        return buf.toString();
+    }
+
+    private FileSystemDiffResult diff(long maxTextDiffSize) {
+        return new FileSystemDiff(DefaultMessageWriter.getDefaultInstance(), pristine, customized)
+                .setMaxTextDiffSize(maxTextDiffSize)
+                .diff();
+    }
+
+    @Test
+    public void testBinaryIsDetectedFromFirstBytes() throws Exception {
+        Files.write(pristine.resolve("data.bin"), new byte[] {'a', 0, 'b', '\n'});
+        Files.write(customized.resolve("data.bin"), new byte[] {'a', 0, 'c', '\n'});
+        final FileSystemDiffResult result = diff(FileSystemDiff.DEFAULT_MAX_TEXT_DIFF_SIZE);
+        assertEquals(Collections.singleton(Paths.get("data.bin")), result.getModifiedBinaryFiles());
+        assertTrue(result.getUnifiedDiffs().isEmpty());
+    }
+
+    @Test
+    public void testLargeTextFileIsDiffedByRegion() throws Exception {
+        write("small.txt", "a\nb\n", "a\nc\n");
+        write("large.txt", lines(1000, 500, "line 500"), lines(1000, 500, "changed"));
+        final FileSystemDiffResult inMemory = diff(FileSystemDiff.DEFAULT_MAX_TEXT_DIFF_SIZE);
+        final FileSystemDiffResult streamed = diff(1024);
+        assertTrue(streamed.getModifiedBinaryFiles().isEmpty());
+        assertEquals(inMemory.getUnifiedDiffs(), streamed.getUnifiedDiffs());
+        final List<String> diff = streamed.getUnifiedDiffs().get(Paths.get("large.txt"));
+        assertTrue(diff.contains("-line 500"));
+        assertTrue(diff.contains("+changed"));
+        assertEquals(2, streamed.getUnifiedDiffs().size());
+    }
+
+    @Test
+    public void testLargeDifferingRegionIsTreatedAsBinary() throws Exception {
+        write("large.txt", lines(1000, 1, "first"), lines(1000, 1000, "last"));
+        final FileSystemDiffResult result = diff(1024);
+        assertEquals(Collections.singleton(Paths.get("large.txt")), result.getModifiedBinaryFiles());
+        assertTrue(result.getUnifiedDiffs().isEmpty());
+    }
+}
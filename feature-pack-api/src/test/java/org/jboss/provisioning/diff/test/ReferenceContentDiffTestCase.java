@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.diff.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.DefaultMessageWriter;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.diff.FileSystemDiff;
+import org.jboss.provisioning.diff.FileSystemDiffResult;
+import org.jboss.provisioning.diff.ReferenceContent;
+import org.jboss.provisioning.plugin.ProvisioningPlugin;
+import org.jboss.provisioning.runtime.ProvisioningRuntime;
+import org.jboss.provisioning.runtime.ProvisioningRuntimeBuilder;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathFilter;
+import org.junit.Test;
+
+/**
+ * Makes sure diffing an installation against the content computed from its
+ * recorded manifest and the feature-pack layouts gives the same result as
+ * diffing it against a pristine installation provisioned on disk, including
+ * the files and the empty directories created by the plug-ins.
+ */
+public class ReferenceContentDiffTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    private static final ProvisioningConfig CONFIG = provisioningConfig();
+
+    public static class GeneratingPlugin implements ProvisioningPlugin {
+        @Override
+        public void postInstall(ProvisioningRuntime runtime) throws ProvisioningException {
+            try {
+                IoUtils.writeFile(runtime.getStagedDir().resolve("fp1/generated.txt"), "gen1\ngen2\ngen3\n");
+                Files.createDirectories(runtime.getStagedDir().resolve("fp1/data"));
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to generate content", e);
+            }
+        }
+    }
+
+    private final AtomicInteger pristineProvisioned = new AtomicInteger();
+
+    private static ProvisioningConfig provisioningConfig() {
+        try {
+            return ProvisioningConfig.builder().addFeaturePack(FeaturePackConfig.forGav(FP1_GAV)).build();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected void doBefore() throws Exception {
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .newPackage("main", true)
+                    .writeContent("fp1/a.txt", "line1\nline2\nline3\n")
+                    .writeContent("fp1/b.txt", "b")
+                    .writeContent("fp1/c.txt", "c")
+                    .writeContent("fp1/log/server.log", "log")
+                    .getFeaturePack()
+                .addPlugin(GeneratingPlugin.class)
+                .getInstaller()
+            .install();
+    }
+
+    private FileSystemDiffResult diff(Path workDir, Path pristine, PathFilter filter) throws Exception {
+        try(ProvisioningRuntime runtime = ProvisioningRuntimeBuilder.newInstance(DefaultMessageWriter.getDefaultInstance())
+                .setArtifactResolver(getRepoManager())
+                .setConfig(CONFIG)
+                .setInstallDir(workDir)
+                .setReferenceManifest(ContentManifest.read(installHome))
+                .setPristineInstallation(pristine == null ? null : new ReferenceContent.PristineInstallation() {
+                    @Override
+                    public Path provision() {
+                        pristineProvisioned.incrementAndGet();
+                        return pristine;
+                    }
+                })
+                .build()) {
+            return FileSystemDiff.newInstance(runtime, installHome).diff(filter);
+        }
+    }
+
+    @Test
+    public void testSameAsPristineInstallation() throws Exception {
+        getPm().provision(CONFIG);
+        final Path pristine = TestUtils.mkRandomTmpDir();
+        final Path workDir = TestUtils.mkRandomTmpDir();
+        try {
+            ProvisioningManager.builder()
+                    .setArtifactResolver(getRepoManager())
+                    .setInstallationHome(pristine)
+                    .build()
+                    .provision(CONFIG);
+
+            IoUtils.writeFile(installHome.resolve("fp1/a.txt"), "line1\nline2 changed\nline3\n");
+            Files.delete(installHome.resolve("fp1/b.txt"));
+            IoUtils.writeFile(installHome.resolve("fp1/d.txt"), "d");
+
+            final ContentManifest manifest = ContentManifest.read(installHome);
+            assertFalse(manifest.isEmpty());
+            for(PathFilter filter : new PathFilter[] {PathFilter.DEFAULT, PathFilter.Builder.instance().addDirectories("*log").build()}) {
+                final FileSystemDiffResult expected = new FileSystemDiff(DefaultMessageWriter.getDefaultInstance(), pristine, installHome).diff(filter);
+                final FileSystemDiffResult actual = diff(workDir, pristine, filter);
+                assertEquals(Collections.singleton(Paths.get("fp1", "b.txt")), actual.getDeletedFiles());
+                assertEquals(expected.getDeletedFiles(), actual.getDeletedFiles());
+                assertEquals(Collections.singleton(Paths.get("fp1", "d.txt")), actual.getAddedFiles());
+                assertEquals(expected.getAddedFiles(), actual.getAddedFiles());
+                assertEquals(expected.getModifiedBinaryFiles(), actual.getModifiedBinaryFiles());
+                assertEquals(expected.getUnifiedDiffs().keySet(), actual.getUnifiedDiffs().keySet());
+                assertEquals(Collections.singleton(Paths.get("fp1", "a.txt")), actual.getUnifiedDiffs().keySet());
+                // the headers mention the compared files, the hunks must be the same
+                final List<String> expectedDiff = expected.getUnifiedDiffs().get(Paths.get("fp1", "a.txt"));
+                final List<String> actualDiff = actual.getUnifiedDiffs().get(Paths.get("fp1", "a.txt"));
+                assertEquals(expectedDiff.subList(2, expectedDiff.size()), actualDiff.subList(2, actualDiff.size()));
+            }
+            // the package files are diffed against the layouts
+            assertEquals(0, pristineProvisioned.get());
+        } finally {
+            IoUtils.recursiveDelete(pristine);
+            IoUtils.recursiveDelete(workDir);
+        }
+    }
+
+    @Test
+    public void testPluginGeneratedContent() throws Exception {
+        getPm().provision(CONFIG);
+        final Path pristine = TestUtils.mkRandomTmpDir();
+        final Path workDir = TestUtils.mkRandomTmpDir();
+        try {
+            ProvisioningManager.builder()
+                    .setArtifactResolver(getRepoManager())
+                    .setInstallationHome(pristine)
+                    .build()
+                    .provision(CONFIG);
+            assertTrue(ContentManifest.read(installHome).getDirectories().contains(Paths.get("fp1", "data")));
+
+            // the empty directory created by the plug-in is neither added nor deleted
+            FileSystemDiffResult actual = diff(workDir, pristine, PathFilter.DEFAULT);
+            assertEquals(Collections.emptySet(), actual.getAddedFiles());
+            assertEquals(Collections.emptySet(), actual.getDeletedFiles());
+
+            IoUtils.writeFile(installHome.resolve("fp1/generated.txt"), "gen1\ngen2 changed\ngen3\n");
+            IoUtils.recursiveDelete(installHome.resolve("fp1/data"));
+            final FileSystemDiffResult expected = new FileSystemDiff(DefaultMessageWriter.getDefaultInstance(), pristine, installHome).diff();
+            actual = diff(workDir, pristine, PathFilter.DEFAULT);
+            assertEquals(Collections.singleton(Paths.get("fp1", "data")), actual.getDeletedFiles());
+            assertEquals(expected.getDeletedFiles(), actual.getDeletedFiles());
+            assertEquals(expected.getAddedFiles(), actual.getAddedFiles());
+            assertEquals(Collections.emptySet(), actual.getModifiedBinaryFiles());
+            // the generated file has no pristine source in the layouts and is diffed against the pristine installation
+            assertEquals(Collections.singleton(Paths.get("fp1", "generated.txt")), actual.getUnifiedDiffs().keySet());
+            final List<String> expectedDiff = expected.getUnifiedDiffs().get(Paths.get("fp1", "generated.txt"));
+            final List<String> actualDiff = actual.getUnifiedDiffs().get(Paths.get("fp1", "generated.txt"));
+            assertEquals(expectedDiff.subList(2, expectedDiff.size()), actualDiff.subList(2, actualDiff.size()));
+            assertEquals(1, pristineProvisioned.get());
+
+            // without the pristine installation the file is reported as a modified binary
+            actual = diff(workDir, null, PathFilter.DEFAULT);
+            assertEquals(Collections.singleton(Paths.get("fp1", "generated.txt")), actual.getModifiedBinaryFiles());
+        } finally {
+            IoUtils.recursiveDelete(pristine);
+            IoUtils.recursiveDelete(workDir);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.featurepack.pkg.test;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.repomanager.FeaturePackBuilder;
+import org.jboss.provisioning.repomanager.FeaturePackRepositoryManager;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.PmInstallFeaturePackTestBase;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.test.util.fs.state.DirState.DirBuilder;
+
+/**
+ * A package dependency chain deeper than what a recursive walk
+ * of the dependency graph would comfortably handle.
+ */
+public class DeepPackageDependencyChainTestCase extends PmInstallFeaturePackTestBase {
+
+    private static final ArtifactCoords.Gav FP_GAV = ArtifactCoords.newGav("org.pm.test", "fp-install", "1.0.0.Beta1");
+    private static final int DEPTH = 1000;
+
+    @Override
+    protected void setupRepo(FeaturePackRepositoryManager repoManager) throws ProvisioningDescriptionException {
+        final FeaturePackBuilder fp = repoManager.installer().newFeaturePack(FP_GAV);
+        for(int i = 0; i < DEPTH - 1; ++i) {
+            fp.newPackage("p" + i, i == 0).addDependency("p" + (i + 1));
+        }
+        fp.newPackage("p" + (DEPTH - 1))
+            .addDependency("missing", true)
+            .writeContent("last.txt", "last");
+        fp.getInstaller().install();
+    }
+
+    @Override
+    protected FeaturePackConfig featurePackConfig() {
+        return FeaturePackConfig.forGav(FP_GAV);
+    }
+
+    @Override
+    protected ProvisionedState provisionedState() throws ProvisioningException {
+        final ProvisionedFeaturePack.Builder fp = ProvisionedFeaturePack.builder(FP_GAV);
+        for(int i = 0; i < DEPTH; ++i) {
+            fp.addPackage("p" + i);
+        }
+        return ProvisionedState.builder()
+                .addFeaturePack(fp.build())
+                .build();
+    }
+
+    @Override
+    protected DirState provisionedHomeDir(DirBuilder builder) {
+        return builder
+                .addFile("last.txt", "last")
+                .build();
+    }
+}
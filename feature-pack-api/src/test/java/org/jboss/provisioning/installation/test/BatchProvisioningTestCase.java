@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.installation.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.plugin.ProvisioningPlugin;
+import org.jboss.provisioning.runtime.ProvisioningRuntime;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.util.ContentManifest;
+import org.jboss.provisioning.util.HashAlgorithm;
+import org.jboss.provisioning.util.HashUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathFilter;
+import org.jboss.provisioning.util.PathsUtils;
+import org.junit.Test;
+
+public class BatchProvisioningTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    private static volatile Object stagedDirKey;
+
+    public static class StagedDirRecordingPlugin implements ProvisioningPlugin {
+        @Override
+        public void postInstall(ProvisioningRuntime runtime) throws ProvisioningException {
+            try {
+                stagedDirKey = Files.readAttributes(runtime.getStagedDir(), BasicFileAttributes.class).fileKey();
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to read the attributes of " + runtime.getStagedDir(), e);
+            }
+        }
+    }
+
+    @Override
+    protected void doBefore() throws Exception {
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .newPackage("main", true)
+                    .addDependency("p1")
+                    .writeContent("fp1/main.txt", "main")
+                    .getFeaturePack()
+                .newPackage("p1")
+                    .writeContent("fp1/p1/p1.txt", "p1")
+                    .getFeaturePack()
+                .addPlugin(StagedDirRecordingPlugin.class)
+                .getInstaller()
+            .install();
+    }
+
+    private static ProvisionedState provisionedState() throws Exception {
+        return ProvisionedState.builder()
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP1_GAV)
+                        .addPackage("main")
+                        .addPackage("p1")
+                        .build())
+                .build();
+    }
+
+    private void assertInstalled(Path home) throws Exception {
+        final ProvisioningManager pm = ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(home)
+                .build();
+        assertEquals(provisionedState(), pm.getProvisionedState());
+        DirState.rootBuilder()
+                .skip(Constants.PROVISIONED_STATE_DIR)
+                .addFile("fp1/main.txt", "main")
+                .addFile("fp1/p1/p1.txt", "p1")
+                .build()
+                .assertState(home);
+        // the manifest recorded at install time matches the content of each copy
+        assertTrue(Files.exists(PathsUtils.getContentManifest(home)));
+        final HashAlgorithm algorithm = ContentManifest.read(home).getHashAlgorithm();
+        assertEquals(ContentManifest.DEFAULT_HASH_ALGORITHM, algorithm);
+        final Map<Path, String> contents = IoUtils.listContents(home, PathFilter.DEFAULT, algorithm);
+        assertEquals(HashUtils.hashFile(home.resolve("fp1/main.txt"), algorithm), contents.get(Paths.get("fp1", "main.txt")));
+        assertEquals(HashUtils.hashFile(home.resolve("fp1/p1/p1.txt"), algorithm), contents.get(Paths.get("fp1", "p1", "p1.txt")));
+    }
+
+    @Test
+    public void testProvisionMany() throws Exception {
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        final Path home3 = TestUtils.mkRandomTmpDir().resolve("home3");
+        try {
+            final List<Path> homes = Arrays.asList(installHome, home2, home3);
+            getPm().provision(ProvisioningConfig.builder()
+                    .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                    .build(), homes);
+            for(Path home : homes) {
+                assertInstalled(home);
+            }
+            // the staged directory is moved into the installation home instead of being copied
+            if(stagedDirKey != null) {
+                assertEquals(stagedDirKey, Files.readAttributes(installHome, BasicFileAttributes.class).fileKey());
+            }
+        } finally {
+            IoUtils.recursiveDelete(home2);
+            IoUtils.recursiveDelete(home3.getParent());
+        }
+    }
+
+    @Test
+    public void testSameHomeListedTwice() throws Exception {
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            final Path relativeHome2 = Paths.get("").toAbsolutePath().relativize(home2);
+            getPm().provision(ProvisioningConfig.builder()
+                    .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                    .build(), Arrays.asList(home2, installHome, relativeHome2, home2.resolve("..").resolve(home2.getFileName())));
+            assertInstalled(installHome);
+            assertInstalled(home2);
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+
+    @Test
+    public void testSyncMany() throws Exception {
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            final List<Path> homes = Arrays.asList(installHome, home2);
+            final ProvisioningConfig config = ProvisioningConfig.builder()
+                    .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                    .build();
+            getPm().provision(config, homes);
+            final Object[] dirKeys = new Object[homes.size()];
+            for(int i = 0; i < dirKeys.length; ++i) {
+                dirKeys[i] = Files.readAttributes(homes.get(i), BasicFileAttributes.class).fileKey();
+            }
+            IoUtils.writeFile(home2.resolve("fp1/main.txt"), "edited");
+
+            ProvisioningManager.builder()
+                    .setArtifactResolver(getRepoManager())
+                    .setInstallationHome(installHome)
+                    .setIncremental(true)
+                    .build()
+                    .provision(config, homes);
+            for(int i = 0; i < dirKeys.length; ++i) {
+                final Path home = homes.get(i);
+                assertInstalled(home);
+                // the existing installations are synced in place instead of being replaced
+                if(dirKeys[i] != null) {
+                    assertEquals(dirKeys[i], Files.readAttributes(home, BasicFileAttributes.class).fileKey());
+                }
+            }
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.installation.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.repomanager.FeaturePackRepositoryManager;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.PmTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.test.util.fs.state.DirState.DirBuilder;
+import org.jboss.provisioning.util.HashUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.LayoutUtils;
+import org.junit.Assert;
+
+/**
+ * Makes sure the cached feature-pack layouts are re-used by the subsequent
+ * provisioning runs and evicted once the cache exceeds its size limit.
+ */
+public class FeaturePackLayoutCacheTestCase extends PmTestBase {
+
+    private static final ArtifactCoords.Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+    private static final ArtifactCoords.Gav FP2_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp2", "1.0.0.Final");
+
+    private Path cacheDir;
+
+    @Override
+    protected void doBefore() throws Exception {
+        super.doBefore();
+        cacheDir = TestUtils.mkRandomTmpDir();
+    }
+
+    @Override
+    protected void doAfter() throws Exception {
+        IoUtils.recursiveDelete(cacheDir);
+    }
+
+    @Override
+    protected void setupRepo(FeaturePackRepositoryManager repoManager) throws ProvisioningDescriptionException {
+        repoManager.installer()
+            .newFeaturePack(FP1_GAV)
+                .addDependency(FP2_GAV)
+                .newPackage("p1", true)
+                    .writeContent("fp1/p1.txt", "p1")
+                    .getFeaturePack()
+                .getInstaller()
+            .newFeaturePack(FP2_GAV)
+                .newPackage("p1", true)
+                    .writeContent("fp2/p1.txt", "p1")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    @Override
+    protected ProvisioningManager getPm() {
+        return ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(installHome)
+                .setLayoutCacheDir(cacheDir)
+                .build();
+    }
+
+    @Override
+    protected void testPm(ProvisioningManager pm) throws ProvisioningException {
+        pm.provision(provisionedConfig());
+        Assert.assertEquals(2, countEntries());
+
+        // the next run should pick up the content from the cache
+        try {
+            final Path cachedFp1 = cacheDir.resolve(HashUtils.hashFile(getRepoManager().resolve(FP1_GAV.toArtifactCoords())));
+            IoUtils.writeFile(LayoutUtils.getPackageContentDir(cachedFp1, "p1").resolve("fp1/p1.txt"), "cached");
+        } catch (IOException e) {
+            throw new ProvisioningException(e);
+        }
+        pm.provision(provisionedConfig());
+        Assert.assertEquals("cached", TestUtils.read(resolve("fp1/p1.txt")));
+        Assert.assertEquals(2, countEntries());
+
+        ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(installHome)
+                .setLayoutCacheDir(cacheDir)
+                .setLayoutCacheMaxSize(0)
+                .build()
+                .provision(provisionedConfig());
+    }
+
+    @Override
+    protected void pmSuccess() {
+        Assert.assertEquals(0, countEntries());
+    }
+
+    private long countEntries() {
+        try(Stream<Path> stream = Files.list(cacheDir)) {
+            return stream.filter(Files::isDirectory).count();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected ProvisioningConfig provisionedConfig() throws ProvisioningException {
+        return ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build();
+    }
+
+    @Override
+    protected ProvisionedState provisionedState() throws ProvisioningException {
+        return ProvisionedState.builder()
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP2_GAV)
+                        .addPackage("p1")
+                        .build())
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP1_GAV)
+                        .addPackage("p1")
+                        .build())
+                .build();
+    }
+
+    @Override
+    protected DirState provisionedHomeDir(DirBuilder builder) {
+        return builder
+                .addFile("fp1/p1.txt", "cached")
+                .addFile("fp2/p1.txt", "p1")
+                .build();
+    }
+}
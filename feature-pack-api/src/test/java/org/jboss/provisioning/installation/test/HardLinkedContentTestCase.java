@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.installation.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.util.HashUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.LayoutUtils;
+import org.junit.Test;
+
+/**
+ * Makes sure the package content accepted by the link filter is hard-linked
+ * from the cached feature-pack layout while the rest of it is copied.
+ */
+public class HardLinkedContentTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    private Path cacheDir;
+
+    @Override
+    protected void doBefore() throws Exception {
+        cacheDir = TestUtils.mkRandomTmpDir();
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .newPackage("main", true)
+                    .writeContent("fp1/lib/main.jar", "jar")
+                    .writeContent("fp1/main.txt", "txt")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    @Override
+    protected void doAfter() throws Exception {
+        IoUtils.recursiveDelete(cacheDir);
+    }
+
+    @Test
+    public void testLinkedContent() throws Exception {
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            ProvisioningManager.builder()
+                    .setArtifactResolver(getRepoManager())
+                    .setInstallationHome(installHome)
+                    .setLayoutCacheDir(cacheDir)
+                    .setLinkFilter(path -> path.getFileName().toString().endsWith(".jar"))
+                    .build()
+                    .provision(ProvisioningConfig.builder()
+                            .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                            .build(), Arrays.asList(installHome, home2));
+
+            final Path cachedContent = LayoutUtils.getPackageContentDir(
+                    cacheDir.resolve(HashUtils.hashFile(getRepoManager().resolve(FP1_GAV.toArtifactCoords()))), "main");
+            for(Path home : Arrays.asList(installHome, home2)) {
+                DirState.rootBuilder()
+                        .skip(Constants.PROVISIONED_STATE_DIR)
+                        .addFile("fp1/lib/main.jar", "jar")
+                        .addFile("fp1/main.txt", "txt")
+                        .build()
+                        .assertState(home);
+                assertTrue(Files.isSameFile(cachedContent.resolve("fp1/lib/main.jar"), home.resolve("fp1/lib/main.jar")));
+                assertFalse(Files.isSameFile(cachedContent.resolve("fp1/main.txt"), home.resolve("fp1/main.txt")));
+            }
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+}
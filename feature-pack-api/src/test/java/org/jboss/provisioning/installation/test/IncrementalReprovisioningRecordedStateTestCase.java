@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.installation.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.ProvisioningException;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.repomanager.FeaturePackRepositoryManager;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.PmTestBase;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.test.util.fs.state.DirState.DirBuilder;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.util.PathsUtils;
+
+/**
+ * The incremental re-provisioning compares the staged content to the state
+ * recorded in the content manifest of the installation. A file whose size and
+ * last modified time match the manifest is not read, so a modification that
+ * preserved both goes unnoticed, while the other modifications are reverted.
+ */
+public class IncrementalReprovisioningRecordedStateTestCase extends PmTestBase {
+
+    private static final ArtifactCoords.Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    @Override
+    protected void setupRepo(FeaturePackRepositoryManager repoManager) throws ProvisioningDescriptionException {
+        repoManager.installer()
+            .newFeaturePack(FP1_GAV)
+                .newPackage("p1", true)
+                    .writeContent("fp1/p1.txt", "p1")
+                    .writeContent("fp1/p2.txt", "p2")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    @Override
+    protected ProvisioningManager getPm() {
+        return ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(installHome)
+                .setIncremental(true)
+                .build();
+    }
+
+    @Override
+    protected void testPm(ProvisioningManager pm) throws ProvisioningException {
+        pm.provision(provisionedConfig());
+        try {
+            final Path p1 = resolve("fp1/p1.txt");
+            final FileTime recorded = Files.getLastModifiedTime(p1);
+            Files.delete(p1);
+            IoUtils.writeFile(p1, "P1");
+            Files.setLastModifiedTime(p1, recorded);
+            // make sure the recorded state is trusted regardless of the file system timestamp granularity
+            Files.setLastModifiedTime(PathsUtils.getContentManifest(installHome), FileTime.fromMillis(recorded.toMillis() + 10000));
+
+            final Path p2 = resolve("fp1/p2.txt");
+            Files.delete(p2);
+            IoUtils.writeFile(p2, "modified");
+        } catch (IOException e) {
+            throw new ProvisioningException(e);
+        }
+        pm.provision(provisionedConfig());
+    }
+
+    @Override
+    protected ProvisioningConfig provisionedConfig() throws ProvisioningException {
+        return ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build();
+    }
+
+    @Override
+    protected ProvisionedState provisionedState() throws ProvisioningException {
+        return ProvisionedState.builder()
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP1_GAV)
+                        .addPackage("p1")
+                        .build())
+                .build();
+    }
+
+    @Override
+    protected DirState provisionedHomeDir(DirBuilder builder) {
+        return builder
+                .addFile("fp1/p1.txt", "P1")
+                .addFile("fp1/p2.txt", "p2")
+                .build();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.installation.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.util.IoUtils;
+import org.junit.Test;
+
+/**
+ * Makes sure the installation is restored and the leftovers are removed
+ * when the previous provisioning of the installation was interrupted.
+ */
+public class InterruptedProvisioningTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+    private static final Gav FP2_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp2", "1.0.0.Final");
+
+    private Path parentDir;
+    private Path home;
+
+    @Override
+    protected void doBefore() throws Exception {
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .newPackage("p1", true)
+                    .writeContent("fp1/p1.txt", "p1")
+                    .getFeaturePack()
+                .getInstaller()
+            .newFeaturePack(FP2_GAV)
+                .newPackage("p1", true)
+                    .writeContent("fp2/p1.txt", "p1")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+        parentDir = TestUtils.mkRandomTmpDir();
+        home = parentDir.resolve("home");
+    }
+
+    @Override
+    protected void doAfter() throws Exception {
+        IoUtils.recursiveDelete(parentDir);
+    }
+
+    private ProvisioningManager getPm(Path home) {
+        return ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(home)
+                .build();
+    }
+
+    private static void writeFile(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        IoUtils.writeFile(file, "p1");
+    }
+
+    private List<String> listParentDir() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try(Stream<Path> stream = Files.list(parentDir)) {
+            stream.forEach(p -> names.add(p.getFileName().toString()));
+        }
+        return names;
+    }
+
+    private static void assertInstalled(ProvisioningManager pm, Gav gav, String file) throws Exception {
+        assertEquals(ProvisionedState.builder()
+                .addFeaturePack(ProvisionedFeaturePack.builder(gav)
+                        .addPackage("p1")
+                        .build())
+                .build(), pm.getProvisionedState());
+        DirState.rootBuilder()
+                .skip(Constants.PROVISIONED_STATE_DIR)
+                .addFile(file, "p1")
+                .build()
+                .assertState(pm.getInstallationHome());
+    }
+
+    @Test
+    public void testInstallationIsRestoredFromBackup() throws Exception {
+        getPm(home).provision(ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build());
+        // interrupted after the installation was renamed to the backup and before the staged dir was moved into its place
+        Files.move(home, parentDir.resolve(".home-backup-" + UUID.randomUUID()));
+        writeFile(parentDir.resolve(".home-staged-" + UUID.randomUUID()).resolve("fp2/p1.txt"));
+
+        final ProvisioningManager pm = getPm(home);
+        assertInstalled(pm, FP1_GAV, "fp1/p1.txt");
+        assertEquals(Collections.singletonList("home"), listParentDir());
+
+        pm.install(FeaturePackConfig.forGav(FP2_GAV));
+        assertEquals(Collections.singletonList("home"), listParentDir());
+    }
+
+    @Test
+    public void testLeftoversAreRemoved() throws Exception {
+        final ProvisioningConfig config = ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP2_GAV))
+                .build();
+        getPm(home).provision(config);
+        // interrupted after the staged dir was moved into place and before the backup was removed
+        writeFile(parentDir.resolve(".home-backup-" + UUID.randomUUID()).resolve("fp1/p1.txt"));
+        writeFile(parentDir.resolve(".home-staged-" + UUID.randomUUID()).resolve("fp1/p1.txt"));
+        // a sibling installation is not affected
+        final Path home2 = parentDir.resolve("home2");
+        getPm(home2).provision(config);
+
+        final ProvisioningManager pm = getPm(home);
+        pm.provision(config);
+        assertInstalled(pm, FP2_GAV, "fp2/p1.txt");
+        final List<String> names = listParentDir();
+        Collections.sort(names);
+        assertEquals(Arrays.asList("home", "home2"), names);
+    }
+}
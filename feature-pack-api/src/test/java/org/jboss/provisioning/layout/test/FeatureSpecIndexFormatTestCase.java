@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.layout.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.layout.FeatureSpecIndex;
+import org.jboss.provisioning.spec.FeatureAnnotation;
+import org.jboss.provisioning.spec.FeatureDependencySpec;
+import org.jboss.provisioning.spec.FeatureId;
+import org.jboss.provisioning.spec.FeatureParameterSpec;
+import org.jboss.provisioning.spec.FeatureReferenceSpec;
+import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.xml.FeatureSpecXmlWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureSpecIndexFormatTestCase {
+
+    private Path workDir;
+
+    @Before
+    public void before() throws Exception {
+        workDir = TestUtils.mkRandomTmpDir();
+    }
+
+    @After
+    public void after() throws Exception {
+        IoUtils.recursiveDelete(workDir);
+    }
+
+    @Test
+    public void testSpecsAreDecoded() throws Exception {
+        final FeatureSpec specA = FeatureSpec.builder("specA")
+                .addAnnotation(new FeatureAnnotation("annotation").setAttr("elem1", "value1").setAttr("elem2", null))
+                .providesCapability("cap.$a", true)
+                .providesCapability("cap.static")
+                .requiresCapability("cap.$b", true)
+                .addFeatureDep(FeatureDependencySpec.create(FeatureId.create("specC", "c", "c1")))
+                .addFeatureDep(FeatureDependencySpec.create(FeatureId.builder("specD").setParam("d1", "1").setParam("d2", "2").build(), "fp2", true))
+                .addFeatureRef(FeatureReferenceSpec.create("specB"))
+                .addFeatureRef(FeatureReferenceSpec.builder("specB")
+                        .setName("otherB")
+                        .setFpDep("fp2")
+                        .setNillable(true)
+                        .setInclude(true)
+                        .mapParam("b", "name")
+                        .build())
+                .addParam(FeatureParameterSpec.createId("a"))
+                .addParam(FeatureParameterSpec.create("b", true))
+                .addParam(FeatureParameterSpec.create("p1", "default"))
+                .addParam(FeatureParameterSpec.builder("list").setType("List<String>").setNillable().build())
+                .addPackageDep("pkg1")
+                .addPackageDep("pkg2", true)
+                .addPackageDep("fp2", "pkg3")
+                .build();
+        final FeatureSpec specB = FeatureSpec.builder("specB")
+                .addParam(FeatureParameterSpec.createId("name"))
+                .build();
+
+        final Path indexFile = workDir.resolve(Constants.FEATURE_SPEC_INDEX);
+        FeatureSpecIndex.write(Arrays.asList(specA, specB), indexFile);
+
+        final FeatureSpecIndex index = FeatureSpecIndex.load(indexFile);
+        assertTrue(index.hasSpec("specA"));
+        assertTrue(index.hasSpec("specB"));
+        assertFalse(index.hasSpec("specC"));
+        assertEquals(specB, index.getSpec("specB"));
+        assertEquals(specA, index.getSpec("specA"));
+        assertNull(index.getSpec("specC"));
+    }
+
+    @Test
+    public void testIndexFromFeaturesDir() throws Exception {
+        final FeatureSpec specA = FeatureSpec.builder("specA")
+                .addParam(FeatureParameterSpec.createId("a"))
+                .addParam(FeatureParameterSpec.create("p1", "default"))
+                .build();
+        final FeatureSpec specB = FeatureSpec.builder("specB")
+                .addParam(FeatureParameterSpec.createId("b"))
+                .addFeatureRef(FeatureReferenceSpec.create("specA"))
+                .build();
+        final Path featuresDir = workDir.resolve(Constants.FEATURES);
+        for(FeatureSpec spec : Arrays.asList(specA, specB)) {
+            final Path specDir = featuresDir.resolve(spec.getName());
+            Files.createDirectories(specDir);
+            FeatureSpecXmlWriter.getInstance().write(spec, specDir.resolve(Constants.SPEC_XML));
+        }
+
+        FeatureSpecIndex.write(featuresDir);
+
+        final FeatureSpecIndex index = FeatureSpecIndex.load(featuresDir.resolve(Constants.FEATURE_SPEC_INDEX));
+        assertEquals(specA, index.getSpec("specA"));
+        assertEquals(specB, index.getSpec("specB"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.plan.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.util.List;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.config.FeatureConfig;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.runtime.ProvisioningPlan;
+import org.jboss.provisioning.spec.ConfigSpec;
+import org.jboss.provisioning.spec.FeatureParameterSpec;
+import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.junit.Test;
+
+public class ProvisioningPlanTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+    private static final Gav FP2_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp2", "1.0.0.Final");
+
+    @Override
+    protected void doBefore() throws Exception {
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .addDependency(FeaturePackConfig.forGav(FP2_GAV))
+                .addSpec(FeatureSpec.builder("specA")
+                        .addParam(FeatureParameterSpec.createId("name"))
+                        .build())
+                .addConfig(ConfigSpec.builder()
+                        .setModel("model1")
+                        .setName("config1")
+                        .addFeature(new FeatureConfig("specA").setParam("name", "a1"))
+                        .addFeature(new FeatureConfig("specA").setParam("name", "a2"))
+                        .build())
+                .newPackage("main", true)
+                    .addDependency("p1")
+                    .writeContent("fp1/main.txt", "main")
+                    .getFeaturePack()
+                .newPackage("p1")
+                    .writeContent("fp1/p1/a.txt", "a")
+                    .writeContent("fp1/p1/bb.txt", "bb")
+                    .getFeaturePack()
+                .newPackage("p2")
+                    .writeContent("fp1/p2.txt", "p2")
+                    .getFeaturePack()
+                .getInstaller()
+            .newFeaturePack(FP2_GAV)
+                .newPackage("main", true)
+                    .writeContent("fp2/main.txt", "fp2main")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        final ProvisioningPlan plan = getPm().plan(ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build());
+
+        final List<ProvisioningPlan.FeaturePackPlan> fps = plan.getFeaturePacks();
+        assertEquals(2, fps.size());
+        assertEquals(FP2_GAV, fps.get(0).getGav());
+        assertEquals(FP1_GAV, fps.get(1).getGav());
+
+        final ProvisioningPlan.FeaturePackPlan fp1 = plan.getFeaturePack(FP1_GAV);
+        assertEquals(2, fp1.getPackages().size());
+        assertEquals(3, fp1.getFilesTotal());
+        assertEquals("main".length() + "a".length() + "bb".length(), fp1.getSize());
+        for(ProvisioningPlan.PackagePlan pkg : fp1.getPackages()) {
+            assertFalse("p2".equals(pkg.getName()));
+            if("p1".equals(pkg.getName())) {
+                assertEquals(2, pkg.getFilesTotal());
+                assertEquals(3, pkg.getSize());
+            }
+        }
+
+        final ProvisioningPlan.FeaturePackPlan fp2 = plan.getFeaturePack(FP2_GAV);
+        assertEquals(1, fp2.getPackages().size());
+        assertEquals("main", fp2.getPackages().get(0).getName());
+        assertEquals(1, fp2.getFilesTotal());
+        assertEquals("fp2main".length(), fp2.getSize());
+
+        assertEquals(4, plan.getFilesTotal());
+        assertEquals(fp1.getSize() + fp2.getSize(), plan.getSize());
+
+        assertEquals(1, plan.getConfigs().size());
+        final ProvisioningPlan.ConfigPlan config = plan.getConfigs().get(0);
+        assertEquals("model1", config.getModel());
+        assertEquals("config1", config.getName());
+        assertEquals(2, config.getFeaturesTotal());
+
+        // nothing is installed
+        DirState.rootBuilder().build().assertState(installHome);
+    }
+
+    @Test
+    public void testIncludedPackageIsPlanned() throws Exception {
+        final ProvisioningPlan plan = getPm().plan(ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.builder(FP1_GAV)
+                        .setInheritConfigs(false)
+                        .includePackage("p2")
+                        .build())
+                .build());
+        final ProvisioningPlan.FeaturePackPlan fp1 = plan.getFeaturePack(FP1_GAV);
+        assertEquals(3, fp1.getPackages().size());
+        assertEquals(4, fp1.getFilesTotal());
+        assertFalse(plan.hasConfigs());
+        assertFalse(Files.exists(installHome.resolve("fp1")));
+        assertNull(plan.getFeaturePack(ArtifactCoords.newGav("org.jboss.pm.test", "fp3", "1.0.0.Final")));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class CapabilityRegistryTestCase {
+
+    @Test
+    public void testLookupByCharSequence() throws Exception {
+        final CapabilityRegistry registry = new CapabilityRegistry();
+        final CapabilityProviders providers = registry.getOrAdd("org.jboss.cap.a");
+        assertSame(providers, registry.getOrAdd(new StringBuilder("org.jboss.cap.").append('a')));
+        assertSame(providers, registry.get(new StringBuilder("org.jboss.cap.a")));
+        assertNull(registry.get("org.jboss.cap"));
+        assertNull(registry.get("org.jboss.cap.ab"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        final CapabilityRegistry registry = new CapabilityRegistry();
+        final CapabilityProviders[] providers = new CapabilityProviders[1000];
+        for(int i = 0; i < providers.length; ++i) {
+            providers[i] = registry.getOrAdd("cap." + i);
+        }
+        assertEquals(providers.length, registry.size());
+        final StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < providers.length; ++i) {
+            buf.setLength(0);
+            buf.append("cap.").append(i);
+            assertSame(providers[i], registry.get(buf));
+        }
+        assertNull(registry.get("cap." + providers.length));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.config.FeatureConfig;
+import org.junit.Test;
+
+public class FeatureGroupFilterTestCase {
+
+    private static final ArtifactCoords.Gav FP_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    private static final ResolvedSpecId[] SPECS = new ResolvedSpecId[] {
+            new ResolvedSpecId(FP_GAV, "specA"),
+            new ResolvedSpecId(FP_GAV, "specB"),
+            new ResolvedSpecId(FP_GAV, "specC")
+    };
+
+    private static final List<ResolvedFeatureId> IDS = new ArrayList<>();
+    static {
+        for(ResolvedSpecId specId : SPECS) {
+            for(int i = 0; i < 3; ++i) {
+                IDS.add(ResolvedFeatureId.create(specId, "name", String.valueOf(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testExcludedSpecWithIncludedFeature() throws Exception {
+        final FeatureGroupFilter filter = new FeatureGroupFilter();
+        final ResolvedFeatureGroupConfig fgConfig = new ResolvedFeatureGroupConfig("fg1");
+        fgConfig.excludedSpecs = set(SPECS[0]);
+        fgConfig.includedFeatures = map(IDS.get(0));
+        filter.push(fgConfig);
+
+        assertFalse(filter.isFilteredOut(SPECS[0], IDS.get(0)));
+        assertTrue(filter.isFilteredOut(SPECS[0], IDS.get(1)));
+        assertTrue(filter.isFilteredOut(SPECS[0], null));
+        assertFalse(filter.isFilteredOut(SPECS[1], IDS.get(3)));
+
+        final ResolvedFeatureGroupConfig fgConfig2 = new ResolvedFeatureGroupConfig("fg2").setInheritFeatures(false);
+        fgConfig2.includedSpecs = set(SPECS[1]);
+        filter.push(fgConfig2);
+
+        assertTrue(filter.isFilteredOut(SPECS[0], IDS.get(0)));
+        assertFalse(filter.isFilteredOut(SPECS[1], IDS.get(3)));
+
+        filter.pop();
+        assertFalse(filter.isFilteredOut(SPECS[0], IDS.get(0)));
+        filter.pop();
+        assertFalse(filter.isFilteredOut(SPECS[0], IDS.get(1)));
+        assertTrue(filter.isEmpty());
+    }
+
+    @Test
+    public void testMatchesStackWalk() throws Exception {
+        final Random random = new Random(7);
+        for(int run = 0; run < 200; ++run) {
+            final FeatureGroupFilter filter = new FeatureGroupFilter();
+            for(int op = 0; op < 20; ++op) {
+                if(!filter.isEmpty() && random.nextInt(3) == 0) {
+                    filter.pop();
+                } else {
+                    filter.push(randomConfig(random));
+                }
+                for(ResolvedSpecId specId : SPECS) {
+                    assertEquals(isFilteredOut(filter.stack, specId, null), filter.isFilteredOut(specId, null));
+                }
+                for(ResolvedFeatureId id : IDS) {
+                    assertEquals(id.toString(), isFilteredOut(filter.stack, id.specId, id), filter.isFilteredOut(id.specId, id));
+                }
+            }
+        }
+    }
+
+    private static ResolvedFeatureGroupConfig randomConfig(Random random) {
+        final ResolvedFeatureGroupConfig fgConfig = new ResolvedFeatureGroupConfig("fg").setInheritFeatures(random.nextBoolean());
+        final Set<ResolvedSpecId> specs = new HashSet<>();
+        for(ResolvedSpecId specId : SPECS) {
+            if(random.nextInt(3) == 0) {
+                specs.add(specId);
+            }
+        }
+        if(fgConfig.inheritFeatures) {
+            fgConfig.excludedSpecs = specs;
+        } else {
+            fgConfig.includedSpecs = specs;
+        }
+        final Set<ResolvedFeatureId> excluded = new HashSet<>();
+        final Map<ResolvedFeatureId, FeatureConfig> included = new HashMap<>();
+        for(ResolvedFeatureId id : IDS) {
+            switch(random.nextInt(6)) {
+                case 0:
+                    excluded.add(id);
+                    break;
+                case 1:
+                    included.put(id, null);
+                    break;
+                case 2:
+                    excluded.add(id);
+                    included.put(id, null);
+                    break;
+                default:
+            }
+        }
+        fgConfig.excludedFeatures = excluded;
+        fgConfig.includedFeatures = included;
+        return fgConfig;
+    }
+
+    /**
+     * The walk over the stack the filter replaces.
+     */
+    private static boolean isFilteredOut(List<ResolvedFeatureGroupConfig> fgConfigStack, ResolvedSpecId specId, final ResolvedFeatureId id) {
+        int i = fgConfigStack.size() - 1;
+        while (i >= 0) {
+            final ResolvedFeatureGroupConfig fgConfig = fgConfigStack.get(i--);
+            if (fgConfig.inheritFeatures) {
+                if (id != null && fgConfig.excludedFeatures.contains(id)) {
+                    return true;
+                }
+                if (fgConfig.excludedSpecs.contains(specId)) {
+                    if (id != null && fgConfig.includedFeatures.containsKey(id)) {
+                        continue;
+                    }
+                    return true;
+                }
+            } else {
+                if (id != null && fgConfig.includedFeatures.containsKey(id)) {
+                    continue;
+                }
+                if (!fgConfig.includedSpecs.contains(specId)) {
+                    return true;
+                } else if (id != null && fgConfig.excludedFeatures.contains(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Set<ResolvedSpecId> set(ResolvedSpecId specId) {
+        final Set<ResolvedSpecId> set = new HashSet<>();
+        set.add(specId);
+        return set;
+    }
+
+    private static Map<ResolvedFeatureId, FeatureConfig> map(ResolvedFeatureId id) {
+        final Map<ResolvedFeatureId, FeatureConfig> map = new HashMap<>();
+        map.put(id, null);
+        return map;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.Constants;
+import org.junit.Test;
+
+public class ResolvedFeatureIdTestCase {
+
+    private static final ArtifactCoords.Gav FP_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    @Test
+    public void testParamOrderDoesNotMatter() throws Exception {
+        final ResolvedSpecId specId = new ResolvedSpecId(FP_GAV, "specA");
+        final ResolvedFeatureId id1 = ResolvedFeatureId.builder(specId).setParam("a", "1").setParam("b", "2").setParam("c", "3").build();
+        final ResolvedFeatureId id2 = new ResolvedFeatureId(new ResolvedSpecId(FP_GAV, "specA"), new String[] {"c", "b", "a"}, new Object[] {"3", "2", "1"});
+        assertEquals(id1, id2);
+        assertEquals(id2, id1);
+        assertEquals(id1.hashCode(), id2.hashCode());
+        assertEquals(id1, ResolvedFeatureId.fromString(id1.toString()));
+    }
+
+    @Test
+    public void testNotEqual() throws Exception {
+        final ResolvedSpecId specId = new ResolvedSpecId(FP_GAV, "specA");
+        final ResolvedFeatureId id = ResolvedFeatureId.builder(specId).setParam("a", "1").setParam("b", "2").build();
+        assertFalse(id.equals(ResolvedFeatureId.builder(specId).setParam("a", "1").setParam("b", "3").build()));
+        assertFalse(id.equals(ResolvedFeatureId.builder(specId).setParam("a", "1").setParam("c", "2").build()));
+        assertFalse(id.equals(ResolvedFeatureId.builder(specId).setParam("a", "1").build()));
+        assertFalse(id.equals(ResolvedFeatureId.builder(FP_GAV, "specB").setParam("a", "1").setParam("b", "2").build()));
+    }
+
+    @Test
+    public void testParamsView() throws Exception {
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("a", "1");
+        expected.put("b", "2");
+        final ResolvedFeatureId id = new ResolvedFeatureId(new ResolvedSpecId(FP_GAV, "specA"), new String[] {"a", "b", "c"}, new Object[] {"1", "2", Constants.PM_UNDEFINED});
+        assertEquals(expected, id.getParams());
+        assertEquals(expected.hashCode(), id.getParams().hashCode());
+        assertEquals("2", id.getParams().get("b"));
+        assertFalse(id.getParams().containsKey("c"));
+        assertEquals(ResolvedFeatureId.builder(FP_GAV, "specA").setParam("a", "1").setParam("b", "2").build(), id);
+    }
+
+    @Test
+    public void testParamsAreReadOnly() throws Exception {
+        try {
+            ResolvedFeatureId.create(FP_GAV, "specA", "a", "1").getParams().put("b", "2");
+            fail("params are modifiable");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
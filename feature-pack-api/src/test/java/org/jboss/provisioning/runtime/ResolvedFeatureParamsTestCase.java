@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.spec.FeatureDependencySpec;
+import org.jboss.provisioning.spec.FeatureId;
+import org.jboss.provisioning.spec.FeatureParameterSpec;
+import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.type.builtin.BuiltInParameterTypeProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResolvedFeatureParamsTestCase {
+
+    private static final ArtifactCoords.Gav FP_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+
+    private ResolvedFeatureSpec spec;
+    private ResolvedFeatureId id;
+
+    @Before
+    public void init() throws Exception {
+        final ResolvedSpecId specId = new ResolvedSpecId(FP_GAV, "specA");
+        spec = new ResolvedFeatureSpec(specId, BuiltInParameterTypeProvider.getInstance(),
+                FeatureSpec.builder("specA")
+                .addParam(FeatureParameterSpec.createId("name"))
+                .addParam(FeatureParameterSpec.create("a"))
+                .addParam(FeatureParameterSpec.create("b", true))
+                .addParam(FeatureParameterSpec.create("c", "def"))
+                .build());
+        id = ResolvedFeatureId.create(specId, "name", "n1");
+    }
+
+    @Test
+    public void testParamsView() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.singletonMap("a", "1"), Collections.emptyMap(), 1);
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("name", "n1");
+        expected.put("a", "1");
+        assertTrue(feature.hasParams());
+        assertEquals(expected, feature.getResolvedParams());
+        assertEquals(expected.hashCode(), feature.getResolvedParams().hashCode());
+        assertEquals(expected.keySet(), feature.getParamNames());
+        assertEquals("1", feature.getResolvedParam("a"));
+        assertNull(feature.getResolvedParam("b"));
+        assertNull(feature.getResolvedParam("unknown"));
+        assertFalse(feature.getResolvedParams().containsKey("c"));
+
+        feature.validate();
+        expected.put("c", "def");
+        assertEquals(expected, feature.getResolvedParams());
+    }
+
+    @Test
+    public void testCopyIsIndependent() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.singletonMap("a", "1"), Collections.emptyMap(), 1);
+        final ResolvedFeature copy = feature.copy(2);
+        copy.setParam("a", "2", true);
+        copy.setParam("b", "3", true);
+        assertEquals("1", feature.getResolvedParam("a"));
+        assertNull(feature.getResolvedParam("b"));
+        assertEquals(2, feature.getResolvedParams().size());
+        assertEquals("2", copy.getResolvedParam("a"));
+        assertEquals("3", copy.getResolvedParam("b"));
+        assertEquals(3, copy.getResolvedParams().size());
+    }
+
+    @Test
+    public void testOriginalIsIndependentOfCopy() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.singletonMap("a", "1"), Collections.emptyMap(), 1);
+        final ResolvedFeature copy = feature.copy(2);
+        feature.setParam("a", "2", true);
+        feature.validate();
+        assertEquals("2", feature.getResolvedParam("a"));
+        assertEquals("def", feature.getResolvedParam("c"));
+        assertEquals("1", copy.getResolvedParam("a"));
+        assertNull(copy.getResolvedParam("c"));
+        assertEquals(2, copy.getResolvedParams().size());
+    }
+
+    @Test
+    public void testCopyDeps() throws Exception {
+        final Map<ResolvedFeatureId, FeatureDependencySpec> deps = new LinkedHashMap<>();
+        deps.put(ResolvedFeatureId.create(FP_GAV, "specB", "name", "b1"), FeatureDependencySpec.create(FeatureId.create("specB", "name", "b1")));
+        deps.put(ResolvedFeatureId.create(FP_GAV, "specB", "name", "b2"), FeatureDependencySpec.create(FeatureId.create("specB", "name", "b2")));
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.singletonMap("a", "1"), deps, 1);
+        final ResolvedFeature copy = feature.copy(2);
+        final ResolvedFeatureId b3 = ResolvedFeatureId.create(FP_GAV, "specB", "name", "b3");
+        copy.addDependency(b3, FeatureDependencySpec.create(FeatureId.create("specB", "name", "b3")));
+        assertEquals(3, copy.deps.size());
+        assertEquals(2, feature.deps.size());
+        assertFalse(feature.deps.containsKey(b3));
+        assertEquals(2, deps.size());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.singletonMap("a", "1"), Collections.emptyMap(), 1);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("a", "2");
+        params.put("b", "3");
+        final ResolvedFeature other = new ResolvedFeature(id, spec, params, Collections.emptyMap(), 2);
+
+        feature.merge(other, false);
+        assertEquals("1", feature.getResolvedParam("a"));
+        assertEquals("3", feature.getResolvedParam("b"));
+
+        feature.merge(other, true);
+        assertEquals("2", feature.getResolvedParam("a"));
+        assertEquals(3, feature.getResolvedParams().size());
+    }
+
+    @Test
+    public void testUnknownParam() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.emptyMap(), Collections.emptyMap(), 1);
+        try {
+            feature.setParam("unknown", "1", true);
+            fail("unknown param was accepted");
+        } catch(ProvisioningDescriptionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNonNillableParamIsRequired() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.emptyMap(), Collections.emptyMap(), 1);
+        try {
+            feature.validate();
+            fail("non-nillable param a was not set");
+        } catch(ProvisioningDescriptionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParamsAreReadOnly() throws Exception {
+        final ResolvedFeature feature = new ResolvedFeature(id, spec, Collections.emptyMap(), Collections.emptyMap(), 1);
+        try {
+            feature.getResolvedParams().put("a", "1");
+            fail("params are modifiable");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
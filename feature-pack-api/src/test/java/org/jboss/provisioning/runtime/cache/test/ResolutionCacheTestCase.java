@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.provisioning.runtime.cache.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+
+import org.jboss.provisioning.ArtifactCoords;
+import org.jboss.provisioning.ArtifactCoords.Gav;
+import org.jboss.provisioning.Constants;
+import org.jboss.provisioning.ProvisioningDescriptionException;
+import org.jboss.provisioning.ProvisioningManager;
+import org.jboss.provisioning.config.FeatureConfig;
+import org.jboss.provisioning.config.FeaturePackConfig;
+import org.jboss.provisioning.config.ProvisioningConfig;
+import org.jboss.provisioning.runtime.ResolutionCache;
+import org.jboss.provisioning.runtime.ResolvedFeatureId;
+import org.jboss.provisioning.spec.ConfigSpec;
+import org.jboss.provisioning.spec.FeatureParameterSpec;
+import org.jboss.provisioning.spec.FeatureSpec;
+import org.jboss.provisioning.state.ProvisionedFeaturePack;
+import org.jboss.provisioning.state.ProvisionedState;
+import org.jboss.provisioning.test.FeaturePackRepoTestBase;
+import org.jboss.provisioning.test.util.TestUtils;
+import org.jboss.provisioning.test.util.fs.state.DirState;
+import org.jboss.provisioning.util.IoUtils;
+import org.jboss.provisioning.xml.ProvisionedConfigBuilder;
+import org.jboss.provisioning.xml.ProvisionedFeatureBuilder;
+import org.junit.Test;
+
+public class ResolutionCacheTestCase extends FeaturePackRepoTestBase {
+
+    private static final Gav FP1_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp1", "1.0.0.Final");
+    private static final Gav FP2_GAV = ArtifactCoords.newGav("org.jboss.pm.test", "fp2", "1.0.0.Final");
+
+    private final ResolutionCache cache = new ResolutionCache();
+
+    @Override
+    protected void doBefore() throws Exception {
+        installFp1("a");
+        getRepoManager().installer()
+            .newFeaturePack(FP2_GAV)
+                .newPackage("main", true)
+                    .writeContent("fp2/main.txt", "fp2")
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    private void installFp1(String content) throws ProvisioningDescriptionException {
+        getRepoManager().installer()
+            .newFeaturePack(FP1_GAV)
+                .addDependency(FeaturePackConfig.forGav(FP2_GAV))
+                .addSpec(FeatureSpec.builder("specA")
+                        .addParam(FeatureParameterSpec.createId("name"))
+                        .build())
+                .addConfig(ConfigSpec.builder()
+                        .setName("config1")
+                        .addFeature(new FeatureConfig("specA").setParam("name", content))
+                        .build())
+                .newPackage("main", true)
+                    .writeContent("fp1/main.txt", content)
+                    .getFeaturePack()
+                .getInstaller()
+            .install();
+    }
+
+    private ProvisioningManager getPm(Path home) {
+        return ProvisioningManager.builder()
+                .setArtifactResolver(getRepoManager())
+                .setInstallationHome(home)
+                .setResolutionCache(cache)
+                .build();
+    }
+
+    private static ProvisionedState provisionedState(String name) throws Exception {
+        return ProvisionedState.builder()
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP2_GAV)
+                        .addPackage("main")
+                        .build())
+                .addFeaturePack(ProvisionedFeaturePack.builder(FP1_GAV)
+                        .addPackage("main")
+                        .build())
+                .addConfig(ProvisionedConfigBuilder.builder()
+                        .setName("config1")
+                        .addFeature(ProvisionedFeatureBuilder.builder(ResolvedFeatureId.create(FP1_GAV, "specA", "name", name)).build())
+                        .build())
+                .build();
+    }
+
+    private void assertInstalled(ProvisioningManager pm, String content) throws Exception {
+        assertEquals(provisionedState(content), pm.getProvisionedState());
+        DirState.rootBuilder()
+                .skip(Constants.PROVISIONED_STATE_DIR)
+                .addFile("fp1/main.txt", content)
+                .addFile("fp2/main.txt", "fp2")
+                .build()
+                .assertState(pm.getInstallationHome());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        final ProvisioningConfig config = ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build();
+        ProvisioningManager pm = getPm(installHome);
+        pm.provision(config);
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHits());
+        assertInstalled(pm, "a");
+
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            pm = getPm(home2);
+            pm.provision(config);
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.getHits());
+            assertInstalled(pm, "a");
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+
+    @Test
+    public void testChangedArtifactIsResolvedAgain() throws Exception {
+        final ProvisioningConfig config = ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build();
+        getPm(installHome).provision(config);
+        assertEquals(1, cache.size());
+
+        installFp1("bb");
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            final ProvisioningManager pm = getPm(home2);
+            pm.provision(config);
+            assertEquals(1, cache.size());
+            assertEquals(0, cache.getHits());
+            assertInstalled(pm, "bb");
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+
+    @Test
+    public void testDifferentConfigs() throws Exception {
+        getPm(installHome).provision(ProvisioningConfig.builder()
+                .addFeaturePack(FeaturePackConfig.forGav(FP1_GAV))
+                .build());
+        final Path home2 = TestUtils.mkRandomTmpDir();
+        try {
+            final ProvisioningManager pm = getPm(home2);
+            pm.provision(ProvisioningConfig.builder()
+                    .addFeaturePack(FeaturePackConfig.forGav(FP2_GAV))
+                    .build());
+            assertEquals(2, cache.size());
+            assertEquals(0, cache.getHits());
+            assertEquals(ProvisionedState.builder()
+                    .addFeaturePack(ProvisionedFeaturePack.builder(FP2_GAV)
+                            .addPackage("main")
+                            .build())
+                    .build(), pm.getProvisionedState());
+        } finally {
+            IoUtils.recursiveDelete(home2);
+        }
+    }
+}
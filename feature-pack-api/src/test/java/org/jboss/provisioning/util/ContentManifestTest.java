@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ContentManifestTest {
+
+    private static void writeFile(Path file, String content, long lastModified) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotHashed() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            final long lastModified = System.currentTimeMillis() - 60000;
+            writeFile(root.resolve("a.txt"), "a", lastModified);
+            writeFile(root.resolve("dir").resolve("b.txt"), "b", lastModified);
+            writeFile(root.resolve("c.txt"), "c", lastModified);
+
+            // recorded hashes that don't match the content prove the files were not re-hashed
+            final Map<Path, String> recorded = new HashMap<>();
+            recorded.put(Paths.get("a.txt"), "recorded-a");
+            recorded.put(Paths.get("dir", "b.txt"), "recorded-b");
+            recorded.put(Paths.get("c.txt"), "recorded-c");
+            ContentManifest.write(root, recorded, HashAlgorithm.SHA1);
+            assertTrue(Files.exists(PathsUtils.getContentManifest(root)));
+
+            // same size, different last modified time
+            writeFile(root.resolve("dir").resolve("b.txt"), "B", lastModified + 1000);
+            // different size, same last modified time
+            writeFile(root.resolve("c.txt"), "cc", lastModified);
+            writeFile(root.resolve("d.txt"), "d", lastModified);
+
+            final Map<Path, String> expected = new HashMap<>();
+            expected.put(Paths.get("a.txt"), "recorded-a");
+            expected.put(Paths.get("dir", "b.txt"), HashUtils.hashFile(root.resolve("dir").resolve("b.txt")));
+            expected.put(Paths.get("c.txt"), HashUtils.hashFile(root.resolve("c.txt")));
+            expected.put(Paths.get("d.txt"), HashUtils.hashFile(root.resolve("d.txt")));
+            assertEquals(expected, IoUtils.listContents(root, PathFilter.DEFAULT));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testFilesModifiedAfterManifestAreHashed() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            final Path file = root.resolve("a.txt");
+            writeFile(file, "a", System.currentTimeMillis() + 60000);
+            ContentManifest.write(root, Collections.singletonMap(Paths.get("a.txt"), "recorded-a"), HashAlgorithm.SHA1);
+            assertEquals(Collections.singletonMap(Paths.get("a.txt"), HashUtils.hashFile(file)),
+                    IoUtils.listContents(root, PathFilter.DEFAULT));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testFilesModifiedWithinManifestTimestampAreHashed() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            // the file system records the timestamps with the granularity of a second
+            final long lastModified = (System.currentTimeMillis() - 60000) / 1000 * 1000;
+            final Path file = root.resolve("a.txt");
+            writeFile(file, "a", lastModified);
+            // the manifest is written later within the same second
+            ContentManifest.write(root, IoUtils.listContents(root, PathFilter.DEFAULT), HashAlgorithm.SHA1);
+            Files.setLastModifiedTime(PathsUtils.getContentManifest(root), FileTime.fromMillis(lastModified));
+
+            // and the file is modified after that within the same second, so its timestamp doesn't change
+            writeFile(file, "b", lastModified);
+            assertEquals(Collections.singletonMap(Paths.get("a.txt"), HashUtils.hashFile(file)),
+                    IoUtils.listContents(root, PathFilter.DEFAULT));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testManifestOfOtherAlgorithmIsIgnored() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            final Path file = root.resolve("a.txt");
+            writeFile(file, "a", System.currentTimeMillis() - 60000);
+            ContentManifest.write(root, Collections.singletonMap(Paths.get("a.txt"), "recorded-a"), HashAlgorithm.CRC32);
+            assertEquals(HashAlgorithm.CRC32, ContentManifest.read(root).getHashAlgorithm());
+            assertEquals(Collections.singletonMap(Paths.get("a.txt"), "recorded-a"),
+                    IoUtils.listContents(root, PathFilter.DEFAULT, HashAlgorithm.CRC32));
+            assertEquals(Collections.singletonMap(Paths.get("a.txt"), HashUtils.hashFile(file)),
+                    IoUtils.listContents(root, PathFilter.DEFAULT));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testEmptyDirectoriesAreRecorded() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            writeFile(root.resolve("a.txt"), "a", System.currentTimeMillis() - 60000);
+            Files.createDirectories(root.resolve("empty"));
+            final Map<Path, String> hashes = IoUtils.listContents(root, PathFilter.DEFAULT, HashAlgorithm.SHA1);
+            ContentManifest.write(root, hashes, HashAlgorithm.SHA1);
+            final ContentManifest manifest = ContentManifest.read(root);
+            assertEquals(hashes, manifest.getHashes());
+            assertEquals(Collections.singleton(Paths.get("empty")), manifest.getDirectories());
+            assertEquals(hashes, IoUtils.listContents(root, PathFilter.DEFAULT, HashAlgorithm.SHA1));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testCorruptedManifestIsIgnored() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            final Path file = root.resolve("a.txt");
+            writeFile(file, "a", System.currentTimeMillis() - 60000);
+            Files.createDirectories(PathsUtils.getContentManifest(root).getParent());
+            IoUtils.writeFile(PathsUtils.getContentManifest(root), "garbage\n");
+            assertEquals(Collections.singletonMap(Paths.get("a.txt"), HashUtils.hashFile(file)),
+                    IoUtils.listContents(root, PathFilter.DEFAULT));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jboss.provisioning.util.HashAlgorithm.Hasher;
+import org.junit.Test;
+
+public class HashAlgorithmTest {
+
+    private static String hash(HashAlgorithm algorithm, String str) throws Exception {
+        return HashUtils.hash(str, algorithm);
+    }
+
+    @Test
+    public void testSha1() throws Exception {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hash(HashAlgorithm.SHA1, "abc"));
+    }
+
+    @Test
+    public void testCrc32() throws Exception {
+        assertEquals("cbf43926", hash(HashAlgorithm.CRC32, "123456789"));
+    }
+
+    @Test
+    public void testXxHash64() throws Exception {
+        assertEquals("ef46db3751d8e999", hash(HashAlgorithm.XXHASH64, ""));
+        assertEquals("44bc2cf5ad770999", hash(HashAlgorithm.XXHASH64, "abc"));
+        assertEquals("fbcea83c8a378bf1", hash(HashAlgorithm.XXHASH64, "Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void testChunkedUpdates() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < 1000; ++i) {
+            buf.append(i).append(' ');
+        }
+        final byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+        for(HashAlgorithm algorithm : new HashAlgorithm[] {HashAlgorithm.SHA1, HashAlgorithm.CRC32, HashAlgorithm.XXHASH64}) {
+            final Hasher hasher = algorithm.newHasher();
+            int offset = 0;
+            int chunk = 1;
+            while(offset < bytes.length) {
+                final int len = Math.min(chunk, bytes.length - offset);
+                hasher.update(bytes, offset, len);
+                offset += len;
+                chunk = chunk * 2 + 1;
+            }
+            final byte[] chunked = hasher.digest();
+            hasher.update(bytes, 0, bytes.length);
+            assertEquals(algorithm.getName(), HashUtils.bytesToHexString(chunked), HashUtils.bytesToHexString(hasher.digest()));
+        }
+    }
+
+    @Test
+    public void testForName() throws Exception {
+        assertEquals(HashAlgorithm.SHA1, HashAlgorithm.forName("SHA-1"));
+        assertEquals(HashAlgorithm.CRC32, HashAlgorithm.forName("CRC32"));
+        assertEquals(HashAlgorithm.XXHASH64, HashAlgorithm.forName("XXH64"));
+        assertNull(HashAlgorithm.forName("MD5"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.provisioning.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class IoUtilsTest {
+
+    @Test
+    public void testListContents() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        try {
+            final Map<Path, String> expected = new HashMap<>();
+            for(int i = 0; i < 10; ++i) {
+                for(int j = 0; j < 10; ++j) {
+                    final Path file = root.resolve("dir" + i).resolve("file" + j + ".txt");
+                    Files.createDirectories(file.getParent());
+                    IoUtils.writeFile(file, "content " + i + " " + j);
+                    expected.put(root.relativize(file), HashUtils.hashFile(file));
+                }
+            }
+            Files.createDirectories(root.resolve("empty"));
+            expected.put(Paths.get("empty"), HashUtils.hash("empty"));
+            Files.createDirectories(root.resolve("log"));
+            IoUtils.writeFile(root.resolve("log").resolve("server.log"), "log");
+
+            final PathFilter filter = PathFilter.Builder.instance().addDirectories("log").build();
+            assertEquals(expected, IoUtils.listContents(root, filter));
+            assertEquals(expected, IoUtils.listContents(root, filter));
+        } finally {
+            IoUtils.recursiveDelete(root);
+        }
+    }
+
+    @Test
+    public void testConcurrentHashing() throws Exception {
+        final Path root = IoUtils.createRandomTmpDir();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Path> files = new ArrayList<>();
+            for(int i = 0; i < 16; ++i) {
+                final Path file = root.resolve("file" + i);
+                IoUtils.writeFile(file, "content " + i);
+                files.add(file);
+            }
+            final List<Future<String>> hashes = new ArrayList<>();
+            for(Path file : files) {
+                hashes.add(executor.submit(() -> HashUtils.hashFile(file)));
+            }
+            for(int i = 0; i < files.size(); ++i) {
+                assertEquals(HashUtils.hashFile(files.get(i)), hashes.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+            IoUtils.recursiveDelete(root);
+        }
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.jboss.provisioning.plugin;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
@@ -23,6 +24,7 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -60,6 +62,11 @@ import org.jboss.provisioning.xml.ProvisioningXmlParser;
 import org.jboss.provisioning.ArtifactRepositoryManager;
 
 /**
+ * Provisions the installation described by the file set in the {@code provisioning.xml}
+ * system property into the directory set in the {@code pm.target.dir} system property.
+ * The latter may list several installation directories separated by a comma,
+ * the same way as the {@code --dirs} option of the {@code provision-spec} command,
+ * in which case all of them are provisioned from a single resolution.
  *
  * @author Alexey Loubyansky
  */
@@ -101,7 +108,18 @@ public class FeaturePackProvisioningMojo extends AbstractMojo {
         if(installDirArg == null) {
             throw new MojoExecutionException(FpMavenErrors.propertyMissing(Constants.PM_INSTALL_DIR));
         }
-        final Path installDir = Paths.get(installDirArg);
+        // several installation directories separated by a comma are provisioned from a single resolution
+        final List<Path> installDirs = new ArrayList<>();
+        for(String dir : installDirArg.split(Constants.PM_INSTALL_DIR_SEPARATOR)) {
+            dir = dir.trim();
+            if(!dir.isEmpty()) {
+                installDirs.add(Paths.get(dir));
+            }
+        }
+        if(installDirs.isEmpty()) {
+            throw new MojoExecutionException(FpMavenErrors.propertyValueEmpty(Constants.PM_INSTALL_DIR));
+        }
+        final Path installDir = installDirs.get(0);
 
         ProvisioningConfig provisioningConfig;
         try(Reader r = Files.newBufferedReader(provXml, Charset.forName(encoding))) {
@@ -161,7 +179,7 @@ public class FeaturePackProvisioningMojo extends AbstractMojo {
                         }
                     })
                     .setMessageWriter(messageWriter)
-                    .build().provision(provisioningConfig);
+                    .build().provision(provisioningConfig, installDirs);
         } catch (ProvisioningException e) {
             throw new MojoExecutionException("Failed to provision the installation", e);
         }
@@ -30,6 +30,10 @@ public interface FpMavenErrors {
         return "Property " + prop + " is missing";
     }
 
+    static String propertyValueEmpty(String prop) {
+        return "Property " + prop + " has no value";
+    }
+
     static String featurePackBuild() {
         return "Failed to build feature-pack";
     }
@@ -19,12 +19,15 @@ package org.jboss.provisioning.cli;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.jboss.aesh.cl.Arguments;
 import org.jboss.aesh.cl.CommandDefinition;
+import org.jboss.aesh.cl.Option;
 import org.jboss.aesh.cl.completer.FileOptionCompleter;
 import org.jboss.aesh.io.Resource;
+import org.jboss.provisioning.Constants;
 import org.jboss.provisioning.ProvisioningException;
 
 
@@ -38,6 +41,14 @@ public class ProvisionSpecCommand extends ProvisioningCommand {
     @Arguments(completer=FileOptionCompleter.class, description="File describing the desired provisioned state.")
     private List<Resource> specArg;
 
+    @Option(name = "dry-run", hasValue = false,
+            description = "Only resolve the specification and print the feature-packs, packages and configs it results in")
+    boolean dryRun;
+
+    @Option(name = "dirs", required = false,
+            description = "Comma-separated list of target installation directories provisioned from a single resolution of the specification.")
+    String dirsArg;
+
     @Override
     protected void runCommand(PmSession session) throws CommandExecutionException {
 
@@ -54,7 +65,20 @@ public class ProvisionSpecCommand extends ProvisioningCommand {
             throw new CommandExecutionException("Failed to locate provisioning file " + provisioningFile.toAbsolutePath());
         }
         try {
-            getManager(session).provision(provisioningFile);
+            if(dryRun) {
+                session.getShell().out().print(getManager(session).plan(provisioningFile));
+            } else if(dirsArg != null) {
+                final List<Path> dirs = new ArrayList<>();
+                for(String dir : dirsArg.split(Constants.PM_INSTALL_DIR_SEPARATOR)) {
+                    dir = dir.trim();
+                    if(!dir.isEmpty()) {
+                        dirs.add(session.getWorkDir().resolve(dir));
+                    }
+                }
+                getManager(session).provision(provisioningFile, dirs);
+            } else {
+                getManager(session).provision(provisioningFile);
+            }
         } catch (ProvisioningException e) {
             throw new CommandExecutionException("Provisioning failed", e);
         }
@@ -37,6 +37,14 @@ public abstract class ProvisioningCommand extends PmSessionCommand {
             description = "Whether or not the output should be verbose")
     boolean verbose;
 
+    @Option(name = "incremental", hasValue = false,
+            description = "Whether only the changed files of an existing installation should be updated")
+    boolean incremental;
+
+    @Option(name = "layout-cache", completer = FileOptionCompleter.class, required = false,
+            description = "Directory where unpacked feature-packs are cached between the runs")
+    String layoutCacheArg;
+
     protected Path getTargetDir(PmSession session) {
         return targetDirArg == null ? session.getWorkDir() : session.getWorkDir().resolve(targetDirArg);
     }
@@ -47,6 +55,8 @@ public abstract class ProvisioningCommand extends PmSessionCommand {
                 .setArtifactResolver(MavenArtifactRepositoryManager.getInstance())
                 .setInstallationHome(getTargetDir(session))
                 .setMessageWriter(new DefaultMessageWriter(shell.out(), shell.out(), verbose))
+                .setIncremental(incremental)
+                .setLayoutCacheDir(layoutCacheArg == null ? null : session.getWorkDir().resolve(layoutCacheArg))
                 .build();
     }
 }
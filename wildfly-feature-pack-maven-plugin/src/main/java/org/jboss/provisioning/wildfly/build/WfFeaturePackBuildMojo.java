@@ -65,6 +65,7 @@ import org.jboss.provisioning.config.FeaturePackConfig;
 import org.jboss.provisioning.config.IncludedConfig;
 import org.jboss.provisioning.layout.FeaturePackLayout;
 import org.jboss.provisioning.layout.FeaturePackLayoutDescriber;
+import org.jboss.provisioning.layout.FeatureSpecIndex;
 import org.jboss.provisioning.plugin.FpMavenErrors;
 import org.jboss.provisioning.plugin.util.MavenPluginUtil;
 import org.jboss.provisioning.plugin.wildfly.WfConstants;
@@ -142,6 +143,12 @@ public class WfFeaturePackBuildMojo extends AbstractMojo {
     @Parameter(alias="release-name", defaultValue = "${product.release.name}", required=true)
     private String releaseName;
 
+    /**
+     * Whether to add a binary index of the feature specs to the feature-pack.
+     */
+    @Parameter(alias = "feature-spec-index", defaultValue = "false", property = "wildfly.feature.pack.featureSpecIndex")
+    private boolean featureSpecIndex;
+
     @Inject
     private MavenPluginUtil mavenPluginUtil;
 
@@ -283,6 +290,13 @@ public class WfFeaturePackBuildMojo extends AbstractMojo {
         }
 
         copyDirIfExists(targetResources.resolve(Constants.FEATURES), fpDir.resolve(Constants.FEATURES));
+        if(featureSpecIndex && Files.exists(fpDir.resolve(Constants.FEATURES))) {
+            try {
+                FeatureSpecIndex.write(fpDir.resolve(Constants.FEATURES));
+            } catch (ProvisioningDescriptionException e) {
+                throw new MojoExecutionException("Failed to write the feature spec index", e);
+            }
+        }
         copyDirIfExists(targetResources.resolve(Constants.FEATURE_GROUPS), fpDir.resolve(Constants.FEATURE_GROUPS));
         addWildFlyPlugin(fpDir);
 
@@ -50,7 +50,7 @@ public class WfDiffPlugin implements DiffPlugin {
     public void computeDiff(ProvisioningRuntime runtime, Path customizedInstallation, Path target) throws ProvisioningException {
         final MessageWriter messageWriter = runtime.getMessageWriter();
         messageWriter.verbose("WildFly diff plug-in");
-        FileSystemDiff diff = new FileSystemDiff(messageWriter, runtime.getInstallDir(), customizedInstallation);
+        FileSystemDiff diff = FileSystemDiff.newInstance(runtime, customizedInstallation);
         runtime.setDiff(diff.diff(getFilter(runtime)));
     }
 